@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link BlockDevice} which can have several reads and writes in flight
+ * at the same time. The buffers passed to the asynchronous methods must not
+ * be touched by the caller until the returned {@code Future} is done.
+ * Requests which are in flight at the same time are not ordered with
+ * respect to each other.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public interface AsyncBlockDevice extends BlockDevice {
+    
+    /**
+     * Starts reading a block of data from this device. If the device has
+     * too many requests in flight already, this method blocks until one
+     * of them is completed.
+     *
+     * @param devOffset the byte offset where to read the data from
+     * @param dest the destination buffer where to store the data read
+     * @return a {@code Future} which is done when the data was read; it's
+     *      {@code get} method throws an {@code ExecutionException} wrapping
+     *      the {@code IOException} if reading failed
+     */
+    public Future<Void> readAsync(long devOffset, ByteBuffer dest);
+    
+    /**
+     * Starts writing a block of data to this device. If the device has
+     * too many requests in flight already, this method blocks until one
+     * of them is completed.
+     *
+     * @param devOffset the byte offset where to store the data
+     * @param src the source {@code ByteBuffer} to write to the device
+     * @return a {@code Future} which is done when the data was written; it's
+     *      {@code get} method throws an {@code ExecutionException} wrapping
+     *      the {@code IOException} if writing failed
+     * @throws ReadOnlyException if this {@code BlockDevice} is read-only
+     */
+    public Future<Void> writeAsync(long devOffset, ByteBuffer src)
+            throws ReadOnlyException;
+    
+}
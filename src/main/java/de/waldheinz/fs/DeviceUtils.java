@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Transfers several ranges of data from or to a {@link BlockDevice}. All
+ * ranges are put in flight at once if the device is an
+ * {@link AsyncBlockDevice}, handed over with a single call if the device is
+ * a {@link VectoredBlockDevice}, and transferred one after the other
+ * otherwise. The helpers used for this are shared with the
+ * {@code BlockDevice} implementations.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class DeviceUtils {
+    
+    private DeviceUtils() { /* no instances */ }
+    
+    /**
+     * Reads several ranges of data from the device, using the most
+     * efficient way the device offers.
+     *
+     * @param dev the device to read from
+     * @param devOffsets the byte offsets where to read the data from
+     * @param dests the destination buffers, one for each offset
+     * @throws IOException on read error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @see VectoredBlockDevice#read(long[], java.nio.ByteBuffer[])
+     */
+    public static void read(BlockDevice dev,
+            long[] devOffsets, ByteBuffer[] dests) throws IOException {
+        
+        if (dev instanceof AsyncBlockDevice && devOffsets.length > 1) {
+            checkLengths(devOffsets, dests);
+            
+            final AsyncBlockDevice async = (AsyncBlockDevice) dev;
+            final Future<?>[] requests = new Future<?>[devOffsets.length];
+            
+            for (int i=0; i < devOffsets.length; i++) {
+                requests[i] = async.readAsync(devOffsets[i], dests[i]);
+            }
+            
+            await(Arrays.asList(requests));
+        } else if (dev instanceof VectoredBlockDevice) {
+            ((VectoredBlockDevice) dev).read(devOffsets, dests);
+        } else {
+            readEach(dev, devOffsets, dests);
+        }
+    }
+    
+    /**
+     * Writes several ranges of data to the device, using the most
+     * efficient way the device offers.
+     *
+     * @param dev the device to write to
+     * @param devOffsets the byte offsets where to store the data
+     * @param srcs the source buffers, one for each offset
+     * @throws IOException on write error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @see VectoredBlockDevice#write(long[], java.nio.ByteBuffer[])
+     */
+    public static void write(BlockDevice dev,
+            long[] devOffsets, ByteBuffer[] srcs) throws IOException {
+        
+        if (dev instanceof AsyncBlockDevice && devOffsets.length > 1) {
+            checkLengths(devOffsets, srcs);
+            
+            final AsyncBlockDevice async = (AsyncBlockDevice) dev;
+            final Future<?>[] requests = new Future<?>[devOffsets.length];
+            
+            for (int i=0; i < devOffsets.length; i++) {
+                requests[i] = async.writeAsync(devOffsets[i], srcs[i]);
+            }
+            
+            await(Arrays.asList(requests));
+        } else if (dev instanceof VectoredBlockDevice) {
+            ((VectoredBlockDevice) dev).write(devOffsets, srcs);
+        } else {
+            writeEach(dev, devOffsets, srcs);
+        }
+    }
+    
+    /**
+     * Reads the ranges one after the other. This is what a
+     * {@link VectoredBlockDevice} without a better strategy does.
+     *
+     * @param dev the device to read from
+     * @param devOffsets the byte offsets where to read the data from
+     * @param dests the destination buffers, one for each offset
+     * @throws IOException on read error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    public static void readEach(BlockDevice dev,
+            long[] devOffsets, ByteBuffer[] dests) throws IOException {
+        
+        checkLengths(devOffsets, dests);
+        
+        for (int i=0; i < devOffsets.length; i++) {
+            dev.read(devOffsets[i], dests[i]);
+        }
+    }
+    
+    /**
+     * Writes the ranges one after the other. This is what a
+     * {@link VectoredBlockDevice} without a better strategy does.
+     *
+     * @param dev the device to write to
+     * @param devOffsets the byte offsets where to store the data
+     * @param srcs the source buffers, one for each offset
+     * @throws IOException on write error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    public static void writeEach(BlockDevice dev,
+            long[] devOffsets, ByteBuffer[] srcs) throws IOException {
+        
+        checkLengths(devOffsets, srcs);
+        
+        for (int i=0; i < devOffsets.length; i++) {
+            dev.write(devOffsets[i], srcs[i]);
+        }
+    }
+    
+    /**
+     * Tells the device that the specified range holds metadata, if the
+     * device is interested in such hints.
+     *
+     * @param dev the device
+     * @param devOffset the start of the metadata range
+     * @param length the length of the metadata range
+     * @see MetadataAwareBlockDevice#markMetadata(long, long)
+     */
+    public static void markMetadata(
+            BlockDevice dev, long devOffset, long length) {
+        
+        if (dev instanceof MetadataAwareBlockDevice) {
+            ((MetadataAwareBlockDevice) dev).markMetadata(devOffset, length);
+        }
+    }
+    
+    /**
+     * Waits for all requests to complete, even if some of them fail,
+     * because the buffers may still be in use until then.
+     *
+     * @param requests the requests to wait for
+     * @throws IOException the error of the first failed request, unchecked
+     *      exceptions are rethrown as they are
+     */
+    public static void await(Iterable<? extends Future<?>> requests)
+            throws IOException {
+        
+        Throwable error = null;
+        boolean interrupted = false;
+        
+        for (Future<?> f : requests) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (error == null) error = ex.getCause();
+                    break;
+                }
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new IOException(error);
+        }
+    }
+    
+    /**
+     * Makes sure there is one buffer for every offset.
+     *
+     * @param devOffsets the offsets
+     * @param bufs the buffers
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    public static void checkLengths(long[] devOffsets, ByteBuffer[] bufs)
+            throws IllegalArgumentException {
+        
+        if (devOffsets.length != bufs.length) throw
+                new IllegalArgumentException(devOffsets.length +
+                " offsets, but " + bufs.length + " buffers"); //NOI18N
+    }
+    
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs;
+
+/**
+ * A {@link BlockDevice} which can make use of knowing which parts of it hold
+ * file system metadata, like allocation tables and directories. Typically
+ * this is a cache which protects such data from being evicted by large
+ * sequential transfers of file contents.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public interface MetadataAwareBlockDevice extends BlockDevice {
+    
+    /**
+     * Tells this device that the specified range holds file system metadata.
+     * This is only a hint which does not affect the data stored on the
+     * device. A range stays marked until the device is closed, even if it
+     * is later used for other data.
+     *
+     * @param devOffset the offset of the first metadata byte
+     * @param length the length of the range in bytes
+     */
+    public void markMetadata(long devOffset, long length);
+    
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link BlockDevice} which can move data directly between itself and
+ * other channels, allowing the operating system to do the copying without
+ * passing the data through the Java heap. The methods behave like
+ * {@link java.nio.channels.FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} and
+ * {@link java.nio.channels.FileChannel#transferFrom(
+ * java.nio.channels.ReadableByteChannel, long, long)}.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public interface TransferBlockDevice extends BlockDevice {
+    
+    /**
+     * Transfers bytes from this device to the given channel.
+     *
+     * @param devOffset the device offset of the first byte to transfer
+     * @param count the maximum number of bytes to transfer
+     * @param target the channel to write the bytes to
+     * @return the number of bytes actually transferred, which is less than
+     *      {@code count} only if the target could not accept more bytes
+     * @throws IOException on read or write error, or if the range extends
+     *      beyond the end of this device
+     */
+    public long transferTo(long devOffset, long count,
+            WritableByteChannel target) throws IOException;
+    
+    /**
+     * Transfers bytes from the given channel to this device.
+     *
+     * @param src the channel to read the bytes from
+     * @param devOffset the device offset where to store the first byte
+     * @param count the maximum number of bytes to transfer
+     * @return the number of bytes actually transferred, which is less than
+     *      {@code count} only if the source channel had no more bytes
+     * @throws ReadOnlyException if this device is read-only
+     * @throws IOException on read or write error, or if the range extends
+     *      beyond the end of this device
+     */
+    public long transferFrom(ReadableByteChannel src, long devOffset,
+            long count) throws ReadOnlyException, IOException;
+    
+}
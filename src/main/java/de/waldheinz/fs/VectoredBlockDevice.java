@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BlockDevice} which can transfer several ranges of data with a
+ * single call. Users of a {@code BlockDevice} which does not implement this
+ * interface have to read or write the ranges one after the other, which is
+ * what the methods of this interface are equivalent to.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public interface VectoredBlockDevice extends BlockDevice {
+    
+    /**
+     * Reads several blocks of data from this device. For every index
+     * {@code i}, the remaining space of {@code dests[i]} is filled with the
+     * data starting at {@code devOffsets[i]}.
+     *
+     * @param devOffsets the byte offsets where to read the data from
+     * @param dests the destination buffers, one for each offset
+     * @throws IOException on read error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @see #read(long, java.nio.ByteBuffer) 
+     */
+    public void read(long[] devOffsets, ByteBuffer[] dests)
+            throws IOException, IllegalArgumentException;
+    
+    /**
+     * Writes several blocks of data to this device. For every index
+     * {@code i}, the remaining data of {@code srcs[i]} is written starting
+     * at {@code devOffsets[i]}.
+     *
+     * @param devOffsets the byte offsets where to store the data
+     * @param srcs the source buffers, one for each offset
+     * @throws ReadOnlyException if this {@code BlockDevice} is read-only
+     * @throws IOException on write error
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @see #write(long, java.nio.ByteBuffer) 
+     */
+    public void write(long[] devOffsets, ByteBuffer[] srcs)
+            throws ReadOnlyException, IOException, IllegalArgumentException;
+    
+}
@@ -23,7 +23,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is the abstract base class for all directory implementations.
@@ -40,14 +46,70 @@ abstract class AbstractDirectory {
      */
     public static final int MAX_LABEL_LENGTH = 11;
     
+    /**
+     * The granularity in bytes in which changes are written back by
+     * {@link #flush()}. This is the smallest sector size allowed by the
+     * FAT specification.
+     */
+    static final int WRITE_UNIT = 512;
+    
+    /**
+     * The entries stored in this directory, by slot index. Slots which are
+     * free, hold a part of a long file name or the volume label are
+     * {@code null} here and only exist in the {@link #image}. Free slots
+     * are also recorded in the {@link #freeSlots}.
+     */
     private final List<FatDirectoryEntry> entries;
+    private final BitSet freeSlots;
+    private int usedSlots;
+    
+    /**
+     * The slot holding the volume label, or -1 if there is none.
+     */
+    private int labelSlot;
+    
+    /**
+     * Where the search for a free run of slots starts.
+     */
+    private int rover;
+    
     private final boolean readOnly;
     private final boolean isRoot;
     private final FatType type;
     
-    private boolean dirty;
+    /**
+     * The entries which were modified in place since the last flush.
+     */
+    private final Set<FatDirectoryEntry> changedEntries;
+    
+    /**
+     * The contents of this directory, or {@code null} if they were not
+     * read or created yet. The entries are views of their slots in this
+     * array, and all slots after the last used one are zero. The
+     * {@link #dirtyUnits} mark the parts which still have to be written.
+     */
+    private byte[] image;
+    private final BitSet dirtyUnits;
+    
+    /**
+     * If the slots have been read into the {@link #image}. Until then,
+     * the slots can only be read through a {@link SlotReader}.
+     *
+     * @see #open()
+     */
+    private boolean loaded;
+    
+    /**
+     * The entries which were decoded by a {@link SlotReader} and handed out
+     * while this directory was not loaded, by slot index. These are used
+     * instead of the stored slots when the directory is loaded.
+     */
+    private final Map<Integer, FatDirectoryEntry> adopted;
+    
+    private volatile boolean dirty;
     private int capacity;
     private String volumeLabel;
+    private FatLfnDirectory owner;
 
     /**
      * Creates a new instance of {@code AbstractDirectory}.
@@ -61,6 +123,13 @@ abstract class AbstractDirectory {
             int capacity, boolean readOnly, boolean isRoot) {
         
         this.entries = new ArrayList<FatDirectoryEntry>();
+        this.freeSlots = new BitSet();
+        this.changedEntries = Collections.newSetFromMap(
+                new ConcurrentHashMap<FatDirectoryEntry, Boolean>());
+        this.dirtyUnits = new BitSet();
+        this.adopted = new ConcurrentHashMap<Integer, FatDirectoryEntry>();
+        this.labelSlot = -1;
+        this.loaded = true;
         this.type = type;
         this.capacity = capacity;
         this.readOnly = readOnly;
@@ -68,25 +137,41 @@ abstract class AbstractDirectory {
     }
 
     /**
-     * Gets called when the {@code AbstractDirectory} must read it's content
-     * off the backing storage. This method must always fill the buffer's
-     * remaining space with the bytes making up this directory, beginning with
-     * the first byte.
+     * Gets called when the {@code AbstractDirectory} must read (a part of)
+     * it's content off the backing storage. This method must always fill the
+     * buffer's remaining space with the bytes making up this directory,
+     * beginning at the specified offset relative to the start of this
+     * directory.
      *
+     * @param offset the offset of the first byte to read
      * @param data the {@code ByteBuffer} to fill
      * @throws IOException on read error
      */
-    protected abstract void read(ByteBuffer data) throws IOException;
+    protected abstract void read(long offset, ByteBuffer data)
+            throws IOException;
+    
+    /**
+     * Returns the number of bytes a {@link SlotReader} reads from the
+     * storage at once. This implementation returns the whole directory.
+     *
+     * @return the size of the read unit in bytes
+     */
+    protected int getReadUnit() {
+        return getCapacity() * FatDirectoryEntry.SIZE;
+    }
 
     /**
-     * Gets called when the {@code AbstractDirectory} wants to write it's
-     * contents to the backing storage. This method is expected to write the
-     * buffer's remaining data to the storage, beginning with the first byte.
+     * Gets called when the {@code AbstractDirectory} wants to write (a part
+     * of) it's contents to the backing storage. This method is expected to
+     * write the buffer's remaining data to the storage, beginning at the
+     * specified offset relative to the start of this directory.
      *
+     * @param offset the offset of the first byte to write
      * @param data the {@code ByteBuffer} to write
      * @throws IOException on write error
      */
-    protected abstract void write(ByteBuffer data) throws IOException;
+    protected abstract void write(long offset, ByteBuffer data)
+            throws IOException;
 
     /**
      * Returns the number of the cluster where this directory is stored. This
@@ -110,19 +195,6 @@ abstract class AbstractDirectory {
     protected abstract void changeSize(int entryCount)
             throws DirectoryFullException, IOException;
             
-    /**
-     * Replaces all entries in this directory.
-     *
-     * @param newEntries the new directory entries
-     */
-    public void setEntries(List<FatDirectoryEntry> newEntries) {
-        if (newEntries.size() > capacity)
-            throw new IllegalArgumentException("too many entries");
-        
-        this.entries.clear();
-        this.entries.addAll(newEntries);
-    }
-    
     /**
      * 
      *
@@ -135,12 +207,63 @@ abstract class AbstractDirectory {
             throw new IOException("directory too large");
         
         this.capacity = (int) newCount;
+        
+        if (loaded && image != null) {
+            resize(Math.max(capacity, entries.size()));
+        }
+        
+        setDirty();
     }
 
+    /**
+     * Returns the entry stored in the specified slot.
+     *
+     * @param idx the slot index
+     * @return the entry in the slot, or {@code null} if the slot does not
+     *      hold an entry
+     * @see #getSlotCount()
+     * @see #isLfnSlot(int) 
+     */
     public final FatDirectoryEntry getEntry(int idx) {
         return this.entries.get(idx);
     }
     
+    /**
+     * Returns if the specified slot holds a part of a long file name.
+     *
+     * @param idx the slot index
+     * @return if the slot holds a LFN entry
+     * @see #getLfnPart(int) 
+     */
+    final boolean isLfnSlot(int idx) {
+        return entries.get(idx) == null && !freeSlots.get(idx) &&
+                idx != labelSlot;
+    }
+    
+    /**
+     * Returns the part of a long file name stored in the specified slot.
+     *
+     * @param idx the slot index
+     * @return the name part
+     * @see #isLfnSlot(int) 
+     */
+    final String getLfnPart(int idx) {
+        assert (isLfnSlot(idx));
+        
+        return FatDirectoryEntry.getLfnPart(
+                image, idx * FatDirectoryEntry.SIZE);
+    }
+    
+    /**
+     * Returns the number of slots up to and including the last one that is
+     * in use. This includes free slots between used ones.
+     *
+     * @return the number of slots
+     */
+    public final int getSlotCount() {
+        return this.entries.size();
+    }
+    
     /**
      * Returns the current capacity of this {@code AbstractDirectory}.
      *
@@ -154,12 +277,12 @@ abstract class AbstractDirectory {
 
     /**
      * The number of entries that are currently stored in this
-     * {@code AbstractDirectory}.
+     * {@code AbstractDirectory}, not counting free slots.
      *
      * @return the current number of directory entries
      */
     public final int getEntryCount() {
-        return this.entries.size();
+        return this.usedSlots;
     }
     
     public boolean isReadOnly() {
@@ -172,13 +295,12 @@ abstract class AbstractDirectory {
     
     /**
      * Gets the number of directory entries in this directory. This is the
-     * number of "real" entries in this directory, possibly plus one if a
-     * volume label is set.
+     * number of slots in this directory, including the volume label.
      * 
      * @return the number of entries in this directory
      */
     public int getSize() {
-        return entries.size() + ((this.volumeLabel != null) ? 1 : 0);
+        return entries.size();
     }
     
     /**
@@ -186,8 +308,45 @@ abstract class AbstractDirectory {
      */
     protected final void setDirty() {
         this.dirty = true;
+        
+        final FatLfnDirectory o = this.owner;
+        
+        if (o != null) {
+            o.storageChanged();
+        }
     }
-
+    
+    /**
+     * Returns if this directory was modified since it was last flushed.
+     *
+     * @return if this directory is dirty
+     */
+    public final boolean isDirty() {
+        return this.dirty;
+    }
+    
+    /**
+     * Sets the {@code FatLfnDirectory} that is notified when this
+     * directory becomes dirty.
+     *
+     * @param owner the owning directory
+     */
+    final void setOwner(FatLfnDirectory owner) {
+        this.owner = owner;
+    }
+    
+    /**
+     * Called by a {@code FatDirectoryEntry} stored in this directory when
+     * it was modified. This method may be called without holding any
+     * directory lock.
+     *
+     * @param e the entry that was modified
+     */
+    final void entryChanged(FatDirectoryEntry e) {
+        this.changedEntries.add(e);
+        setDirty();
+    }
+    
     /**
      * Checks if this {@code AbstractDirectory} is a root directory.
      *
@@ -202,94 +361,598 @@ abstract class AbstractDirectory {
     }
     
     /**
-     * Mark this directory as not dirty.
+     * Flush the contents of this directory to the persistent storage. Only
+     * the {@link #WRITE_UNIT}s which changed since the last flush are
+     * written.
+     *
+     * @throws IOException on write error
      */
-    private void resetDirty() {
+    public void flush() throws IOException {
         this.dirty = false;
+        
+        if (!loaded) {
+            flushAdopted();
+            return;
+        }
+        
+        image();
+        
+        final Iterator<FatDirectoryEntry> it = changedEntries.iterator();
+        
+        while (it.hasNext()) {
+            final FatDirectoryEntry e = it.next();
+            it.remove();
+            
+            final int slot = e.getSlot(this);
+            if (slot >= 0) markDirty(slot);
+        }
+        
+        try {
+            writeDirtyUnits();
+        } catch (IOException ex) {
+            setDirty();
+            throw ex;
+        }
     }
     
     /**
-     * Flush the contents of this directory to the persistent storage
+     * Returns the {@link #image}, which is created if this directory was
+     * neither read nor modified before. A new image must be written as a
+     * whole, as nothing is known about the storage yet.
+     *
+     * @return the image of this directory
      */
-    public void flush() throws IOException {
+    private byte[] image() {
+        if (image == null) {
+            this.image = new byte[getCapacity() * FatDirectoryEntry.SIZE];
+            dirtyUnits.set(0, units(image.length));
+        }
         
-        final ByteBuffer data = ByteBuffer.allocate(
-                getCapacity() * FatDirectoryEntry.SIZE + (volumeLabel != null ? FatDirectoryEntry.SIZE : 0));
+        return image;
+    }
+    
+    private static int units(int length) {
+        return (length + WRITE_UNIT - 1) / WRITE_UNIT;
+    }
+    
+    /**
+     * Changes the length of the {@link #image} to the specified number of
+     * slots. The entries are moved to the new array.
+     *
+     * @param slots the new number of slots
+     */
+    private void resize(int slots) {
+        final int length = slots * FatDirectoryEntry.SIZE;
+        if (length == image.length) return;
         
-        for (FatDirectoryEntry entry : this.entries) {
-            if (entry != null) {
-                entry.write(data);
-            }
+        final byte[] resized = Arrays.copyOf(image, length);
+        
+        if (length > image.length) {
+            dirtyUnits.set(image.length / WRITE_UNIT, units(length));
         }
         
-        /* TODO: the label could be placed directly the dot entries */
+        for (int i=0; i < entries.size(); i++) {
+            final FatDirectoryEntry e = entries.get(i);
+            if (e != null) e.store(this, resized, i);
+        }
         
-        if (this.volumeLabel != null) {
-            final FatDirectoryEntry labelEntry =
-                    FatDirectoryEntry.createVolumeLabel(type, volumeLabel);
-
-            labelEntry.write(data);
+        this.image = resized;
+    }
+    
+    private void markDirty(int slot) {
+        dirtyUnits.set(slot * FatDirectoryEntry.SIZE / WRITE_UNIT);
+    }
+    
+    /**
+     * Fills the specified slot of the {@link #image} with zeros, except for
+     * the specified first byte.
+     *
+     * @param slot the slot to clear
+     * @param first the first byte of the slot
+     */
+    private void clearSlot(int slot, int first) {
+        final int off = slot * FatDirectoryEntry.SIZE;
+        
+        Arrays.fill(image, off, off + FatDirectoryEntry.SIZE, (byte) 0);
+        image[off] = (byte) first;
+        markDirty(slot);
+    }
+    
+    /**
+     * Writes the modified entries of a directory which is not loaded
+     * straight to their slots.
+     */
+    private void flushAdopted() throws IOException {
+        final Iterator<FatDirectoryEntry> it = changedEntries.iterator();
+        final ByteBuffer data = ByteBuffer.allocate(FatDirectoryEntry.SIZE);
+        
+        while (it.hasNext()) {
+            final FatDirectoryEntry e = it.next();
+            it.remove();
+            
+            final int slot;
+            
+            synchronized (e) {
+                slot = e.getSlot(this);
+                if (slot < 0) continue;
+                
+                data.clear();
+                e.write(data);
+            }
+            
+            data.flip();
+            
+            try {
+                write((long) slot * FatDirectoryEntry.SIZE, data);
+            } catch (IOException ex) {
+                entryChanged(e);
+                throw ex;
+            }
         }
+    }
+    
+    /**
+     * Writes the runs of dirty units from the image to the storage. Each run
+     * is copied first, so entries can be modified while it is written.
+     */
+    private void writeDirtyUnits() throws IOException {
+        int unit = dirtyUnits.nextSetBit(0);
         
-        if (data.hasRemaining()) {
-            FatDirectoryEntry.writeNullEntry(data);
+        while (unit >= 0) {
+            final int end = dirtyUnits.nextClearBit(unit);
+            final int off = unit * WRITE_UNIT;
+            final int len = Math.min(end * WRITE_UNIT, image.length) - off;
+            
+            if (len > 0) {
+                write(off, ByteBuffer.wrap(copy(off, len)));
+            }
+            
+            dirtyUnits.clear(unit, end);
+            unit = dirtyUnits.nextSetBit(end);
+        }
+    }
+    
+    /**
+     * Copies a part of the image, taking the bytes of each entry while
+     * holding its monitor.
+     */
+    private byte[] copy(int off, int len) {
+        final byte[] result = Arrays.copyOfRange(image, off, off + len);
+        final int last = Math.min(entries.size(),
+                (off + len) / FatDirectoryEntry.SIZE);
+        
+        for (int i=off / FatDirectoryEntry.SIZE; i < last; i++) {
+            final FatDirectoryEntry e = entries.get(i);
+            
+            if (e != null) {
+                e.write(ByteBuffer.wrap(result,
+                        i * FatDirectoryEntry.SIZE - off,
+                        FatDirectoryEntry.SIZE));
+            }
         }
-
-        data.flip();
         
-        write(data);
-        resetDirty();
+        return result;
     }
     
+    /**
+     * Reads all slots of this directory from the storage. Entries which
+     * were {@link #adopt(FatDirectoryEntry, int) adopted} before take the
+     * place of the slots they were decoded from.
+     *
+     * @throws IOException on read error
+     */
     protected final void read() throws IOException {
-        final ByteBuffer data = ByteBuffer.allocate(
-                getCapacity() * FatDirectoryEntry.SIZE);
-                
-        read(data);
-        data.flip();
+        final byte[] data = new byte[getCapacity() * FatDirectoryEntry.SIZE];
+        read(0, ByteBuffer.wrap(data));
+        this.image = data;
         
-        for (int i=0; i < getCapacity(); i++) {
-            final FatDirectoryEntry e =
-                    FatDirectoryEntry.read(type, data, isReadOnly());
+        int i = 0;
+        
+        for (; i < getCapacity(); i++) {
+            final int off = i * FatDirectoryEntry.SIZE;
+            if (data[off] == 0) break;
             
-            if (e == null) break;
+            final FatDirectoryEntry a = adopted.get(i);
             
-            if (e.isVolumeLabel()) {
+            if (a != null) {
+                a.store(this, data, i);
+                entries.add(a);
+                usedSlots++;
+            } else if ((data[off] & 0xff) ==
+                    FatDirectoryEntry.ENTRY_DELETED_MAGIC) {
+                
+                freeSlots.set(i);
+                entries.add(null);
+            } else if (FatDirectoryEntry.isLfnEntry(data, off)) {
+                entries.add(null);
+                usedSlots++;
+            } else if (FatDirectoryEntry.isVolumeLabel(data, off)) {
                 if (!this.isRoot) throw new IOException(
                         "volume label in non-root directory");
                 
-                this.volumeLabel = e.getVolumeLabel();
+                this.volumeLabel = FatDirectoryEntry.getVolumeLabel(data, off);
+                this.labelSlot = i;
+                entries.add(null);
             } else {
+                final FatDirectoryEntry e = new FatDirectoryEntry(
+                        type, data, off, isReadOnly());
+                
+                e.attach(this, i);
                 entries.add(e);
+                usedSlots++;
+            }
+        }
+        
+        /* whatever follows the end marker is cleared */
+        
+        for (int off=i * FatDirectoryEntry.SIZE; off < data.length; off++) {
+            if (data[off] != 0) {
+                data[off] = 0;
+                dirtyUnits.set(off / WRITE_UNIT);
             }
         }
+        
+        this.adopted.clear();
+        this.loaded = true;
+        trim();
+    }
+    
+    /**
+     * Prepares this directory to read its slots on demand. Until it is
+     * {@link #load() loaded}, the slots can only be read through a
+     * {@link SlotReader}, and only modifications of
+     * {@link #adopt(FatDirectoryEntry, int) adopted} entries can be
+     * flushed.
+     */
+    protected final void open() {
+        this.loaded = false;
+    }
+    
+    /**
+     * Returns if the slots of this directory have been read.
+     *
+     * @return if this directory is loaded
+     * @see #open()
+     */
+    final boolean isLoaded() {
+        return this.loaded;
+    }
+    
+    /**
+     * Reads the slots of this directory if this was not done before.
+     *
+     * @throws IOException on read error
+     */
+    final void load() throws IOException {
+        if (!loaded) read();
+    }
+    
+    /**
+     * Makes the specified entry, which was decoded from the specified slot
+     * by a {@link SlotReader}, represent that slot. Modifications of the
+     * entry are flushed to the slot, and the entry will be part of this
+     * directory once it is loaded.
+     *
+     * @param e the entry to adopt
+     * @param slot the slot the entry was decoded from
+     */
+    final void adopt(FatDirectoryEntry e, int slot) {
+        assert (!loaded);
+        
+        e.attach(this, slot);
+        this.adopted.put(slot, e);
+    }
+    
+    /**
+     * Creates a new {@code SlotReader} for this directory.
+     *
+     * @return the new reader, positioned before the first slot
+     */
+    final SlotReader slotReader() {
+        return new SlotReader();
+    }
+    
+    /**
+     * Reads the slots of a directory straight from the storage, one
+     * {@link #getReadUnit() read unit} at a time. The reader stops at the
+     * first slot marking the end of the directory.
+     */
+    final class SlotReader {
+        
+        private final byte[] unit;
+        private int unitStart;
+        private int unitLength;
+        private int slot;
+        
+        private SlotReader() {
+            final int size = Math.max(FatDirectoryEntry.SIZE,
+                    getReadUnit() / FatDirectoryEntry.SIZE *
+                    FatDirectoryEntry.SIZE);
+            
+            this.unit = new byte[size];
+            this.slot = -1;
+        }
+        
+        /**
+         * Advances to the next slot.
+         *
+         * @return if there is a next slot
+         * @throws IOException on read error
+         */
+        boolean next() throws IOException {
+            if (slot >= getCapacity()) return false;
+            
+            slot++;
+            
+            if (slot >= getCapacity()) return false;
+            
+            if (offset() >= unitLength) {
+                final long start = (long) slot * FatDirectoryEntry.SIZE;
+                final int len = (int) Math.min(unit.length,
+                        (long) getCapacity() * FatDirectoryEntry.SIZE - start);
+                
+                read(start, ByteBuffer.wrap(unit, 0, len));
+                this.unitStart = slot;
+                this.unitLength = len;
+            }
+            
+            if (unit[offset()] == 0) {
+                this.slot = getCapacity();
+                return false;
+            }
+            
+            return true;
+        }
+        
+        private int offset() {
+            return (slot - unitStart) * FatDirectoryEntry.SIZE;
+        }
+        
+        /**
+         * Returns the index of the current slot.
+         *
+         * @return the current slot index
+         */
+        int getSlot() {
+            return this.slot;
+        }
+        
+        /**
+         * Returns if the current slot is marked as deleted.
+         *
+         * @return if the current slot is free
+         */
+        boolean isDeleted() {
+            return (unit[offset()] & 0xff) ==
+                    FatDirectoryEntry.ENTRY_DELETED_MAGIC;
+        }
+        
+        /**
+         * Copies the current slot to the specified array.
+         *
+         * @param dest the array to copy the slot to
+         */
+        void get(byte[] dest) {
+            System.arraycopy(unit, offset(), dest, 0, FatDirectoryEntry.SIZE);
+        }
+        
+        /**
+         * Decodes the current slot.
+         *
+         * @return a new entry for the current slot
+         */
+        FatDirectoryEntry getEntry() {
+            final byte[] data = new byte[FatDirectoryEntry.SIZE];
+            get(data);
+            return new FatDirectoryEntry(type, data, isReadOnly());
+        }
+        
     }
     
     public void addEntry(FatDirectoryEntry e) throws IOException {
         assert (e != null);
         
-        if (getSize() == getCapacity()) {
-            changeSize(getCapacity() + 1);
-        }
-
-        entries.add(e);
+        addEntries(new FatDirectoryEntry[] { e });
     }
     
-    public void addEntries(FatDirectoryEntry[] entries)
+    /**
+     * Stores the specified entries in consecutive slots. A run of free
+     * slots is reused if there is one large enough, otherwise the entries
+     * are appended. If the directory can not grow any further, it is
+     * {@link #compact() compacted} to make room. Entries holding a part of
+     * a long file name are only copied to their slots, all others become
+     * views of their slots.
+     *
+     * @param entries the entries to add
+     * @return the index of the first slot used
+     * @throws IOException on error growing the directory
+     * @throws DirectoryFullException if there is not enough room for the
+     *      entries, even after compacting
+     */
+    public int addEntries(FatDirectoryEntry[] entries)
             throws IOException {
         
-        if (getSize() + entries.length > getCapacity()) {
-            changeSize(getSize() + entries.length);
+        final int first = allocate(entries.length);
+        
+        for (int i=0; i < entries.length; i++) {
+            final int slot = first + i;
+            final FatDirectoryEntry e = entries[i];
+            
+            if (e.isLfnEntry()) {
+                e.write(ByteBuffer.wrap(image,
+                        slot * FatDirectoryEntry.SIZE,
+                        FatDirectoryEntry.SIZE));
+            } else {
+                e.store(this, image, slot);
+                this.entries.set(slot, e);
+            }
+            
+            markDirty(slot);
         }
-
-        this.entries.addAll(Arrays.asList(entries));
+        
+        this.usedSlots += entries.length;
+        setDirty();
+        return first;
+    }
+    
+    /**
+     * Reserves a run of the specified number of slots.
+     *
+     * @param count the number of slots needed
+     * @return the first slot of the run
+     * @throws IOException on error growing the directory
+     * @throws DirectoryFullException if there is not enough room, even
+     *      after compacting
+     * @see #addEntries(de.waldheinz.fs.fat.FatDirectoryEntry[]) 
+     */
+    private int allocate(int count) throws IOException {
+        int first = findFreeRun(count);
+        
+        if (first < 0) {
+            final int needed = getSize() + count;
+            
+            if (needed > getCapacity()) {
+                try {
+                    changeSize(needed);
+                } catch (DirectoryFullException ex) {
+                    if (getSize() - freeSlots.cardinality() +
+                            count > getCapacity()) throw ex;
+                    
+                    compact();
+                }
+            }
+            
+            first = this.entries.size();
+            
+            if (image().length < (first + count) * FatDirectoryEntry.SIZE) {
+                resize(first + count);
+            }
+            
+            for (int i=0; i < count; i++) {
+                this.entries.add(null);
+            }
+        }
+        
+        this.freeSlots.clear(first, first + count);
+        this.rover = first + count;
+        return first;
+    }
+    
+    /**
+     * Finds a run of free slots using a next-fit strategy.
+     *
+     * @param length the number of slots needed
+     * @return the first slot of the run, or -1 if there is none
+     */
+    private int findFreeRun(int length) {
+        if (freeSlots.cardinality() < length) return -1;
+        
+        final int result = findFreeRun(length, rover, entries.size());
+        if (result >= 0) return result;
+        
+        return findFreeRun(length, 0, Math.min(rover + length, entries.size()));
+    }
+    
+    private int findFreeRun(int length, int from, int to) {
+        int start = freeSlots.nextSetBit(from);
+        
+        while (start >= 0 && start + length <= to) {
+            final int end = freeSlots.nextClearBit(start);
+            if (end - start >= length) return start;
+            start = freeSlots.nextSetBit(end);
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Frees the specified run of slots. The slots are marked as deleted
+     * in place and may be reused by later additions.
+     *
+     * @param first the first slot to free
+     * @param count the number of slots to free
+     */
+    public void freeSlots(int first, int count) {
+        for (int i=first; i < first + count; i++) {
+            if (freeSlots.get(i)) continue;
+            
+            final FatDirectoryEntry e = entries.get(i);
+            
+            if (e != null) {
+                e.detach(this);
+                entries.set(i, null);
+            }
+            
+            freeSlots.set(i);
+            usedSlots--;
+            clearSlot(i, FatDirectoryEntry.ENTRY_DELETED_MAGIC);
+        }
+        
+        trim();
+        setDirty();
     }
     
     public void removeEntry(FatDirectoryEntry entry) throws IOException {
         assert (entry != null);
         
-        this.entries.remove(entry);
-        changeSize(getSize());
+        final int slot = entry.getSlot(this);
+        if (slot < 0) return;
+        
+        freeSlots(slot, 1);
+    }
+    
+    /**
+     * Moves all used slots to the front of this directory, so all free slots
+     * are at the end. The relative order of the slots is preserved.
+     */
+    public void compact() {
+        int used = 0;
+        
+        for (int i=0; i < entries.size(); i++) {
+            if (freeSlots.get(i)) continue;
+            
+            if (used != i) {
+                final FatDirectoryEntry e = entries.get(i);
+                
+                if (e != null) {
+                    e.store(this, image, used);
+                } else {
+                    System.arraycopy(image, i * FatDirectoryEntry.SIZE,
+                            image, used * FatDirectoryEntry.SIZE,
+                            FatDirectoryEntry.SIZE);
+                }
+                
+                if (i == labelSlot) labelSlot = used;
+                entries.set(used, e);
+                markDirty(used);
+            }
+            
+            used++;
+        }
+        
+        while (entries.size() > used) {
+            final int last = entries.size() - 1;
+            entries.remove(last);
+            clearSlot(last, 0);
+        }
+        
+        this.freeSlots.clear();
+        this.rover = 0;
+        setDirty();
+    }
+    
+    /**
+     * Drops free slots from the end, so the end-of-directory marker is
+     * written right after the last used slot.
+     */
+    private void trim() {
+        int size = entries.size();
+        
+        while (size > 0 && freeSlots.get(size - 1)) {
+            entries.remove(--size);
+            freeSlots.clear(size);
+            clearSlot(size, 0);
+        }
     }
 
     /**
@@ -307,8 +970,33 @@ abstract class AbstractDirectory {
     }
 
     public FatDirectoryEntry createSub(Fat fat) throws IOException {
+        return createSub(fat, 0);
+    }
+    
+    /**
+     * Creates a new sub-directory whose cluster chain is allocated up front
+     * to hold at least the specified number of entries, in addition to the
+     * "." and ".." entries.
+     *
+     * @param fat the FAT to allocate the cluster chain from
+     * @param entryCount the number of entries to reserve room for
+     * @return the entry for the new directory, to be added to this directory
+     * @throws IOException on error creating the directory
+     * @throws IllegalArgumentException if the entry count is negative or
+     *      exceeds what a directory can hold
+     */
+    public FatDirectoryEntry createSub(Fat fat, int entryCount)
+            throws IOException {
+        
+        final long size = ((long) entryCount + 2) * FatDirectoryEntry.SIZE;
+        
+        if (entryCount < 0 || size > ClusterChainDirectory.MAX_SIZE) {
+            throw new IllegalArgumentException(
+                    "invalid entry count " + entryCount); //NOI18N
+        }
+        
         final ClusterChain chain = new ClusterChain(fat, false);
-        chain.setChainLength(1);
+        chain.setSize(Math.max(size, chain.getClusterSize()));
 
         final FatDirectoryEntry entry = FatDirectoryEntry.create(type, true);
         entry.setStartCluster(chain.getStartCluster());
@@ -361,24 +1049,31 @@ abstract class AbstractDirectory {
 
         if (label != null && label.length() > MAX_LABEL_LENGTH) throw new
                 IllegalArgumentException("label too long");
-
-        if (this.volumeLabel != null) {
-            if (label == null) {
-                changeSize(getSize() - 1);
-                this.volumeLabel = null;
-            } else {
-                ShortName.checkValidChars(label.getBytes(ShortName.ASCII));
-                this.volumeLabel = label;
+        
+        if (label == null) {
+            if (labelSlot >= 0) {
+                freeSlots.set(labelSlot);
+                clearSlot(labelSlot, FatDirectoryEntry.ENTRY_DELETED_MAGIC);
+                this.labelSlot = -1;
+                trim();
             }
         } else {
-            if (label != null) {
-                changeSize(getSize() + 1);
-                ShortName.checkValidChars(label.getBytes(ShortName.ASCII));
-                this.volumeLabel = label;
+            ShortName.checkValidChars(label.getBytes(ShortName.ASCII));
+            
+            if (labelSlot < 0) {
+                this.labelSlot = allocate(1);
             }
+            
+            FatDirectoryEntry.createVolumeLabel(type, label).write(
+                    ByteBuffer.wrap(image,
+                    labelSlot * FatDirectoryEntry.SIZE,
+                    FatDirectoryEntry.SIZE));
+            
+            markDirty(labelSlot);
         }
         
-        this.dirty = true;
+        this.volumeLabel = label;
+        setDirty();
     }
     
 }
@@ -19,10 +19,17 @@
 package de.waldheinz.fs.fat;
 
 import de.waldheinz.fs.AbstractFsObject;
+import de.waldheinz.fs.AsyncBlockDevice;
 import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
+import de.waldheinz.fs.TransferBlockDevice;
+import de.waldheinz.fs.VectoredBlockDevice;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
  * A chain of clusters as stored in a {@link Fat}.
@@ -31,6 +38,12 @@ import java.nio.ByteBuffer;
  */
 final class ClusterChain extends AbstractFsObject {
     
+    /**
+     * The size of the buffer used for transfers from or to channels when
+     * the device can not do them directly.
+     */
+    private final static int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    
     private final Fat fat;
     private final BlockDevice device;
     private final int clusterSize;
@@ -38,6 +51,19 @@ final class ClusterChain extends AbstractFsObject {
     
     private long startCluster;
     
+    /**
+     * The first cluster of each run of physically adjacent clusters in
+     * this chain, or {@code null} if the runs were not determined yet.
+     */
+    private long[] extentStarts;
+    
+    /**
+     * The chain index of the first cluster of each run. The element after
+     * the last run holds the length of the chain.
+     */
+    private int[] extentIndices;
+    private int extentCount;
+    
     /**
      * Creates a new {@code ClusterChain} that contains no clusters.
      *
@@ -143,8 +169,111 @@ final class ClusterChain extends AbstractFsObject {
     public int getChainLength() {
         if (getStartCluster() == 0) return 0;
         
-        final long[] chain = getFat().getChain(getStartCluster());
-        return chain.length;
+        loadExtents();
+        return extentIndices[extentCount];
+    }
+    
+    /**
+     * Returns the number of runs of physically adjacent clusters this
+     * {@code ClusterChain} is made of.
+     *
+     * @return the number of extents of this chain
+     */
+    int getExtentCount() {
+        loadExtents();
+        return extentCount;
+    }
+    
+    /**
+     * Returns the cluster at the specified position of this chain.
+     *
+     * @param index the 0-based position in this chain
+     * @return the cluster number at that position
+     */
+    long getCluster(int index) {
+        final int extent = findExtent(index);
+        return extentStarts[extent] + (index - extentIndices[extent]);
+    }
+    
+    /**
+     * Finds the extent holding the cluster at the specified chain position
+     * by a binary search over the extents.
+     *
+     * @param index the 0-based position in this chain
+     * @return the extent number
+     */
+    private int findExtent(int index) {
+        loadExtents();
+        
+        if (index < 0 || index >= extentIndices[extentCount]) {
+            throw new IndexOutOfBoundsException("cluster index " + index +
+                    " for chain of length " + extentIndices[extentCount]);
+        }
+        
+        int low = 0;
+        int high = extentCount - 1;
+        
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            
+            if (extentIndices[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Determines the extents of this chain by following it through the
+     * {@code Fat}, unless this was already done. The extents are kept up
+     * to date when this chain changes its length, but not when the chain
+     * is modified through another {@code ClusterChain} instance.
+     */
+    private void loadExtents() {
+        if (extentStarts != null) return;
+        
+        this.extentStarts = new long[4];
+        this.extentIndices = new int[5];
+        this.extentCount = 0;
+        
+        long cluster = startCluster;
+        
+        while (cluster > 0) {
+            appendCluster(cluster);
+            cluster = fat.getNextCluster(cluster);
+        }
+    }
+    
+    private void appendClusters(long[] clusters) {
+        for (long cluster : clusters) {
+            appendCluster(cluster);
+        }
+    }
+    
+    private void appendCluster(long cluster) {
+        final int length = extentIndices[extentCount];
+        
+        if (extentCount > 0 && cluster == extentStarts[extentCount - 1] +
+                (length - extentIndices[extentCount - 1])) {
+            
+            /* adjacent to the last extent */
+            
+            extentIndices[extentCount] = length + 1;
+            return;
+        }
+        
+        if (extentCount == extentStarts.length) {
+            extentStarts = Arrays.copyOf(extentStarts, extentCount * 2);
+            extentIndices = Arrays.copyOf(extentIndices, extentCount * 2 + 1);
+        }
+        
+        extentStarts[extentCount] = cluster;
+        extentIndices[extentCount] = length;
+        extentCount++;
+        extentIndices[extentCount] = length + 1;
     }
 
     /**
@@ -159,42 +288,56 @@ final class ClusterChain extends AbstractFsObject {
         if (nrClusters < 0) throw new IllegalArgumentException(
                 "negative cluster count"); //NOI18N
                 
+        loadExtents();
+        
+        final int length = extentIndices[extentCount];
+        
         if ((this.startCluster == 0) && (nrClusters == 0)) {
             /* nothing to do */
         } else if ((this.startCluster == 0) && (nrClusters > 0)) {
             final long[] chain = fat.allocNew(nrClusters);
             this.startCluster = chain[0];
-        } else {
-            final long[] chain = fat.getChain(startCluster);
+            appendClusters(chain);
+        } else if (nrClusters > length) {
+            /* grow the chain */
+            appendClusters(fat.allocAppend(
+                    getCluster(length - 1), nrClusters - length));
+        } else if (nrClusters < length) {
+            /* shrink the chain */
+            final int first = findExtent(nrClusters);
             
-            if (nrClusters != chain.length) {
-                if (nrClusters > chain.length) {
-                    /* grow the chain */
-                    int count = nrClusters - chain.length;
-                    
-                    while (count > 0) {
-                        fat.allocAppend(getStartCluster());
-                        count--;
-                    }
-                } else {
-                    /* shrink the chain */
-                    if (nrClusters > 0) {
-                        fat.setEof(chain[nrClusters - 1]);
-                        for (int i = nrClusters; i < chain.length; i++) {
-                            fat.setFree(chain[i]);
-                        }
-                    } else {
-                        for (int i=0; i < chain.length; i++) {
-                            fat.setFree(chain[i]);
-                        }
-                        
-                        this.startCluster = 0;
-                    }
+            for (int e = first; e < extentCount; e++) {
+                final int from = Math.max(nrClusters, extentIndices[e]);
+                final long base = extentStarts[e] - extentIndices[e];
+                
+                for (int i = from; i < extentIndices[e + 1]; i++) {
+                    fat.setFree(base + i);
                 }
             }
+            
+            if (nrClusters > 0) {
+                fat.setEof(getCluster(nrClusters - 1));
+                
+                this.extentCount = (nrClusters > extentIndices[first]) ?
+                    first + 1 : first;
+            } else {
+                this.startCluster = 0;
+                this.extentCount = 0;
+            }
+            
+            extentIndices[extentCount] = nrClusters;
         }
     }
     
+    /**
+     * Reads data from this cluster chain. Each run of physically adjacent
+     * clusters is read as one range, and all ranges are read at once if the
+     * device is an {@link AsyncBlockDevice} or a {@link VectoredBlockDevice}.
+     *
+     * @param offset the offset in this chain where to start reading
+     * @param dest the buffer to fill
+     * @throws IOException on read error
+     */
     public void readData(long offset, ByteBuffer dest)
             throws IOException {
 
@@ -204,31 +347,15 @@ final class ClusterChain extends AbstractFsObject {
             throw new EOFException("cannot read from empty cluster chain");
         }
         
-        final long[] chain = getFat().getChain(startCluster);
-        final BlockDevice dev = getDevice();
-
-        int chainIdx = (int) (offset / clusterSize);
+        if (len == 0) return;
         
-        if (offset % clusterSize != 0) {
-            int clusOfs = (int) (offset % clusterSize);
-            int size = Math.min(len,
-                    (int) (clusterSize - (offset % clusterSize)));
-            dest.limit(dest.position() + size);
-
-            dev.read(getDevOffset(chain[chainIdx], clusOfs), dest);
-            
-            len -= size;
-            chainIdx++;
-        }
-
-        while (len > 0) {
-            int size = Math.min(clusterSize, len);
-            dest.limit(dest.position() + size);
-
-            dev.read(getDevOffset(chain[chainIdx], 0), dest);
-
-            len -= size;
-            chainIdx++;
+        if (runLength(offset) >= len) {
+            device.read(getDevOffset(offset), dest);
+        } else {
+            final long[] devOffsets = new long[countRuns(offset, len)];
+            final ByteBuffer[] slices = slice(offset, dest, devOffsets);
+            DeviceUtils.read(device, devOffsets, slices);
+            dest.position(dest.limit());
         }
     }
     
@@ -237,7 +364,10 @@ final class ClusterChain extends AbstractFsObject {
      * can store the additional data. When this method returns without throwing
      * an exception, the buffer's {@link ByteBuffer#position() position} will
      * equal it's {@link ByteBuffer#limit() limit}, and the limit will not
-     * have changed. This is not guaranteed if writing fails.
+     * have changed. This is not guaranteed if writing fails. Each run of
+     * physically adjacent clusters is written as one range, and all ranges
+     * are written at once if the device is an {@link AsyncBlockDevice} or a
+     * {@link VectoredBlockDevice}.
      *
      * @param offset the offset where to write the first byte from the buffer
      * @param srcBuf the buffer to write to this {@code ClusterChain}
@@ -254,32 +384,224 @@ final class ClusterChain extends AbstractFsObject {
             setSize(minSize);
         }
         
-        final long[] chain = fat.getChain(getStartCluster());
-
-        int chainIdx = (int) (offset / clusterSize);
+        if (runLength(offset) >= len) {
+            device.write(getDevOffset(offset), srcBuf);
+        } else {
+            final long[] devOffsets = new long[countRuns(offset, len)];
+            final ByteBuffer[] slices = slice(offset, srcBuf, devOffsets);
+            DeviceUtils.write(device, devOffsets, slices);
+            srcBuf.position(srcBuf.limit());
+        }
+    }
+    
+    /**
+     * Transfers data from this chain to the given channel. If the device is
+     * a {@link TransferBlockDevice}, every run of physically adjacent
+     * clusters is handed to the device as a whole, otherwise the data is
+     * copied through a temporary buffer.
+     *
+     * @param offset the offset in this chain where to start
+     * @param count the number of bytes to transfer
+     * @param target the channel to write the data to
+     * @return the number of bytes transferred, which is less than
+     *      {@code count} only if the target accepted no more bytes
+     * @throws IOException on read or write error
+     * @throws EOFException if the range extends beyond the end of this chain
+     */
+    public long transferTo(long offset, long count,
+            WritableByteChannel target) throws IOException {
+        
+        if (offset + count > getLengthOnDisk()) throw new EOFException();
+        
+        long done = 0;
         
-        if (offset % clusterSize != 0) {
-            int clusOfs = (int) (offset % clusterSize);
-            int size = Math.min(len,
-                    (int) (clusterSize - (offset % clusterSize)));
-            srcBuf.limit(srcBuf.position() + size);
+        if (device instanceof TransferBlockDevice) {
+            final TransferBlockDevice tbd = (TransferBlockDevice) device;
             
-            device.write(getDevOffset(chain[chainIdx], clusOfs), srcBuf);
+            while (done < count) {
+                final long size = Math.min(
+                        count - done, runLength(offset + done));
+                final long n = tbd.transferTo(
+                        getDevOffset(offset + done), size, target);
+                
+                done += n;
+                if (n < size) break;
+            }
+        } else {
+            final ByteBuffer buf = ByteBuffer.allocate(
+                    (int) Math.min(count, TRANSFER_BUFFER_SIZE));
             
-            len -= size;
-            chainIdx++;
+            while (done < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - done));
+                readData(offset + done, buf);
+                buf.flip();
+                
+                while (buf.hasRemaining()) {
+                    if (target.write(buf) <= 0) return done + buf.position();
+                }
+                
+                done += buf.limit();
+            }
         }
         
+        return done;
+    }
+    
+    /**
+     * Transfers data from the given channel to this chain, which must
+     * already be large enough to hold {@code count} bytes at
+     * {@code offset}. If the device is a {@link TransferBlockDevice}, every
+     * run of physically adjacent clusters is handed to the device as a
+     * whole, otherwise the data is copied through a temporary buffer.
+     *
+     * @param src the channel to read the data from
+     * @param offset the offset in this chain where to store the first byte
+     * @param count the maximum number of bytes to transfer
+     * @return the number of bytes transferred, which is less than
+     *      {@code count} only if the source channel had no more bytes
+     * @throws IOException on read or write error
+     * @throws EOFException if the range extends beyond the end of this chain
+     */
+    public long transferFrom(ReadableByteChannel src, long offset,
+            long count) throws IOException {
+        
+        checkWritable();
+        
+        if (offset + count > getLengthOnDisk()) throw new EOFException();
+        
+        long done = 0;
+        
+        if (device instanceof TransferBlockDevice) {
+            final TransferBlockDevice tbd = (TransferBlockDevice) device;
+            
+            while (done < count) {
+                final long size = Math.min(
+                        count - done, runLength(offset + done));
+                final long n = tbd.transferFrom(
+                        src, getDevOffset(offset + done), size);
+                
+                done += n;
+                if (n < size) break;
+            }
+        } else {
+            final ByteBuffer buf = ByteBuffer.allocate(
+                    (int) Math.min(count, TRANSFER_BUFFER_SIZE));
+            
+            while (done < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - done));
+                final int size = buf.remaining();
+                
+                while (buf.hasRemaining()) {
+                    if (src.read(buf) <= 0) break;
+                }
+                
+                buf.flip();
+                final int n = buf.remaining();
+                writeData(offset + done, buf);
+                done += n;
+                
+                if (n < size) break;
+            }
+        }
+        
+        return done;
+    }
+    
+    /**
+     * Tells the device that the clusters of this chain hold metadata,
+     * which is the case if this chain stores a directory.
+     *
+     * @see DeviceUtils#markMetadata(de.waldheinz.fs.BlockDevice, long, long) 
+     */
+    void markMetadata() {
+        loadExtents();
+        
+        for (int i=0; i < extentCount; i++) {
+            DeviceUtils.markMetadata(device,
+                    getDevOffset(extentStarts[i], 0),
+                    (long) (extentIndices[i + 1] - extentIndices[i]) *
+                    clusterSize);
+        }
+    }
+    
+    /**
+     * Counts the runs of physically adjacent clusters touched by the
+     * specified range of this chain.
+     *
+     * @param offset the offset of the range in this chain
+     * @param len the length of the range
+     * @return the number of runs touched
+     */
+    private int countRuns(long offset, int len) {
+        int result = 0;
+        
         while (len > 0) {
-            int size = Math.min(clusterSize, len);
-            srcBuf.limit(srcBuf.position() + size);
-
-            device.write(getDevOffset(chain[chainIdx], 0), srcBuf);
-
+            final int size = Math.min(len, runLength(offset));
+            offset += size;
             len -= size;
-            chainIdx++;
+            result++;
         }
         
+        return result;
+    }
+    
+    /**
+     * Splits the remaining data of a buffer into one slice per run of
+     * physically adjacent clusters, without modifying the buffer itself.
+     *
+     * @param offset the offset in this chain corresponding to the buffer's
+     *      position
+     * @param buf the buffer to split
+     * @param devOffsets receives the device offset of each slice
+     * @return the slices
+     */
+    private ByteBuffer[] slice(long offset, ByteBuffer buf, long[] devOffsets) {
+        final ByteBuffer[] result = new ByteBuffer[devOffsets.length];
+        int pos = buf.position();
+        
+        for (int i=0; i < result.length; i++) {
+            final int size = Math.min(buf.limit() - pos, runLength(offset));
+            
+            devOffsets[i] = getDevOffset(offset);
+            result[i] = buf.duplicate();
+            result[i].limit(pos + size);
+            result[i].position(pos);
+            
+            offset += size;
+            pos += size;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the device offset for the specified offset in this chain.
+     *
+     * @param offset the offset in this chain
+     * @return the corresponding device offset
+     */
+    private long getDevOffset(long offset) {
+        return getDevOffset(getCluster((int) (offset / clusterSize)),
+                (int) (offset % clusterSize));
+    }
+    
+    /**
+     * Returns the number of bytes from the specified chain offset to the
+     * end of the run of physically adjacent clusters holding it.
+     *
+     * @param offset the offset in this chain
+     * @return the number of bytes that can be accessed contiguously,
+     *      capped at {@code Integer.MAX_VALUE}
+     */
+    private int runLength(long offset) {
+        final int index = (int) (offset / clusterSize);
+        final int extent = findExtent(index);
+        final long result = (long) (extentIndices[extent + 1] - index) *
+                clusterSize - (offset % clusterSize);
+        
+        return (int) Math.min(Integer.MAX_VALUE, result);
     }
 
     @Override
@@ -52,7 +52,10 @@ class ClusterChainDirectory extends AbstractDirectory {
                 (int)(chain.getLengthOnDisk() / FatDirectoryEntry.SIZE),
                 chain.isReadOnly(), isRoot);
         
-        this.chain = chain;   
+        this.chain = chain;
+        
+        /* the clusters only change when the directory is resized */
+        chain.markMetadata();
     }
     
     public static ClusterChainDirectory readRoot(
@@ -86,22 +89,28 @@ class ClusterChainDirectory extends AbstractDirectory {
     }
     
     @Override
-    protected final void read(ByteBuffer data) throws IOException {
-        this.chain.readData(0, data);
+    protected final void read(long offset, ByteBuffer data)
+            throws IOException {
+        
+        this.chain.readData(offset, data);
+    }
+    
+    /**
+     * Returns the cluster size, so directories are read one cluster at a
+     * time.
+     *
+     * @return the cluster size in bytes
+     */
+    @Override
+    protected final int getReadUnit() {
+        return chain.getClusterSize();
     }
 
     @Override
-    protected final void write(ByteBuffer data) throws IOException {
-        final int toWrite = data.remaining();
-        chain.writeData(0, data);
-        final long trueSize = chain.getLengthOnDisk();
+    protected final void write(long offset, ByteBuffer data)
+            throws IOException {
         
-        /* TODO: check if the code below is really needed */
-        if (trueSize > toWrite) {
-            final int rest = (int) (trueSize - toWrite);
-            final ByteBuffer fill = ByteBuffer.allocate(rest);
-            chain.writeData(toWrite, fill);
-        }
+        chain.writeData(offset, data);
     }
 
     /**
@@ -120,19 +129,54 @@ class ClusterChainDirectory extends AbstractDirectory {
         chain.setChainLength(0);
     }
     
+    /**
+     * Resizes the cluster chain to hold at least the specified number of
+     * entries. When growing, the capacity is at least doubled (but never
+     * beyond {@link #MAX_SIZE}) so that adding many entries one after
+     * another needs only a logarithmic number of allocations, which the
+     * {@link Fat} will try to place right after the existing chain.
+     * If there is not enough free space to double, only what is needed is
+     * allocated. Shrinking releases exactly the clusters that are no longer
+     * needed.
+     *
+     * @param entryCount {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     * @throws DirectoryFullException if the directory would grow beyond
+     *      {@link #MAX_SIZE}
+     */
     @Override
     protected final void changeSize(int entryCount)
             throws IOException, IllegalArgumentException {
 
         assert (entryCount >= 0);
 
-        final int size = entryCount * FatDirectoryEntry.SIZE;
+        final long size = (long) entryCount * FatDirectoryEntry.SIZE;
 
         if (size > MAX_SIZE) throw new DirectoryFullException(
                 "directory would grow beyond " + MAX_SIZE + " bytes",
                 getCapacity(), entryCount);
         
-        sizeChanged(chain.setSize(Math.max(size, chain.getClusterSize())));
+        final long current = chain.getLengthOnDisk();
+        final long min = Math.max(size, chain.getClusterSize());
+        
+        if (size > current) {
+            final long wanted = Math.max(min, Math.min(2 * current, MAX_SIZE));
+            final int cs = chain.getClusterSize();
+            final long needed = (wanted + cs - 1) / cs - chain.getChainLength();
+            
+            /* only double if there are enough free clusters to do so */
+            if (needed <= chain.getFat().getFreeClusterCount()) {
+                resize(wanted);
+                return;
+            }
+        }
+        
+        resize(min);
+    }
+    
+    private void resize(long size) throws IOException {
+        sizeChanged(chain.setSize(size));
+        chain.markMetadata();
     }
     
 }
@@ -20,12 +20,24 @@
 package de.waldheinz.fs.fat;
 
 import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * 
+ * The file allocation table. All public methods are safe to be called from
+ * several threads; entries can be read concurrently unless the table is
+ * {@link #isPaged() paged}, while allocating and freeing clusters is
+ * exclusive.
  *
  * @author Ewout Prangsma &lt;epr at jnode.org&gt;
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
@@ -37,7 +49,24 @@ final class Fat {
      */
     public final static int FIRST_CLUSTER = 2;
     
-    private final long[] entries;
+    /**
+     * The number of bytes read or written with a single device call when a
+     * paged FAT is processed as a whole.
+     */
+    private final static int RUN_SIZE = 1024 * 1024;
+    
+    /**
+     * The FAT exactly as it is stored on the device. This takes 1.5, 2 or
+     * 4 bytes per entry for FAT12, FAT16 and FAT32, respectively. This is
+     * {@code null} if the FAT is paged in through the {@link #cache}.
+     */
+    private final byte[] data;
+    
+    /**
+     * Holds the recently used sectors if this FAT is not kept in memory
+     * completely, or {@code null} if it is.
+     */
+    private final FatSectorCache cache;
     private final FatType fatType;
     private final int sectorCount;
     private final int sectorSize;
@@ -45,8 +74,30 @@ final class Fat {
     private final BootSector bs;
     private final long offset;
     private final int lastClusterIndex;
+    private final int entryCount;
     
+    /**
+     * Remembers which sectors of this FAT were modified since the last
+     * {@link #flush()}, unless the FAT is paged.
+     */
+    private final BitSet dirtySectors;
+    
+    /**
+     * Has a bit set for every free cluster, or is {@code null} if it was not
+     * needed yet.
+     *
+     * @see #freeMap() 
+     */
+    private long[] freeMap;
+    private int freeCount;
     private int lastAllocatedCluster;
+    private long lastFlushWritten;
+    private long lastFlushSkipped;
+    
+    /**
+     * Guards all mutable state of this FAT, including the sector cache.
+     */
+    private final ReentrantReadWriteLock lock;
 
     /**
      * Reads a {@code Fat} as specified by a {@code BootSector}.
@@ -61,6 +112,29 @@ final class Fat {
     public static Fat read(BootSector bs, int fatNr)
             throws IOException, IllegalArgumentException {
         
+        return read(bs, fatNr, 0);
+    }
+    
+    /**
+     * Reads a {@code Fat} as specified by a {@code BootSector}, keeping at
+     * most the specified number of FAT sectors in memory. The sectors are
+     * read from the device when they are first accessed, and modified
+     * sectors are written to all FAT copies when they are evicted or the
+     * {@code Fat} is {@link #flush() flushed}. FAT12 tables, and tables
+     * that would fit into the cache anyway, are always read completely.
+     *
+     * @param bs the boot sector specifying the {@code Fat} layout
+     * @param fatNr the number of the {@code Fat} to read
+     * @param maxCachedSectors the maximum number of FAT sectors to hold in
+     *      memory, or 0 to read the whole FAT up front
+     * @return the {@code Fat} that was read
+     * @throws IOException on read error
+     * @throws IllegalArgumentException if {@code fatNr} is greater than
+     *      {@link BootSector#getNrFats()}
+     */
+    public static Fat read(BootSector bs, int fatNr, int maxCachedSectors)
+            throws IOException, IllegalArgumentException {
+        
         if (fatNr > bs.getNrFats()) {
             throw new IllegalArgumentException(
                     "boot sector says there are only " + bs.getNrFats() +
@@ -68,8 +142,12 @@ final class Fat {
         }
         
         final long fatOffset = bs.getFatOffset(fatNr);
-        final Fat result = new Fat(bs, fatOffset);
-        result.read();
+        final Fat result = new Fat(bs, fatOffset, maxCachedSectors);
+        
+        if (!result.isPaged()) {
+            result.read();
+        }
+        
         return result;
     }
     
@@ -93,9 +171,9 @@ final class Fat {
         }
         
         final long fatOffset = bs.getFatOffset(fatNr);
-        final Fat result = new Fat(bs, fatOffset);
+        final Fat result = new Fat(bs, fatOffset, 0);
 
-        if (bs.getDataClusterCount() > result.entries.length)
+        if (bs.getDataClusterCount() > result.entryCount)
             throw new IOException("FAT too small for device");
             
         result.init(bs.getMediumDescriptor());
@@ -103,7 +181,9 @@ final class Fat {
         return result;
     }
     
-    private Fat(BootSector bs, long offset) throws IOException {
+    private Fat(BootSector bs, long offset, int maxCachedSectors)
+            throws IOException {
+        
         this.bs = bs;
         this.fatType = bs.getFatType();
         if (bs.getSectorsPerFat() > Integer.MAX_VALUE)
@@ -122,6 +202,8 @@ final class Fat {
         this.device = bs.getDevice();
         this.offset = offset;
         this.lastAllocatedCluster = FIRST_CLUSTER;
+        this.dirtySectors = new BitSet(sectorCount);
+        this.lock = new ReentrantReadWriteLock();
         
         if (bs.getDataClusterCount() > Integer.MAX_VALUE) throw
                 new IOException("too many data clusters");
@@ -131,12 +213,30 @@ final class Fat {
         
         this.lastClusterIndex = (int) bs.getDataClusterCount() + FIRST_CLUSTER;
 
-        entries = new long[(int) ((sectorCount * sectorSize) /
-                fatType.getEntrySize())];
-                
-        if (lastClusterIndex > entries.length) throw new IOException(
+        final long fatSize = (long) sectorCount * sectorSize;
+        
+        if (fatSize > Integer.MAX_VALUE) throw new IOException(
+                "FAT too large (" + fatSize + " bytes)");
+        
+        for (int i=0; i < bs.getNrFats(); i++) {
+            DeviceUtils.markMetadata(device, bs.getFatOffset(i), fatSize);
+        }
+        
+        if (maxCachedSectors <= 0 || maxCachedSectors >= sectorCount ||
+                fatType == FatType.FAT12) {
+            
+            this.data = new byte[(int) fatSize];
+            this.cache = null;
+        } else {
+            this.data = null;
+            this.cache = new FatSectorCache(bs, offset, maxCachedSectors);
+        }
+        
+        this.entryCount = (int) (fatSize / fatType.getEntrySize());
+        
+        if (lastClusterIndex > entryCount) throw new IOException(
             "file system has " + lastClusterIndex +
-            "clusters but only " + entries.length + " FAT entries");
+            "clusters but only " + entryCount + " FAT entries");
     }
     
     public FatType getFatType() {
@@ -161,11 +261,21 @@ final class Fat {
         return device;
     }
     
+    /**
+     * Returns if this {@code Fat} reads its sectors on demand instead of
+     * holding the whole table in memory.
+     *
+     * @return if this FAT is paged
+     * @see #read(de.waldheinz.fs.fat.BootSector, int, int) 
+     */
+    public boolean isPaged() {
+        return (this.cache != null);
+    }
+    
     private void init(int mediumDescriptor) {
-        entries[0] = 
-                (mediumDescriptor & 0xFF) |
-                (0xFFFFF00L & fatType.getBitMask());
-        entries[1] = fatType.getEofMarker();
+        fatType.writeEntry(data, 0, (mediumDescriptor & 0xFF) |
+                (0xFFFFF00L & fatType.getBitMask()));
+        fatType.writeEntry(data, 1, fatType.getEofMarker());
     }
     
     /**
@@ -175,31 +285,127 @@ final class Fat {
      * @throws IOException on read error
      */
     private void read() throws IOException {
-        final byte[] data = new byte[sectorCount * sectorSize];
         device.read(offset, ByteBuffer.wrap(data));
-
-        for (int i = 0; i < entries.length; i++)
-            entries[i] = fatType.readEntry(data, i);
     }
     
     public void write() throws IOException {
         this.writeCopy(offset);
     }
     
+    /**
+     * Writes the sectors of this FAT which were modified since the last
+     * flush to all FAT copies as specified by the {@link BootSector}.
+     * Unmodified sectors are not written.
+     *
+     * @throws IOException on write error
+     * @see #getLastFlushBytesWritten()
+     * @see #getLastFlushBytesSkipped()
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            final int nrFats = bs.getNrFats();
+            long written = isPaged() ? cache.flush() : 0;
+            
+            /* gather the dirty runs of all copies into a single device call */
+            final List<Integer> runs = new ArrayList<Integer>();
+            int first = dirtySectors.nextSetBit(0);
+            
+            while (first >= 0) {
+                final int end = dirtySectors.nextClearBit(first);
+                runs.add(first);
+                runs.add(end);
+                first = dirtySectors.nextSetBit(end);
+            }
+            
+            final int runCount = runs.size() / 2;
+            final long[] offsets = new long[nrFats * runCount];
+            final ByteBuffer[] bufs = new ByteBuffer[offsets.length];
+            
+            for (int i=0; i < nrFats; i++) {
+                for (int r=0; r < runCount; r++) {
+                    final int from = runs.get(2 * r) * sectorSize;
+                    final int length = runs.get(2 * r + 1) * sectorSize - from;
+            
+                    offsets[i * runCount + r] = bs.getFatOffset(i) + from;
+                    bufs[i * runCount + r] = ByteBuffer.wrap(data, from, length);
+                    written += length;
+                }
+            }
+            
+            if (offsets.length > 0) {
+                DeviceUtils.write(device, offsets, bufs);
+            }
+            
+            dirtySectors.clear();
+            this.lastFlushWritten = written;
+            this.lastFlushSkipped =
+                    (long) nrFats * sectorCount * sectorSize - written;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of bytes that were written to the device by the
+     * last call to {@link #flush()}, accounting for all FAT copies.
+     *
+     * @return the number of bytes written by the last flush
+     */
+    public long getLastFlushBytesWritten() {
+        lock.readLock().lock();
+        try {
+            return this.lastFlushWritten;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of bytes the last call to {@link #flush()} did not
+     * have to write because the sectors holding them were unmodified,
+     * accounting for all FAT copies.
+     *
+     * @return the number of bytes skipped by the last flush
+     */
+    public long getLastFlushBytesSkipped() {
+        lock.readLock().lock();
+        try {
+            return this.lastFlushSkipped;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
     /**
      * Write the contents of this FAT to the given device at the given offset.
+     * This always writes the whole FAT, regardless of which sectors were
+     * modified.
      * 
      * @param offset the device offset where to write the FAT copy
      * @throws IOException on write error
+     * @see #flush() 
      */
     public void writeCopy(long offset) throws IOException {
-        final byte[] data = new byte[sectorCount * sectorSize];
-        
-        for (int index = 0; index < entries.length; index++) {
-            fatType.writeEntry(data, index, entries[index]);
+        lock.writeLock().lock();
+        try {
+            if (!isPaged()) {
+                device.write(offset, ByteBuffer.wrap(data));
+                return;
+            }
+            
+            final int perRun = Math.max(1, RUN_SIZE / sectorSize);
+            final ByteBuffer run = ByteBuffer.allocate(perRun * sectorSize);
+            
+            for (int i=0; i < sectorCount; i += perRun) {
+                run.clear();
+                cache.readSectors(i, Math.min(perRun, sectorCount - i), run);
+                run.flip();
+                device.write(offset + (long) i * sectorSize, run);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        
-        device.write(offset, ByteBuffer.wrap(data));
     }
     
     /**
@@ -208,7 +414,7 @@ final class Fat {
      * @return int
      */
     public int getMediumDescriptor() {
-        return (int) (entries[0] & 0xFF);
+        return (int) (getEntry(0) & 0xFF);
     }
     
     /**
@@ -218,7 +424,21 @@ final class Fat {
      * @return long
      */
     public long getEntry(int index) {
-        return entries[index];
+        entryLock().lock();
+        try {
+            if (!isPaged()) {
+                return fatType.readEntry(data, index);
+            }
+            
+            try {
+                return cache.getEntry(index);
+            } catch (IOException ex) {
+                throw new IllegalStateException(
+                        "could not read FAT entry " + index, ex);
+            }
+        } finally {
+            entryLock().unlock();
+        }
     }
 
     /**
@@ -227,28 +447,38 @@ final class Fat {
      * @return the last seen free cluster
      */
     public int getLastFreeCluster() {
-        return this.lastAllocatedCluster;
+        lock.readLock().lock();
+        try {
+            return this.lastAllocatedCluster;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     public long[] getChain(long startCluster) {
-        testCluster(startCluster);
-        // Count the chain first
-        int count = 1;
-        long cluster = startCluster;
-        while (!isEofCluster(entries[(int) cluster])) {
-            count++;
-            cluster = entries[(int) cluster];
-        }
-        // Now create the chain
-        long[] chain = new long[count];
-        chain[0] = startCluster;
-        cluster = startCluster;
-        int i = 0;
-        while (!isEofCluster(entries[(int) cluster])) {
-            cluster = entries[(int) cluster];
-            chain[++i] = cluster;
-        }
-        return chain;
+        entryLock().lock();
+        try {
+            testCluster(startCluster);
+            // Count the chain first
+            int count = 1;
+            long cluster = startCluster;
+            while (!isEofCluster(getEntry((int) cluster))) {
+                count++;
+                cluster = getEntry((int) cluster);
+            }
+            // Now create the chain
+            long[] chain = new long[count];
+            chain[0] = startCluster;
+            cluster = startCluster;
+            int i = 0;
+            while (!isEofCluster(getEntry((int) cluster))) {
+                cluster = getEntry((int) cluster);
+                chain[++i] = cluster;
+            }
+            return chain;
+        } finally {
+            entryLock().unlock();
+        }
     }
 
     /**
@@ -258,12 +488,17 @@ final class Fat {
      * @return long The next cluster number or -1 which means eof.
      */
     public long getNextCluster(long cluster) {
-        testCluster(cluster);
-        long entry = entries[(int) cluster];
-        if (isEofCluster(entry)) {
-            return -1;
-        } else {
-            return entry;
+        entryLock().lock();
+        try {
+            testCluster(cluster);
+            long entry = getEntry((int) cluster);
+            if (isEofCluster(entry)) {
+                return -1;
+            } else {
+                return entry;
+            }
+        } finally {
+            entryLock().unlock();
         }
     }
 
@@ -274,38 +509,29 @@ final class Fat {
      * @throws IOException if there are no free clusters
      */
     public long allocNew() throws IOException {
-
-        int i;
-        int entryIndex = -1;
-
-        for (i = lastAllocatedCluster; i < lastClusterIndex; i++) {
-            if (isFreeCluster(i)) {
-                entryIndex = i;
-                break;
+        lock.writeLock().lock();
+        try {
+            int entryIndex = nextFreeCluster(lastAllocatedCluster);
+            
+            if (entryIndex < 0) {
+                entryIndex = nextFreeCluster(FIRST_CLUSTER);
             }
-        }
-        
-        if (entryIndex < 0) {
-            for (i = FIRST_CLUSTER; i < lastAllocatedCluster; i++) {
-                if (isFreeCluster(i)) {
-                    entryIndex = i;
-                    break;
-                }
+            
+            if (entryIndex < 0) {
+                throw new IOException(
+                        "FAT Full (" + (lastClusterIndex - FIRST_CLUSTER)
+                        + ", " + lastAllocatedCluster + ")"); //NOI18N
             }
+            
+            setEntry(entryIndex, fatType.getEofMarker());
+            lastAllocatedCluster = entryIndex % lastClusterIndex;
+            if (lastAllocatedCluster < FIRST_CLUSTER)
+                lastAllocatedCluster = FIRST_CLUSTER;
+            
+            return entryIndex;
+        } finally {
+            lock.writeLock().unlock();
         }
-        
-        if (entryIndex < 0) {
-            throw new IOException(
-                    "FAT Full (" + (lastClusterIndex - FIRST_CLUSTER)
-                    + ", " + i + ")"); //NOI18N
-        }
-        
-        entries[entryIndex] = fatType.getEofMarker();
-        lastAllocatedCluster = entryIndex % lastClusterIndex;
-        if (lastAllocatedCluster < FIRST_CLUSTER)
-            lastAllocatedCluster = FIRST_CLUSTER;
-        
-        return entryIndex;
     }
     
     /**
@@ -320,13 +546,135 @@ final class Fat {
      * @see BootSector#getDataClusterCount() 
      */
     public int getFreeClusterCount() {
-        int result = 0;
-
-        for (int i=FIRST_CLUSTER; i < lastClusterIndex; i++) {
-            if (isFreeCluster(i)) result++;
+        lock.writeLock().lock();
+        try {
+            freeMap();
+            
+            return this.freeCount;
+        } finally {
+            lock.writeLock().unlock();
         }
-
-        return result;
+    }
+    
+    /**
+     * Returns if the free cluster count is known without scanning the
+     * table. This is always the case after the first cluster was allocated
+     * or freed, but may not be the case for a {@link #isPaged() paged}
+     * FAT that was not modified yet.
+     *
+     * @return if {@link #getFreeClusterCount()} can answer without a scan
+     */
+    public boolean isFreeClusterCountKnown() {
+        lock.readLock().lock();
+        try {
+            return (this.freeMap != null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the first free cluster at or after the specified cluster.
+     *
+     * @param from the cluster where to start searching
+     * @return the free cluster that was found, or -1 if there is none
+     */
+    private int nextFreeCluster(int from) {
+        final long[] map = freeMap();
+        int word = from >>> 6;
+        
+        if (word >= map.length) return -1;
+        
+        long bits = map[word] & (-1L << (from & 63));
+        
+        while (bits == 0) {
+            if (++word == map.length) return -1;
+            bits = map[word];
+        }
+        
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+    
+    /**
+     * Returns the first cluster at or after the specified cluster which is
+     * not free, or the index after the last data cluster if there is none.
+     *
+     * @param from the cluster where to start searching
+     * @return the next cluster that is in use
+     */
+    private int nextUsedCluster(int from) {
+        final long[] map = freeMap();
+        int word = from >>> 6;
+        
+        if (word >= map.length) return lastClusterIndex;
+        
+        long bits = ~map[word] & (-1L << (from & 63));
+        
+        while (bits == 0) {
+            if (++word == map.length) return lastClusterIndex;
+            bits = ~map[word];
+        }
+        
+        return Math.min(lastClusterIndex,
+                (word << 6) + Long.numberOfTrailingZeros(bits));
+    }
+    
+    /**
+     * Returns the bitmap of free clusters, creating it on first use. Bit
+     * {@code n} of the map is set if cluster {@code n} is free. Only the
+     * clusters from {@link #FIRST_CLUSTER} up to the last data cluster
+     * are considered, so bits outside this range are never set.
+     *
+     * @return the free cluster map
+     */
+    private long[] freeMap() {
+        if (this.freeMap != null) return this.freeMap;
+        
+        final long[] map = new long[(lastClusterIndex + 63) >>> 6];
+        int count = 0;
+        
+        if (!isPaged()) {
+            for (int i=FIRST_CLUSTER; i < lastClusterIndex; i++) {
+                if (fatType.readEntry(data, i) == 0) {
+                    map[i >>> 6] |= 1L << i;
+                    count++;
+                }
+            }
+        } else {
+            /* read large runs of sectors without caching them */
+            
+            final int perSector = (int) (sectorSize / fatType.getEntrySize());
+            final int perRun = Math.max(1, RUN_SIZE / sectorSize);
+            final int used = Math.min(sectorCount,
+                    (lastClusterIndex + perSector - 1) / perSector);
+            final byte[] run = new byte[perRun * sectorSize];
+            
+            for (int s = 0; s < used; s += perRun) {
+                final int n = Math.min(perRun, used - s);
+                
+                try {
+                    cache.readSectors(s, n, ByteBuffer.wrap(run));
+                } catch (IOException ex) {
+                    throw new IllegalStateException(
+                            "could not read FAT sectors from " + s, ex);
+                }
+                
+                final int base = s * perSector;
+                final int end =
+                        Math.min(lastClusterIndex, base + n * perSector);
+                
+                for (int i = Math.max(FIRST_CLUSTER, base); i < end; i++) {
+                    if (fatType.readEntry(run, i - base) == 0) {
+                        map[i >>> 6] |= 1L << i;
+                        count++;
+                    }
+                }
+            }
+        }
+        
+        this.freeCount = count;
+        this.freeMap = map;
+        return map;
     }
 
     /**
@@ -335,25 +683,193 @@ final class Fat {
      * @return
      */
     public int getLastAllocatedCluster() {
-        return this.lastAllocatedCluster;
+        lock.readLock().lock();
+        try {
+            return this.lastAllocatedCluster;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
-     * Allocate a series of clusters for a new file.
+     * Allocate a series of clusters for a new file. The clusters are
+     * taken from a single run of free clusters if possible, and from as few
+     * runs as possible otherwise.
      * 
      * @param nrClusters when number of clusters to allocate
-     * @return long
-     * @throws IOException if there are no free clusters
+     * @return the allocated clusters in chain order
+     * @throws IOException if there are not enough free clusters
      */
     public long[] allocNew(int nrClusters) throws IOException {
-        final long rc[] = new long[nrClusters];
+        lock.writeLock().lock();
+        try {
+            return allocChain(nrClusters, -1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Allocates a series of clusters and appends them to a chain. Clusters
+     * directly following the current end of the chain are preferred, then
+     * a single run of free clusters, then as few runs as possible.
+     *
+     * @param cluster a cluster from the chain where the new clusters should
+     *      be appended
+     * @param nrClusters the number of clusters to append
+     * @return the appended clusters in chain order
+     * @throws IOException if there are not enough free clusters
+     */
+    public long[] allocAppend(long cluster, int nrClusters)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            testCluster(cluster);
+            
+            while (!isEofCluster(getEntry((int) cluster))) {
+                cluster = getEntry((int) cluster);
+            }
+            
+            final long[] result = allocChain(nrClusters, (int) cluster + 1);
+            setEntry((int) cluster, result[0]);
+            
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Allocates and links a chain of free clusters. Nothing is allocated
+     * if there are not enough free clusters.
+     *
+     * @param nrClusters the number of clusters to allocate
+     * @param preferred the cluster where the chain should preferably start,
+     *      or -1 for no preference
+     * @return the allocated clusters in chain order
+     * @throws IOException if there are not enough free clusters
+     */
+    private long[] allocChain(int nrClusters, int preferred)
+            throws IOException {
+        
+        if (nrClusters < 1) throw new IllegalArgumentException(
+                "invalid cluster count " + nrClusters); //NOI18N
+        
+        if (getFreeClusterCount() < nrClusters) {
+            throw new IOException(
+                    "FAT Full (" + (lastClusterIndex - FIRST_CLUSTER)
+                    + ", " + nrClusters + ")"); //NOI18N
+        }
+        
+        final long[] result = new long[nrClusters];
+        int idx = 0;
+        
+        for (int[] run : findFreeRuns(nrClusters, preferred)) {
+            for (int i=0; i < run[1]; i++) {
+                result[idx++] = run[0] + i;
+            }
+        }
+        
+        for (int i=0; i < nrClusters - 1; i++) {
+            setEntry((int) result[i], result[i + 1]);
+        }
+        
+        setEntry((int) result[nrClusters - 1], fatType.getEofMarker());
+        lastAllocatedCluster = (int) result[nrClusters - 1];
+        
+        return result;
+    }
+    
+    /**
+     * Finds runs of free clusters holding exactly the specified number of
+     * clusters in total. Each run is returned as an array holding the first
+     * cluster and the length of the run.
+     *
+     * @param nrClusters the number of clusters to find, must not exceed the
+     *      number of free clusters
+     * @param preferred the preferred first cluster, or -1
+     * @return the runs, ordered by their first cluster
+     */
+    private List<int[]> findFreeRuns(int nrClusters, int preferred) {
+        
+        /* continue an existing chain in place */
+        
+        if (preferred >= FIRST_CLUSTER && preferred < lastClusterIndex &&
+                nextUsedCluster(preferred) - preferred >= nrClusters) {
+            
+            return Collections.singletonList(
+                    new int[] { preferred, nrClusters });
+        }
+        
+        /* first fit, starting where the last allocation stopped */
+        
+        int start = nextFreeCluster(lastAllocatedCluster);
+        
+        if (start < 0) {
+            start = nextFreeCluster(FIRST_CLUSTER);
+        }
+        
+        final int first = start;
+        boolean wrapped = false;
+        
+        while (start >= 0 && !(wrapped && start >= first)) {
+            final int end = nextUsedCluster(start);
+            
+            if (end - start >= nrClusters) {
+                return Collections.singletonList(
+                        new int[] { start, nrClusters });
+            }
+            
+            start = nextFreeCluster(end);
+            
+            if (start < 0 && !wrapped) {
+                wrapped = true;
+                start = nextFreeCluster(FIRST_CLUSTER);
+            }
+        }
         
-        rc[0] = allocNew();
-        for (int i = 1; i < nrClusters; i++) {
-            rc[i] = allocAppend(rc[i - 1]);
+        /* no run is large enough, so use the fewest (largest) runs */
+        
+        final PriorityQueue<int[]> largest = new PriorityQueue<int[]>(
+                16, new Comparator<int[]>() {
+            
+            @Override
+            public int compare(int[] r1, int[] r2) {
+                return r1[1] - r2[1];
+            }
+        });
+        
+        long total = 0;
+        
+        for (start = nextFreeCluster(FIRST_CLUSTER); start >= 0;
+                start = nextFreeCluster(nextUsedCluster(start))) {
+            
+            final int[] run = new int[] {
+                start, nextUsedCluster(start) - start };
+            
+            largest.add(run);
+            total += run[1];
+            
+            while (total - largest.peek()[1] >= nrClusters) {
+                total -= largest.poll()[1];
+            }
         }
         
-        return rc;
+        /* the smallest run only contributes what is missing */
+        
+        largest.peek()[1] -= (int) (total - nrClusters);
+        
+        final List<int[]> result = new ArrayList<int[]>(largest);
+        
+        Collections.sort(result, new Comparator<int[]>() {
+            
+            @Override
+            public int compare(int[] r1, int[] r2) {
+                return r1[0] - r2[0];
+            }
+        });
+        
+        return result;
     }
     
     /**
@@ -366,27 +882,96 @@ final class Fat {
      */
     public long allocAppend(long cluster)
             throws IOException {
-        
-        testCluster(cluster);
-        
-        while (!isEofCluster(entries[(int) cluster])) {
-            cluster = entries[(int) cluster];
+        lock.writeLock().lock();
+        try {
+            testCluster(cluster);
+            
+            while (!isEofCluster(getEntry((int) cluster))) {
+                cluster = getEntry((int) cluster);
+            }
+            
+            long newCluster = allocNew();
+            setEntry((int) cluster, newCluster);
+            
+            return newCluster;
+        } finally {
+            lock.writeLock().unlock();
         }
-        
-        long newCluster = allocNew();
-        entries[(int) cluster] = newCluster;
-
-        return newCluster;
     }
 
     public void setEof(long cluster) {
-        testCluster(cluster);
-        entries[(int) cluster] = fatType.getEofMarker();
+        lock.writeLock().lock();
+        try {
+            testCluster(cluster);
+            setEntry((int) cluster, fatType.getEofMarker());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void setFree(long cluster) {
-        testCluster(cluster);
-        entries[(int) cluster] = 0;
+        lock.writeLock().lock();
+        try {
+            testCluster(cluster);
+            setEntry((int) cluster, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the lock to hold while reading entries. Reading a paged FAT
+     * changes the state of the sector cache and thus requires exclusive
+     * access.
+     *
+     * @return the lock to use for reading entries
+     */
+    private Lock entryLock() {
+        return isPaged() ? lock.writeLock() : lock.readLock();
+    }
+    
+    /**
+     * Updates an entry of this FAT and remembers the sectors holding it
+     * as being dirty.
+     *
+     * @param index the index of the entry to update
+     * @param value the new value for the entry
+     */
+    private void setEntry(int index, long value) {
+        final long[] map = freeMap();
+        
+        if (index >= FIRST_CLUSTER && index < lastClusterIndex) {
+            final boolean wasFree = (getEntry(index) == 0);
+            
+            if (wasFree && value != 0) {
+                map[index >>> 6] &= ~(1L << index);
+                freeCount--;
+            } else if (!wasFree && value == 0) {
+                map[index >>> 6] |= 1L << index;
+                freeCount++;
+            }
+        }
+        
+        if (isPaged()) {
+            try {
+                cache.setEntry(index, value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(
+                        "could not update FAT entry " + index, ex);
+            }
+            
+            return;
+        }
+        
+        fatType.writeEntry(data, index, value);
+        
+        final double entrySize = fatType.getEntrySize();
+        final long firstByte = (long) (index * entrySize);
+        final long lastByte = firstByte + (long) Math.ceil(entrySize) - 1;
+        
+        dirtySectors.set(
+                (int) (firstByte / sectorSize),
+                (int) (lastByte / sectorSize) + 1);
     }
     
     @Override
@@ -398,7 +983,14 @@ final class Fat {
         if (this.sectorCount != other.sectorCount) return false;
         if (this.sectorSize != other.sectorSize) return false;
         if (this.lastClusterIndex != other.lastClusterIndex) return false;
-        if (!Arrays.equals(this.entries, other.entries)) return false;
+        
+        if (this.isPaged() || other.isPaged()) {
+            for (int i=0; i < entryCount; i++) {
+                if (this.getEntry(i) != other.getEntry(i)) return false;
+            }
+        } else if (!Arrays.equals(this.data, other.data)) {
+            return false;
+        }
         
         return (this.getMediumDescriptor() == other.getMediumDescriptor());
     }
@@ -406,7 +998,6 @@ final class Fat {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 23 * hash + Arrays.hashCode(this.entries);
         hash = 23 * hash + this.fatType.hashCode();
         hash = 23 * hash + this.sectorCount;
         hash = 23 * hash + this.sectorSize;
@@ -422,7 +1013,7 @@ final class Fat {
      */
     protected boolean isFreeCluster(long entry) {
         if (entry > Integer.MAX_VALUE) throw new IllegalArgumentException();
-        return (entries[(int) entry] == 0);
+        return (getEntry((int) entry) == 0);
     }
     
     /**
@@ -446,7 +1037,7 @@ final class Fat {
     }
     
     protected void testCluster(long cluster) throws IllegalArgumentException {
-        if ((cluster < FIRST_CLUSTER) || (cluster >= entries.length)) {
+        if ((cluster < FIRST_CLUSTER) || (cluster >= entryCount)) {
             throw new IllegalArgumentException(
                     "invalid cluster value " + cluster);
         }
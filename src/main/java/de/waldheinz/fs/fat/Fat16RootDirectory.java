@@ -19,6 +19,7 @@
 package de.waldheinz.fs.fat;
 
 import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -39,6 +40,10 @@ final class Fat16RootDirectory extends AbstractDirectory {
         
         this.deviceOffset = bs.getRootDirOffset();
         this.device = bs.getDevice();
+        
+        /* the root directory region never moves or changes its size */
+        DeviceUtils.markMetadata(device, deviceOffset,
+                (long) bs.getRootDirEntryCount() * FatDirectoryEntry.SIZE);
     }
     
     /**
@@ -76,13 +81,13 @@ final class Fat16RootDirectory extends AbstractDirectory {
     }
     
     @Override
-    protected void read(ByteBuffer data) throws IOException {
-        this.device.read(deviceOffset, data);
+    protected void read(long offset, ByteBuffer data) throws IOException {
+        this.device.read(deviceOffset + offset, data);
     }
 
     @Override
-    protected void write(ByteBuffer data) throws IOException {
-        this.device.write(deviceOffset, data);
+    protected void write(long offset, ByteBuffer data) throws IOException {
+        this.device.write(deviceOffset + offset, data);
     }
 
     /**
@@ -23,7 +23,9 @@ import de.waldheinz.fs.AbstractFsObject;
 import java.nio.ByteBuffer;
 
 /**
- * 
+ * A single 32 byte entry of a FAT directory. While an entry is stored in a
+ * directory it is a view of its slot in the directory's buffer, so reading
+ * a directory does not copy every entry into an array of its own.
  *
  * @author Ewout Prangsma &lt;epr at jnode.org&gt;
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
@@ -60,14 +62,32 @@ final class FatDirectoryEntry extends AbstractFsObject {
      */
     public static final int ENTRY_DELETED_MAGIC = 0xe5;
     
-    private final byte[] data;
+    /**
+     * The array holding the bytes of this entry, starting at
+     * {@link #offset}. This is the buffer of the directory while this
+     * entry is stored there.
+     */
+    private byte[] data;
+    private int offset;
     private final FatType type;
     private boolean dirty;
     
+    /**
+     * The directory this entry is currently stored in and the index of it's
+     * slot there, which are told about modifications to this entry.
+     */
+    private AbstractDirectory directory;
+    private int slot;
+    
     FatDirectoryEntry(FatType fs, byte[] data, boolean readOnly) {
+        this(fs, data, 0, readOnly);
+    }
+    
+    FatDirectoryEntry(FatType fs, byte[] data, int offset, boolean readOnly) {
         super(readOnly);
         
         this.data = data;
+        this.offset = offset;
         this.type = fs;
     }
     
@@ -105,6 +125,20 @@ final class FatDirectoryEntry extends AbstractFsObject {
         return new FatDirectoryEntry(type, data, readOnly);
     }
 
+    /**
+     * Writes an entry which is marked as deleted to the specified buffer.
+     *
+     * @param buff the buffer to write to
+     * @see #ENTRY_DELETED_MAGIC
+     */
+    public static void writeDeletedEntry(ByteBuffer buff) {
+        buff.put((byte) ENTRY_DELETED_MAGIC);
+        
+        for (int i=1; i < SIZE; i++) {
+            buff.put((byte) 0);
+        }
+    }
+    
     public static void writeNullEntry(ByteBuffer buff) {
         for (int i=0; i < SIZE; i++) {
             buff.put((byte) 0);
@@ -117,12 +151,102 @@ final class FatDirectoryEntry extends AbstractFsObject {
      *
      * @return if this is a volume label entry
      */
-    public boolean isVolumeLabel() {
-        if (isLfnEntry()) return false;
-        else return ((getFlags() & (F_DIRECTORY | F_VOLUME_ID)) == F_VOLUME_ID);
+    public synchronized boolean isVolumeLabel() {
+        return isVolumeLabel(data, offset);
+    }
+    
+    /**
+     * Decides if the specified raw slot holds a "volume label" entry.
+     *
+     * @param data the array holding the slot
+     * @param offset the offset of the slot within the array
+     * @return if the slot holds a volume label entry
+     * @see #isVolumeLabel() 
+     */
+    static boolean isVolumeLabel(byte[] data, int offset) {
+        if (isLfnEntry(data, offset)) return false;
+        
+        final int flags = LittleEndian.getUInt8(
+                data, offset + OFFSET_ATTRIBUTES);
+        
+        return ((flags & (F_DIRECTORY | F_VOLUME_ID)) == F_VOLUME_ID);
     }
 
-    private void setFlag(int mask, boolean set) {
+    /**
+     * Records that this entry is stored in the specified slot of the
+     * specified directory.
+     *
+     * @param dir the directory that stores this entry
+     * @param slot the index of the slot holding this entry
+     */
+    synchronized void attach(AbstractDirectory dir, int slot) {
+        this.directory = dir;
+        this.slot = slot;
+    }
+    
+    /**
+     * Stores this entry in the specified slot of a directory's buffer. The
+     * bytes of this entry are copied there, and this entry becomes a view
+     * of the slot: from now on all changes go directly to the buffer.
+     *
+     * @param dir the directory that stores this entry
+     * @param buffer the buffer of the directory
+     * @param slot the index of the slot holding this entry
+     */
+    synchronized void store(AbstractDirectory dir, byte[] buffer, int slot) {
+        final int dest = slot * SIZE;
+        
+        if (buffer != this.data || dest != this.offset) {
+            System.arraycopy(this.data, this.offset, buffer, dest, SIZE);
+            this.data = buffer;
+            this.offset = dest;
+        }
+        
+        attach(dir, slot);
+    }
+    
+    /**
+     * Forgets about the directory this entry was stored in, if it is
+     * still the specified one. The entry then gets a private copy of its
+     * bytes, so the directory can reuse the slot.
+     *
+     * @param dir the directory this entry was removed from
+     */
+    synchronized void detach(AbstractDirectory dir) {
+        if (this.directory != dir) return;
+        
+        final byte[] copy = new byte[SIZE];
+        System.arraycopy(this.data, this.offset, copy, 0, SIZE);
+        this.data = copy;
+        this.offset = 0;
+        this.directory = null;
+    }
+    
+    /**
+     * Returns the index of the slot holding this entry in the specified
+     * directory.
+     *
+     * @param dir the directory
+     * @return the slot index, or -1 if this entry is not stored in the
+     *      specified directory
+     */
+    synchronized int getSlot(AbstractDirectory dir) {
+        return (this.directory == dir) ? this.slot : -1;
+    }
+    
+    /**
+     * Marks this entry as dirty and tells the directory it is stored in.
+     * Must be called while holding this entry's monitor.
+     */
+    private void changed() {
+        this.dirty = true;
+        
+        if (this.directory != null) {
+            this.directory.entryChanged(this);
+        }
+    }
+    
+    private synchronized void setFlag(int mask, boolean set) {
         final int oldFlags = getFlags();
 
         if (((oldFlags & mask) != 0) == set) return;
@@ -133,7 +257,7 @@ final class FatDirectoryEntry extends AbstractFsObject {
             setFlags(oldFlags & ~mask);
         }
 
-        this.dirty = true;
+        changed();
     }
 
     public boolean isSystemFlag() {
@@ -164,21 +288,36 @@ final class FatDirectoryEntry extends AbstractFsObject {
         return ((getFlags() & F_VOLUME_ID) != 0);
     }
     
-    public boolean isLfnEntry() {
-        return isReadonlyFlag() && isSystemFlag() &&
-                isHiddenFlag() && isVolumeIdFlag();
+    public synchronized boolean isLfnEntry() {
+        return isLfnEntry(data, offset);
+    }
+    
+    /**
+     * Decides if the specified raw slot holds a part of a long file name.
+     *
+     * @param data the array holding the slot
+     * @param offset the offset of the slot within the array
+     * @return if the slot holds a LFN entry
+     * @see #isLfnEntry() 
+     */
+    static boolean isLfnEntry(byte[] data, int offset) {
+        final int lfn = F_READONLY | F_SYSTEM | F_HIDDEN | F_VOLUME_ID;
+        final int flags = LittleEndian.getUInt8(
+                data, offset + OFFSET_ATTRIBUTES);
+        
+        return (flags & lfn) == lfn;
     }
     
     public boolean isDirty() {
         return dirty;
     }
     
-    private int getFlags() {
-        return LittleEndian.getUInt8(data, OFFSET_ATTRIBUTES);
+    private synchronized int getFlags() {
+        return LittleEndian.getUInt8(data, offset + OFFSET_ATTRIBUTES);
     }
     
-    private void setFlags(int flags) {
-        LittleEndian.setInt8(data, OFFSET_ATTRIBUTES, flags);
+    private synchronized void setFlags(int flags) {
+        LittleEndian.setInt8(data, offset + OFFSET_ATTRIBUTES, flags);
     }
     
     public boolean isDirectory() {
@@ -220,14 +359,26 @@ final class FatDirectoryEntry extends AbstractFsObject {
         return result;
     }
     
-    public String getVolumeLabel() {
+    public synchronized String getVolumeLabel() {
         if (!isVolumeLabel())
             throw new UnsupportedOperationException("not a volume label");
-            
+        
+        return getVolumeLabel(data, offset);
+    }
+    
+    /**
+     * Returns the volume label stored in the specified raw slot.
+     *
+     * @param data the array holding the slot
+     * @param offset the offset of the slot within the array
+     * @return the volume label
+     * @see #isVolumeLabel(byte[], int) 
+     */
+    static String getVolumeLabel(byte[] data, int offset) {
         final StringBuilder sb = new StringBuilder();
         
         for (int i=0; i < AbstractDirectory.MAX_LABEL_LENGTH; i++) {
-            final byte b = this.data[i];
+            final byte b = data[offset + i];
             
             if (b != 0) {
                 sb.append((char) b);
@@ -239,47 +390,47 @@ final class FatDirectoryEntry extends AbstractFsObject {
         return sb.toString();
     }
 
-    public long getCreated() {
+    public synchronized long getCreated() {
         return DosUtils.decodeDateTime(
-                LittleEndian.getUInt16(data, 0x10),
-                LittleEndian.getUInt16(data, 0x0e));
+                LittleEndian.getUInt16(data, offset + 0x10),
+                LittleEndian.getUInt16(data, offset + 0x0e));
     }
     
-    public void setCreated(long created) {
-        LittleEndian.setInt16(data, 0x0e,
+    public synchronized void setCreated(long created) {
+        LittleEndian.setInt16(data, offset + 0x0e,
                 DosUtils.encodeTime(created));
-        LittleEndian.setInt16(data, 0x10,
+        LittleEndian.setInt16(data, offset + 0x10,
                 DosUtils.encodeDate(created));
 
-        this.dirty = true;
+        changed();
     }
 
-    public long getLastModified() {
+    public synchronized long getLastModified() {
         return DosUtils.decodeDateTime(
-                LittleEndian.getUInt16(data, 0x18),
-                LittleEndian.getUInt16(data, 0x16));
+                LittleEndian.getUInt16(data, offset + 0x18),
+                LittleEndian.getUInt16(data, offset + 0x16));
     }
 
-    public void setLastModified(long lastModified) {
-        LittleEndian.setInt16(data, 0x16,
+    public synchronized void setLastModified(long lastModified) {
+        LittleEndian.setInt16(data, offset + 0x16,
                 DosUtils.encodeTime(lastModified));
-        LittleEndian.setInt16(data, 0x18,
+        LittleEndian.setInt16(data, offset + 0x18,
                 DosUtils.encodeDate(lastModified));
 
-        this.dirty = true;
+        changed();
     }
 
-    public long getLastAccessed() {
+    public synchronized long getLastAccessed() {
         return DosUtils.decodeDateTime(
-                LittleEndian.getUInt16(data, 0x12),
+                LittleEndian.getUInt16(data, offset + 0x12),
                 0); /* time is not recorded */
     }
     
-    public void setLastAccessed(long lastAccessed) {
-        LittleEndian.setInt16(data, 0x12,
+    public synchronized void setLastAccessed(long lastAccessed) {
+        LittleEndian.setInt16(data, offset + 0x12,
                 DosUtils.encodeDate(lastAccessed));
 
-        this.dirty = true;
+        changed();
     }
     
     /**
@@ -288,8 +439,8 @@ final class FatDirectoryEntry extends AbstractFsObject {
      * 
      * @return if this entry is marked as deleted
      */
-    public boolean isDeleted() {
-        return  (LittleEndian.getUInt8(data, 0) == ENTRY_DELETED_MAGIC);
+    public synchronized boolean isDeleted() {
+        return  (LittleEndian.getUInt8(data, offset) == ENTRY_DELETED_MAGIC);
     }
     
     /**
@@ -297,8 +448,8 @@ final class FatDirectoryEntry extends AbstractFsObject {
      * 
      * @return the size of the file represented by this entry
      */
-    public long getLength() {
-        return LittleEndian.getUInt32(data, OFFSET_FILE_SIZE);
+    public synchronized long getLength() {
+        return LittleEndian.getUInt32(data, offset + OFFSET_FILE_SIZE);
     }
 
     /**
@@ -307,8 +458,9 @@ final class FatDirectoryEntry extends AbstractFsObject {
      * @param length the new size of the file represented by this entry
      * @throws IllegalArgumentException if {@code length} is out of range
      */
-    public void setLength(long length) throws IllegalArgumentException {
-        LittleEndian.setInt32(data, OFFSET_FILE_SIZE, length);
+    public synchronized void setLength(long length) throws IllegalArgumentException {
+        LittleEndian.setInt32(data, offset + OFFSET_FILE_SIZE, length);
+        changed();
     }
     
     /**
@@ -317,11 +469,11 @@ final class FatDirectoryEntry extends AbstractFsObject {
      * 
      * @return the {@code ShortName} stored in this entry or {@code null}
      */
-    public ShortName getShortName() {
-        if (this.data[0] == 0) {
+    public synchronized ShortName getShortName() {
+        if (this.data[offset] == 0) {
             return null;
         } else {
-            return ShortName.parse(this.data);
+            return ShortName.parse(this.data, offset);
         }
     }
     
@@ -335,11 +487,11 @@ final class FatDirectoryEntry extends AbstractFsObject {
         return ((getFlags() & (F_DIRECTORY | F_VOLUME_ID)) == 0);
     }
     
-    public void setShortName(ShortName sn) {
+    public synchronized void setShortName(ShortName sn) {
         if (sn.equals(this.getShortName())) return;
         
-        sn.write(this.data);
-        this.dirty = true;
+        sn.write(this.data, offset);
+        changed();
     }
 
     /**
@@ -347,13 +499,13 @@ final class FatDirectoryEntry extends AbstractFsObject {
      * 
      * @return int the first cluster of a file / directory
      */
-    public long getStartCluster() {
+    public synchronized long getStartCluster() {
         if (type == FatType.FAT32) {
             return
-                    (LittleEndian.getUInt16(data, 0x14) << 16) |
-                     LittleEndian.getUInt16(data, 0x1a);
+                    (LittleEndian.getUInt16(data, offset + 0x14) << 16) |
+                     LittleEndian.getUInt16(data, offset + 0x1a);
         } else {
-            return LittleEndian.getUInt16(data, 0x1a);
+            return LittleEndian.getUInt16(data, offset + 0x1a);
         }
     }
     
@@ -362,15 +514,19 @@ final class FatDirectoryEntry extends AbstractFsObject {
      *
      * @param startCluster The startCluster to set
      */
-    void setStartCluster(long startCluster) {
+    synchronized void setStartCluster(long startCluster) {
         if (startCluster > Integer.MAX_VALUE) throw new AssertionError();
 
         if (this.type == FatType.FAT32) {
-            LittleEndian.setInt16(data, 0x1a, (int) (startCluster & 0xffff));
-            LittleEndian.setInt16(data, 0x14, (int) ((startCluster >> 16) & 0xffff));
+            LittleEndian.setInt16(data, offset + 0x1a,
+                    (int) (startCluster & 0xffff));
+            LittleEndian.setInt16(data, offset + 0x14,
+                    (int) ((startCluster >> 16) & 0xffff));
         } else {
-            LittleEndian.setInt16(data, 0x1a, (int) startCluster);
+            LittleEndian.setInt16(data, offset + 0x1a, (int) startCluster);
         }
+        
+        changed();
     }
     
     @Override
@@ -384,8 +540,8 @@ final class FatDirectoryEntry extends AbstractFsObject {
      *
      * @param buff the buffer to write this entry to
      */
-    void write(ByteBuffer buff) {
-        buff.put(data);
+    synchronized void write(ByteBuffer buff) {
+        buff.put(data, offset, SIZE);
         this.dirty = false;
     }
 
@@ -412,22 +568,35 @@ final class FatDirectoryEntry extends AbstractFsObject {
         setFlag(F_READONLY, isReadonly);
     }
     
-    String getLfnPart() {
+    synchronized String getLfnPart() {
+        return getLfnPart(data, offset);
+    }
+    
+    /**
+     * Returns the part of a long file name stored in the specified raw
+     * slot.
+     *
+     * @param data the array holding the slot
+     * @param offset the offset of the slot within the array
+     * @return the name part
+     * @see #isLfnEntry(byte[], int) 
+     */
+    static String getLfnPart(byte[] data, int offset) {
         final char[] unicodechar = new char[13];
 
-        unicodechar[0] = (char) LittleEndian.getUInt16(data, 1);
-        unicodechar[1] = (char) LittleEndian.getUInt16(data, 3);
-        unicodechar[2] = (char) LittleEndian.getUInt16(data, 5);
-        unicodechar[3] = (char) LittleEndian.getUInt16(data, 7);
-        unicodechar[4] = (char) LittleEndian.getUInt16(data, 9);
-        unicodechar[5] = (char) LittleEndian.getUInt16(data, 14);
-        unicodechar[6] = (char) LittleEndian.getUInt16(data, 16);
-        unicodechar[7] = (char) LittleEndian.getUInt16(data, 18);
-        unicodechar[8] = (char) LittleEndian.getUInt16(data, 20);
-        unicodechar[9] = (char) LittleEndian.getUInt16(data, 22);
-        unicodechar[10] = (char) LittleEndian.getUInt16(data, 24);
-        unicodechar[11] = (char) LittleEndian.getUInt16(data, 28);
-        unicodechar[12] = (char) LittleEndian.getUInt16(data, 30);
+        unicodechar[0] = (char) LittleEndian.getUInt16(data, offset + 1);
+        unicodechar[1] = (char) LittleEndian.getUInt16(data, offset + 3);
+        unicodechar[2] = (char) LittleEndian.getUInt16(data, offset + 5);
+        unicodechar[3] = (char) LittleEndian.getUInt16(data, offset + 7);
+        unicodechar[4] = (char) LittleEndian.getUInt16(data, offset + 9);
+        unicodechar[5] = (char) LittleEndian.getUInt16(data, offset + 14);
+        unicodechar[6] = (char) LittleEndian.getUInt16(data, offset + 16);
+        unicodechar[7] = (char) LittleEndian.getUInt16(data, offset + 18);
+        unicodechar[8] = (char) LittleEndian.getUInt16(data, offset + 20);
+        unicodechar[9] = (char) LittleEndian.getUInt16(data, offset + 22);
+        unicodechar[10] = (char) LittleEndian.getUInt16(data, offset + 24);
+        unicodechar[11] = (char) LittleEndian.getUInt16(data, offset + 28);
+        unicodechar[12] = (char) LittleEndian.getUInt16(data, offset + 30);
 
         int end = 0;
 
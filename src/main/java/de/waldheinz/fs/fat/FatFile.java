@@ -23,24 +23,41 @@ import java.io.IOException;
 import de.waldheinz.fs.FsFile;
 import de.waldheinz.fs.ReadOnlyException;
 import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * The in-memory representation of a single file (chain of clusters) on a
- * FAT file system.
+ * FAT file system. The methods of a {@code FatFile} are synchronized on the
+ * instance, so different files can be accessed concurrently while access
+ * to a single file is serialized.
  * 
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
  * @since 0.6
  */
 public final class FatFile extends AbstractFsObject implements FsFile {
+    
+    /**
+     * The file is grown by at most this many bytes ahead of the data
+     * {@link #transferFrom(java.nio.channels.ReadableByteChannel, long, long)
+     * transferred} from a channel.
+     */
+    private final static long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+    
     private final FatDirectoryEntry entry;
     private final ClusterChain chain;
+    private final ReadAhead readAhead;
     
     private FatFile(FatDirectoryEntry myEntry, ClusterChain chain) {
         super(myEntry.isReadOnly());
         
         this.entry = myEntry;
         this.chain = chain;
+        this.readAhead = new ReadAhead(chain);
     }
     
     static FatFile get(Fat fat, FatDirectoryEntry entry)
@@ -67,7 +84,7 @@ public final class FatFile extends AbstractFsObject implements FsFile {
      * @return long the length that is recorded for this file
      */
     @Override
-    public long getLength() {
+    public synchronized long getLength() {
         checkValid();
         
         return entry.getLength();
@@ -84,12 +101,13 @@ public final class FatFile extends AbstractFsObject implements FsFile {
      * @throws IOException on error updating the file size
      */
     @Override
-    public void setLength(long length) throws ReadOnlyException, IOException {
+    public synchronized void setLength(long length) throws ReadOnlyException, IOException {
         checkWritable();
         
         if (getLength() == length) return;
         
         updateTimeStamps(true);
+        readAhead.invalidate();
         chain.setSize(length);
         
         this.entry.setStartCluster(chain.getStartCluster());
@@ -103,6 +121,10 @@ public final class FatFile extends AbstractFsObject implements FsFile {
      * Unless this file is {@link #isReadOnly() read-ony}, this method also
      * updates the "last accessed" field in the directory entry that is
      * associated with this file.
+     * </p><p>
+     * When a read continues where the previous one ended, the data following
+     * it is read ahead, and the amount of data read ahead grows as long as
+     * the file is read sequentially.
      * </p>
      * 
      * @param offset {@inheritDoc}
@@ -110,7 +132,7 @@ public final class FatFile extends AbstractFsObject implements FsFile {
      * @see FatDirectoryEntry#setLastAccessed(long)
      */
     @Override
-    public void read(long offset, ByteBuffer dest) throws IOException {
+    public synchronized void read(long offset, ByteBuffer dest) throws IOException {
         checkValid();
         
         final int len = dest.remaining();
@@ -125,7 +147,7 @@ public final class FatFile extends AbstractFsObject implements FsFile {
             updateTimeStamps(false);
         }
         
-        chain.readData(offset, dest);
+        readAhead.read(offset, dest, getLength());
     }
 
     /**
@@ -143,7 +165,7 @@ public final class FatFile extends AbstractFsObject implements FsFile {
      * @param srcBuf {@inheritDoc}
      */
     @Override
-    public void write(long offset, ByteBuffer srcBuf)
+    public synchronized void write(long offset, ByteBuffer srcBuf)
             throws ReadOnlyException, IOException {
 
         checkWritable();
@@ -156,10 +178,172 @@ public final class FatFile extends AbstractFsObject implements FsFile {
             setLength(lastByte);
         }
         
+        readAhead.invalidate();
         chain.writeData(offset, srcBuf);
     }
     
-    private void updateTimeStamps(boolean write) {
+    /**
+     * Transfers up to {@code count} bytes of this file, starting at
+     * {@code offset}, to the given channel. If the file system lives on a
+     * {@link de.waldheinz.fs.TransferBlockDevice} like a
+     * {@link de.waldheinz.fs.util.FileDisk}, the data of each run of
+     * contiguous clusters is moved by the operating system without
+     * passing through the Java heap.
+     * <p>
+     * Unless this file is {@link #isReadOnly() read-only}, this method also
+     * updates the "last accessed" field of the directory entry.
+     * </p>
+     *
+     * @param offset the offset of the first byte to transfer
+     * @param count the maximum number of bytes to transfer
+     * @param target the channel to write the data to
+     * @return the number of bytes transferred, which is 0 if
+     *      {@code offset} is not before the end of this file
+     * @throws IOException on read or write error
+     * @since 0.6.6
+     */
+    public synchronized long transferTo(long offset, long count,
+            WritableByteChannel target) throws IOException {
+        
+        checkValid();
+        
+        if (offset < 0 || count < 0) throw new IllegalArgumentException(
+                "offset=" + offset + ", count=" + count); //NOI18N
+        
+        final long length = getLength();
+        if (offset >= length) return 0;
+        
+        if (!isReadOnly()) {
+            updateTimeStamps(false);
+        }
+        
+        return chain.transferTo(offset, Math.min(count, length - offset),
+                target);
+    }
+    
+    /**
+     * Transfers up to {@code count} bytes from the given channel to this
+     * file, starting at {@code offset}. The file is grown chunk by chunk as
+     * the data arrives, so a large {@code count} does not allocate clusters
+     * for data the channel never provides. If the file system lives on a
+     * {@link de.waldheinz.fs.TransferBlockDevice} like a
+     * {@link de.waldheinz.fs.util.FileDisk}, the data of each run of
+     * contiguous clusters is moved by the operating system without
+     * passing through the Java heap.
+     * <p>
+     * This method updates the "last accessed" and "last modified" fields
+     * of the directory entry.
+     * </p>
+     *
+     * @param src the channel to read the data from
+     * @param offset the offset where to store the first byte
+     * @param count the maximum number of bytes to transfer
+     * @return the number of bytes transferred
+     * @throws ReadOnlyException if this file is read-only
+     * @throws IOException on read or write error
+     * @since 0.6.6
+     */
+    public synchronized long transferFrom(ReadableByteChannel src, long offset,
+            long count) throws ReadOnlyException, IOException {
+        
+        checkWritable();
+        
+        if (offset < 0 || count < 0) throw new IllegalArgumentException(
+                "offset=" + offset + ", count=" + count); //NOI18N
+        
+        final long oldLength = getLength();
+        long result = 0;
+        
+        updateTimeStamps(true);
+        readAhead.invalidate();
+        
+        try {
+            while (result < count) {
+                final long pos = offset + result;
+                long size = Math.min(count - result, TRANSFER_CHUNK_SIZE);
+                
+                if (pos + size > getLength()) {
+                    final long room = chain.getLengthOnDisk() - pos +
+                            (long) chain.getFat().getFreeClusterCount() *
+                            chain.getClusterSize();
+                    
+                    /* the volume is full, fail only if more data comes */
+                    if (room <= 0 && !hasMore(src)) break;
+                    
+                    size = Math.min(size, Math.max(room, 1));
+                    setLength(pos + size);
+                }
+                
+                final long n = chain.transferFrom(src, pos, size);
+                result += n;
+                if (n < size) break;
+            }
+        } finally {
+            /* give back what was grown for data that never came */
+            final long end = Math.max(oldLength, offset + result);
+            
+            if (getLength() > end) {
+                setLength(end);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Reads a single byte from the channel to find out if it is exhausted.
+     * The byte is consumed, so this is only used before failing anyway.
+     */
+    private static boolean hasMore(ReadableByteChannel src)
+            throws IOException {
+        
+        return src.read(ByteBuffer.allocate(1)) > 0;
+    }
+    
+    /**
+     * Opens a channel for sequential, buffered access to the contents of
+     * this file. The channel starts at position 0 and should be
+     * {@link FatFileChannel#close() closed} to make sure all data written
+     * to it reaches the file.
+     *
+     * @return a new channel for this file
+     * @since 0.6.6
+     */
+    public FatFileChannel newChannel() {
+        checkValid();
+        
+        return new FatFileChannel(this);
+    }
+    
+    /**
+     * Opens an {@code InputStream} reading this file from the beginning.
+     * The stream is backed by a {@link #newChannel() channel} and thus
+     * benefits from it's read-ahead.
+     *
+     * @return a new stream reading this file
+     * @since 0.6.6
+     */
+    public InputStream newInputStream() {
+        return Channels.newInputStream(newChannel());
+    }
+    
+    /**
+     * Opens an {@code OutputStream} writing this file from the beginning.
+     * The stream does not truncate the file. It is backed by a
+     * {@link #newChannel() channel}, so the data is only guaranteed to reach
+     * the file after the stream was closed.
+     *
+     * @return a new stream writing this file
+     * @throws ReadOnlyException if this file is read-only
+     * @since 0.6.6
+     */
+    public OutputStream newOutputStream() throws ReadOnlyException {
+        checkWritable();
+        
+        return Channels.newOutputStream(newChannel());
+    }
+    
+    synchronized void updateTimeStamps(boolean write) {
         final long now = System.currentTimeMillis();
         entry.setLastAccessed(now);
         
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import de.waldheinz.fs.ReadOnlyException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A {@link ByteChannel} for sequential access to the contents of a
+ * {@link FatFile}. Like a seekable channel, it maintains a current
+ * {@link #position() position} which is advanced by reading and writing.
+ * <p>
+ * Small reads are served from a read-ahead buffer spanning several clusters,
+ * and small sequential writes are collected and written behind when the
+ * buffer is full, the position is moved elsewhere, or the channel is
+ * {@link #flush() flushed} or {@link #close() closed}. Transfers at least as
+ * large as the buffer bypass it. The directory entry time stamps are updated
+ * when the buffered data actually reaches the file, not on every call.
+ * </p><p>
+ * The buffers are private to this channel, so data written through it will
+ * not be visible by the {@link FatFile#read(long, java.nio.ByteBuffer)}
+ * method or other channels until it was flushed, and data written by other
+ * means may not be seen by this channel until it was repositioned. A
+ * channel must not be used by several threads at once.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @see FatFile#newChannel()
+ * @since 0.6.6
+ */
+public final class FatFileChannel implements ByteChannel {
+    
+    /**
+     * The minimum size of the read-ahead and write-behind buffer in bytes.
+     * The actual buffer size is rounded up to a multiple of the cluster size.
+     */
+    private final static int MIN_BUFFER_SIZE = 64 * 1024;
+    
+    private final FatFile file;
+    private final ClusterChain chain;
+    private final ByteBuffer readBuf;
+    private final ByteBuffer writeBuf;
+    
+    /**
+     * The file offset of the first byte in {@link #readBuf}, or -1 if
+     * the read buffer holds no valid data.
+     */
+    private long readStart;
+    
+    /**
+     * The file offset where the data collected in {@link #writeBuf} is
+     * to be written.
+     */
+    private long writeStart;
+    
+    private long position;
+    private boolean accessed;
+    private boolean open;
+    
+    FatFileChannel(FatFile file) {
+        this.file = file;
+        this.chain = file.getChain();
+        
+        final int clusterSize = chain.getClusterSize();
+        final int clusters = Math.max(1,
+                (MIN_BUFFER_SIZE + clusterSize - 1) / clusterSize);
+        
+        this.readBuf = ByteBuffer.allocate(clusters * clusterSize);
+        this.writeBuf = ByteBuffer.allocate(clusters * clusterSize);
+        this.readStart = -1;
+        this.open = true;
+    }
+    
+    /**
+     * Reads a sequence of bytes from the file into the given buffer,
+     * starting at the current position.
+     *
+     * @param dst the buffer to fill
+     * @return the number of bytes read, or -1 if the position is at or
+     *      beyond the end of the file
+     * @throws IOException on read error
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        flushWrites();
+        
+        final long length = file.getLength();
+        if (position >= length) return -1;
+        
+        final int total = (int) Math.min(dst.remaining(), length - position);
+        if (total == 0) return 0;
+        
+        if (!accessed && !file.isReadOnly()) {
+            file.updateTimeStamps(false);
+            accessed = true;
+        }
+        
+        int done = 0;
+        
+        while (done < total) {
+            final int want = total - done;
+            
+            if (readStart >= 0 && position >= readStart &&
+                    position < readStart + readBuf.limit()) {
+                
+                /* served from the read-ahead buffer */
+                final int off = (int) (position - readStart);
+                final int size = Math.min(want, readBuf.limit() - off);
+                final ByteBuffer src = readBuf.duplicate();
+                src.position(off);
+                src.limit(off + size);
+                dst.put(src);
+                position += size;
+                done += size;
+            } else if (want >= readBuf.capacity()) {
+                
+                /* large read, bypass the buffer */
+                final int oldLimit = dst.limit();
+                dst.limit(dst.position() + want);
+                
+                try {
+                    synchronized (file) {
+                        chain.readData(position, dst);
+                    }
+                } finally {
+                    dst.limit(oldLimit);
+                }
+                
+                position += want;
+                done += want;
+            } else {
+                
+                /* read ahead as far as the buffer and the file allow */
+                readBuf.clear();
+                readBuf.limit((int) Math.min(
+                        readBuf.capacity(), length - position));
+                readStart = -1;
+                
+                synchronized (file) {
+                    chain.readData(position, readBuf);
+                }
+                
+                readBuf.flip();
+                readStart = position;
+            }
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Writes a sequence of bytes to the file from the given buffer,
+     * starting at the current position. The file is grown as needed.
+     *
+     * @param src the buffer holding the data to write
+     * @return the number of bytes written, which is always the number of
+     *      bytes that were remaining in {@code src}
+     * @throws ReadOnlyException if the file is read-only
+     * @throws IOException on write error
+     */
+    @Override
+    public int write(ByteBuffer src) throws ReadOnlyException, IOException {
+        checkOpen();
+        
+        if (file.isReadOnly()) throw new ReadOnlyException();
+        
+        final int total = src.remaining();
+        readStart = -1;
+        
+        if (writeBuf.position() > 0 &&
+                position != writeStart + writeBuf.position()) {
+            
+            flushWrites();
+        }
+        
+        if (writeBuf.position() == 0 && total >= writeBuf.capacity()) {
+            /* large write, bypass the buffer */
+            file.write(position, src);
+            position += total;
+            return total;
+        }
+        
+        while (src.hasRemaining()) {
+            if (writeBuf.position() == 0) {
+                writeStart = position;
+            }
+            
+            final int size = Math.min(src.remaining(), writeBuf.remaining());
+            final ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + size);
+            writeBuf.put(chunk);
+            src.position(src.position() + size);
+            position += size;
+            
+            if (!writeBuf.hasRemaining()) {
+                flushWrites();
+            }
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Returns the current position of this channel, which is the file
+     * offset where the next read or write will start.
+     *
+     * @return the current position
+     * @throws IOException if this channel is closed
+     */
+    public long position() throws IOException {
+        checkOpen();
+        
+        return position;
+    }
+    
+    /**
+     * Sets the position of this channel. Setting the position beyond the
+     * end of the file is legal; reading will then signal the end of file,
+     * while writing will grow the file. The read-ahead buffer is discarded,
+     * so the next read sees data written to the file by other means.
+     *
+     * @param newPosition the new position
+     * @return this channel
+     * @throws IOException if this channel is closed
+     * @throws IllegalArgumentException if the new position is negative
+     */
+    public FatFileChannel position(long newPosition)
+            throws IOException, IllegalArgumentException {
+        
+        checkOpen();
+        
+        if (newPosition < 0) throw new IllegalArgumentException(
+                "negative position " + newPosition); //NOI18N
+        
+        this.position = newPosition;
+        this.readStart = -1;
+        return this;
+    }
+    
+    /**
+     * Returns the current size of the file, including data that was
+     * written to this channel but not yet flushed.
+     *
+     * @return the current file size in bytes
+     * @throws IOException if this channel is closed
+     */
+    public long size() throws IOException {
+        checkOpen();
+        
+        final long length = file.getLength();
+        if (writeBuf.position() == 0) return length;
+        
+        return Math.max(length, writeStart + writeBuf.position());
+    }
+    
+    /**
+     * Truncates the file to the given size. If the file is not larger than
+     * the given size, it is not modified. If the position of this channel
+     * is beyond the new size, it is set to the new size.
+     *
+     * @param size the new size
+     * @return this channel
+     * @throws ReadOnlyException if the file is read-only
+     * @throws IOException on error truncating the file
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public FatFileChannel truncate(long size)
+            throws ReadOnlyException, IOException, IllegalArgumentException {
+        
+        checkOpen();
+        
+        if (size < 0) throw new IllegalArgumentException(
+                "negative size " + size); //NOI18N
+        
+        if (file.isReadOnly()) throw new ReadOnlyException();
+        
+        flushWrites();
+        readStart = -1;
+        
+        if (size < file.getLength()) {
+            file.setLength(size);
+        }
+        
+        if (position > size) {
+            position = size;
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Writes any data collected in the write-behind buffer to the file.
+     * To make sure it reaches the disk, the file system has to be
+     * {@link FatFileSystem#flush() flushed} as well.
+     *
+     * @throws IOException on write error
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        flushWrites();
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+    
+    /**
+     * Writes any pending data to the file and closes this channel. Closing
+     * an already closed channel has no effect.
+     *
+     * @throws IOException on write error
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        
+        try {
+            flushWrites();
+        } finally {
+            this.open = false;
+        }
+    }
+    
+    private void flushWrites() throws IOException {
+        if (writeBuf.position() == 0) return;
+        
+        writeBuf.flip();
+        
+        try {
+            file.write(writeStart, writeBuf);
+        } finally {
+            writeBuf.clear();
+        }
+    }
+    
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) throw new ClosedChannelException();
+    }
+    
+}
@@ -32,6 +32,14 @@ import de.waldheinz.fs.ReadOnlyException;
  * </p><p>
  * For creating (aka "formatting") FAT file systems please refer to the
  * {@link SuperFloppyFormatter} class.
+ * </p><p>
+ * A {@code FatFileSystem} may be used by several threads at once, provided
+ * the {@link BlockDevice} supports concurrent calls. The FAT is guarded by a
+ * read/write lock, every {@link FatLfnDirectory} has its own read/write
+ * lock, and every {@link FatFile} synchronizes on itself. Thus different
+ * files can be read and written, and directories can be listed, in
+ * parallel. {@link FatFileChannel}s and the streams built on them are meant
+ * to be used by a single thread, like other channels and streams.
  * </p>
  *
  * @author Ewout Prangsma &lt;epr at jnode.org&gt;
@@ -49,7 +57,7 @@ public final class FatFileSystem extends AbstractFileSystem {
 
     FatFileSystem(BlockDevice api, boolean readOnly) throws IOException {
 
-        this(api, readOnly, false);
+        this(api, readOnly, false, 0);
     }
     
     /**
@@ -58,10 +66,12 @@ public final class FatFileSystem extends AbstractFileSystem {
      * @param device the {@code BlockDevice} holding the file system
      * @param readOnly if this FS should be read-lonly
      * @param ignoreFatDifferences
+     * @param fatCacheSectors the maximum number of FAT sectors to keep in
+     *      memory, or 0 to read the whole FAT
      * @throws IOException on read error
      */
     private FatFileSystem(BlockDevice device, boolean readOnly,
-            boolean ignoreFatDifferences)
+            boolean ignoreFatDifferences, int fatCacheSectors)
             throws IOException {
         
         super(readOnly);
@@ -73,9 +83,11 @@ public final class FatFileSystem extends AbstractFileSystem {
         
         this.filesOffset = bs.getFilesOffset();
         this.fatType = bs.getFatType();
-        this.fat = Fat.read(bs, 0);
+        this.fat = Fat.read(bs, 0, fatCacheSectors);
 
-        if (!ignoreFatDifferences) {
+        /* comparing the FAT copies would defeat reading a paged FAT lazily */
+        
+        if (!ignoreFatDifferences && !fat.isPaged()) {
             for (int i=1; i < bs.getNrFats(); i++) {
                 final Fat tmpFat = Fat.read(bs, i);
                 if (!fat.equals(tmpFat)) {
@@ -91,7 +103,9 @@ public final class FatFileSystem extends AbstractFileSystem {
             this.rootDirStore = ClusterChainDirectory.readRoot(rootChain);
             this.fsiSector = FsInfoSector.read(f32bs);
             
-            if (fsiSector.getFreeClusterCount() < fat.getFreeClusterCount()) {
+            if (!fat.isPaged() &&
+                    fsiSector.getFreeClusterCount() < fat.getFreeClusterCount()) {
+                
                 throw new IOException("free cluster count mismatch - fat: " +
                         fat.getFreeClusterCount() + " - fsinfo: " +
                         fsiSector.getFreeClusterCount());
@@ -122,6 +136,29 @@ public final class FatFileSystem extends AbstractFileSystem {
         
         return new FatFileSystem(device, readOnly);
     }
+    
+    /**
+     * Reads the file system structure from the specified {@code BlockDevice}
+     * like {@link #read(de.waldheinz.fs.BlockDevice, boolean)} does, but
+     * keeps at most {@code fatCacheSectors} sectors of the FAT in memory.
+     * The FAT sectors are read when they are first needed, so this allows
+     * to quickly open huge volumes with a bounded memory footprint. The FAT
+     * copies are not compared against each other when using this method.
+     *
+     * @param device the {@code BlockDevice} holding the file system
+     * @param readOnly if the {@code FatFileSystem} should be in read-only mode
+     * @param fatCacheSectors the maximum number of FAT sectors to keep in
+     *      memory, or 0 to read the whole FAT up front
+     * @return the {@code FatFileSystem} instance for the device
+     * @throws IOException on read error or if the file system structure could
+     *      not be parsed
+     * @since 0.6.6
+     */
+    public static FatFileSystem read(BlockDevice device, boolean readOnly,
+            int fatCacheSectors) throws IOException {
+        
+        return new FatFileSystem(device, readOnly, false, fatCacheSectors);
+    }
 
     long getFilesOffset() {
         checkClosed();
@@ -184,29 +221,35 @@ public final class FatFileSystem extends AbstractFileSystem {
     }
     
     /**
-     * Flush all changed structures to the device.
+     * Flush all changed structures to the device, and flush the device
+     * itself.
      * 
      * @throws IOException on write error
      */
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
         checkClosed();
         
         if (bs.isDirty()) {
             bs.write();
         }
         
-        for (int i = 0; i < bs.getNrFats(); i++) {
-            fat.writeCopy(bs.getFatOffset(i));
-        }
+        /* flushing the directories may allocate clusters */
         
         rootDir.flush();
+        fat.flush();
+        
+        /* an unmodified paged FAT would have to be scanned for the count */
         
-        if (fsiSector != null) {
+        if (fsiSector != null && fat.isFreeClusterCountKnown()) {
             fsiSector.setFreeClusterCount(fat.getFreeClusterCount());
             fsiSector.setLastAllocatedCluster(fat.getLastAllocatedCluster());
             fsiSector.write();
         }
+        
+        /* pass everything on to the storage behind a caching device */
+        
+        bs.getDevice().flush();
     }
     
     @Override
@@ -245,7 +288,7 @@ public final class FatFileSystem extends AbstractFileSystem {
     public long getFreeSpace() {
         checkClosed();
 
-        return fat.getFreeClusterCount() * bs.getBytesPerCluster();
+        return (long) fat.getFreeClusterCount() * bs.getBytesPerCluster();
     }
 
     /**
@@ -23,14 +23,22 @@ import de.waldheinz.fs.AbstractFsObject;
 import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The {@link FsDirectory} implementation for FAT file systems. This
@@ -38,6 +46,16 @@ import java.util.Set;
  * the quite complex naming system regarding the long file names (LFNs) and
  * their corresponding 8+3 short file names. This also means that an
  * {@code FatLfnDirectory} is case-preserving but <em>not</em> case-sensitive.
+ * <p>
+ * Each directory has a read/write lock, so it can be searched and listed
+ * by several threads at once, while modifications are exclusive.
+ * </p><p>
+ * Sub-directories are opened without reading them. Until they are first
+ * modified, looking up an entry reads the directory one cluster at a time
+ * and stops at the match, and iterating reads one cluster at a time as
+ * well. The index of all entries is only built when a modification needs
+ * it, or when lookups have read the directory several times over.
+ * </p>
  * 
  * @author gbin
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
@@ -48,47 +66,142 @@ public final class FatLfnDirectory
         implements FsDirectory {
 
     /**
-     * This set is used to check if a file name is already in use in this
-     * directory. The FAT specification says that file names must be unique
-     * ignoring the case, so this set contains all names converted to
-     * lower-case, and all checks must be performed using lower-case strings.
+     * The largest number of entries {@link #addDirectory(String, int)}
+     * reserves room for, leaving space for the "." and ".." entries.
      */
-    private final Set<String> usedNames;
+    private static final int MAX_EXPECTED_ENTRIES =
+            (ClusterChainDirectory.MAX_SIZE / FatDirectoryEntry.SIZE - 2) / 2;
+    
+    /**
+     * After lookups in a directory without an index have read this many
+     * times the directory's size, the index is built.
+     */
+    private static final int MAX_SCANS = 4;
+    
+    /**
+     * The lower-case names taken by an entry that is currently being added.
+     * Guarded by the {@link #lock}.
+     */
+    private final Set<String> reserved;
+    
     private final Fat fat;
-    private final Map<ShortName, FatLfnDirectoryEntry> shortNameIndex;
-    private final Map<String, FatLfnDirectoryEntry> longNameIndex;
-    private final Map<FatDirectoryEntry, FatFile> entryToFile;
-    private final Map<FatDirectoryEntry, FatLfnDirectory> entryToDirectory;
+    
+    /**
+     * The index of the entries by their long and short names. Guarded by
+     * the {@link #lock}.
+     */
+    private final NameIndex names;
+    
+    private final HandleCache<FatFile> entryToFile;
+    private final HandleCache<FatLfnDirectory> entryToDirectory;
     private final ShortNameGenerator sng;
     
+    /**
+     * The directory that flushes this one, or {@code null} for the root
+     * directory.
+     */
+    private final FatLfnDirectory parent;
+    
+    /**
+     * The sub-directories which have been modified since this directory
+     * was last flushed, or which have such sub-directories themselves.
+     */
+    private final Set<FatLfnDirectory> dirtyChildren;
+    
+    /**
+     * If this directory was removed from its parent and its cluster chain
+     * was freed. A deleted directory is never written again, as its
+     * clusters may already belong to another file.
+     */
+    private volatile boolean deleted;
+    
+    /**
+     * If the {@link #names} have been built. Guarded by the {@link #lock}.
+     */
+    private boolean indexed;
+    
+    /**
+     * The entries which were handed out before the index was built, by the
+     * slot of their real entry. The index reuses these, so callers never
+     * see two objects for the same entry. Guarded by its own monitor.
+     */
+    private final Map<Integer, FatLfnDirectoryEntry> scannedEntries;
+    
+    /**
+     * The number of slots read by lookups since this directory was opened.
+     */
+    private final AtomicLong scannedSlots;
+    
     final AbstractDirectory dir;
     
+    /**
+     * Guards the indices and the underlying {@link #dir}. At most one
+     * directory lock is held at any time, except while moving an entry.
+     */
+    final ReentrantReadWriteLock lock;
+    
     FatLfnDirectory(AbstractDirectory dir, Fat fat, boolean readOnly)
             throws IOException {
         
+        this(dir, fat, readOnly, null);
+    }
+    
+    private FatLfnDirectory(AbstractDirectory dir, Fat fat, boolean readOnly,
+            FatLfnDirectory parent) throws IOException {
+        
         super(readOnly);
         
         if ((dir == null) || (fat == null)) throw new NullPointerException();
         
         this.fat = fat;
         this.dir = dir;
+        this.parent = parent;
+        this.lock = new ReentrantReadWriteLock();
+        this.dirtyChildren = Collections.newSetFromMap(
+                new ConcurrentHashMap<FatLfnDirectory, Boolean>());
         
-        this.shortNameIndex =
-                new LinkedHashMap<ShortName, FatLfnDirectoryEntry>();
-                
-        this.longNameIndex =
-                new LinkedHashMap<String, FatLfnDirectoryEntry>();
-                
-        this.entryToFile =
-                new LinkedHashMap<FatDirectoryEntry, FatFile>();
-                
-        this.entryToDirectory =
-                new LinkedHashMap<FatDirectoryEntry, FatLfnDirectory>();
-                
-        this.usedNames = new HashSet<String>();
-        this.sng = new ShortNameGenerator(this.usedNames);
+        this.names = new NameIndex();
+        this.entryToFile = new HandleCache<FatFile>();
+        this.entryToDirectory = new HandleCache<FatLfnDirectory>();
+        this.reserved = new HashSet<String>();
         
-        parseLfn();
+        this.sng = new ShortNameGenerator(new ShortNameGenerator.UsedNames() {
+            
+            @Override
+            public boolean isUsed(String name) {
+                return FatLfnDirectory.this.isUsed(name);
+            }
+        });
+        this.scannedEntries = new HashMap<Integer, FatLfnDirectoryEntry>();
+        this.scannedSlots = new AtomicLong();
+        
+        if (dir.isLoaded()) {
+            parseLfn();
+            this.indexed = true;
+        }
+        
+        dir.setOwner(this);
+    }
+    
+    /**
+     * Builds the index of all entries if this was not done before. Must be
+     * called while holding the write lock.
+     *
+     * @throws IOException on error reading the directory
+     */
+    private void index() throws IOException {
+        assert (lock.isWriteLockedByCurrentThread());
+        
+        if (indexed) return;
+        
+        dir.load();
+        
+        synchronized (scannedEntries) {
+            parseLfn();
+            scannedEntries.clear();
+        }
+        
+        this.indexed = true;
     }
 
     Fat getFat() {
@@ -96,26 +209,37 @@ public final class FatLfnDirectory
     }
     
     FatFile getFile(FatDirectoryEntry entry) throws IOException {
-        FatFile file = entryToFile.get(entry);
-
-        if (file == null) {
-            file = FatFile.get(fat, entry);
-            entryToFile.put(entry, file);
+        lock.writeLock().lock();
+        try {
+            FatFile file = entryToFile.get(entry);
+            
+            if (file == null) {
+                file = FatFile.get(fat, entry);
+                entryToFile.put(entry, file);
+            }
+            
+            return file;
+        } finally {
+            lock.writeLock().unlock();
         }
-        
-        return file;
     }
     
     FatLfnDirectory getDirectory(FatDirectoryEntry entry) throws IOException {
-        FatLfnDirectory result = entryToDirectory.get(entry);
-
-        if (result == null) {
-            final ClusterChainDirectory storage = read(entry, fat);
-            result = new FatLfnDirectory(storage, fat, isReadOnly());
-            entryToDirectory.put(entry, result);
+        lock.writeLock().lock();
+        try {
+            FatLfnDirectory result = entryToDirectory.get(entry);
+            
+            if (result == null) {
+                final ClusterChainDirectory storage = read(entry, fat);
+                result = new FatLfnDirectory(
+                        storage, fat, isReadOnly(), this);
+                entryToDirectory.put(entry, result);
+            }
+            
+            return result;
+        } finally {
+            lock.writeLock().unlock();
         }
-        
-        return result;
     }
     
     /**
@@ -132,37 +256,70 @@ public final class FatLfnDirectory
      */
     @Override
     public FatLfnDirectoryEntry addFile(String name) throws IOException {
-        checkWritable();
-        checkUniqueName(name);
-        
-        name = name.trim();
-        final ShortName sn = makeShortName(name);
-        
-        final FatLfnDirectoryEntry entry =
-                new FatLfnDirectoryEntry(name, sn, this, false);
-
-        dir.addEntries(entry.compactForm());
-        
-        shortNameIndex.put(sn, entry);
-        longNameIndex.put(name.toLowerCase(Locale.ROOT), entry);
-
-        getFile(entry.realEntry);
-        
-        dir.setDirty();
-        return entry;
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            index();
+            checkUniqueName(name);
+            
+            name = name.trim();
+            final ShortName sn = makeShortName(name);
+            
+            final FatLfnDirectoryEntry entry =
+                    new FatLfnDirectoryEntry(name, sn, this, false);
+            
+            store(entry);
+            return entry;
+        } finally {
+            reserved.clear();
+            lock.writeLock().unlock();
+        }
     }
     
-    boolean isFreeName(String name) {
-        return !this.usedNames.contains(name.toLowerCase(Locale.ROOT));
+    boolean isFreeName(String name) throws IOException {
+        lock.writeLock().lock();
+        try {
+            index();
+            return !isUsed(name.toLowerCase(Locale.ROOT));
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
     
     private void checkUniqueName(String name) throws IOException {
         final String lowerName = name.toLowerCase(Locale.ROOT);
         
-        if (!this.usedNames.add(lowerName)) {
+        if (isUsed(lowerName)) {
             throw new IOException(
                     "an entry named " + name + " already exists");
         }
+        
+        this.reserved.add(lowerName);
+    }
+    
+    /**
+     * Checks if an entry has the specified long or short name. Must be
+     * called while holding the lock.
+     *
+     * @param name the lower-case name to check
+     * @return if the name is in use
+     */
+    private boolean isUsed(String name) {
+        if (reserved.contains(name)) return true;
+        
+        final int hash = name.hashCode();
+        
+        for (int p = names.first(hash); p >= 0; p = names.next(hash, p + 1)) {
+            final FatLfnDirectoryEntry e = names.get(p);
+            
+            if (name.equals(lowerName(e)) ||
+                    name.equals(shortKey(e.realEntry.getShortName()))) {
+                
+                return true;
+            }
+        }
+        
+        return false;
     }
     
     private ShortName makeShortName(String name) throws IOException {
@@ -175,7 +332,7 @@ public final class FatLfnDirectory
                     "could not generate short name for \"" + name + "\"", ex);
         }
         
-        this.usedNames.add(result.asSimpleString().toLowerCase(Locale.ROOT));
+        this.reserved.add(shortKey(result));
         return result;
     }
     
@@ -193,33 +350,65 @@ public final class FatLfnDirectory
      */
     @Override
     public FatLfnDirectoryEntry addDirectory(String name) throws IOException {
-        checkWritable();
-        checkUniqueName(name);
+        return addDirectory(name, 0);
+    }
+    
+    /**
+     * Adds a new sub-directory that is sized up front to hold the specified
+     * number of files and directories, so filling it does not have to grow
+     * it step by step. Room is reserved for two slots per expected entry,
+     * which is what a long name of up to 13 characters takes, but never more
+     * than the largest directory allowed. The directory still grows as
+     * needed if more entries are added.
+     *
+     * @param name the name of the new directory
+     * @param expectedEntries the number of entries expected to be added to
+     *      the new directory
+     * @return the entry for the new directory
+     * @throws IOException on error creating the directory
+     * @throws IllegalArgumentException if {@code expectedEntries} is
+     *      negative
+     * @see #addDirectory(java.lang.String)
+     * @since 0.6.6
+     */
+    public FatLfnDirectoryEntry addDirectory(String name, int expectedEntries)
+            throws IOException {
         
-        name = name.trim();
-        final ShortName sn = makeShortName(name);
-        final FatDirectoryEntry real = dir.createSub(fat);
-        real.setShortName(sn);
-        final FatLfnDirectoryEntry e =
-                new FatLfnDirectoryEntry(this, real, name);
+        if (expectedEntries < 0) throw new IllegalArgumentException(
+                "negative number of entries"); //NOI18N
         
+        lock.writeLock().lock();
         try {
-            dir.addEntries(e.compactForm());
-        } catch (IOException ex) {
-            final ClusterChain cc =
-                    new ClusterChain(fat, real.getStartCluster(), false);
-            cc.setChainLength(0);
-            dir.removeEntry(real);
-            throw ex;
+            checkWritable();
+            index();
+            checkUniqueName(name);
+            
+            name = name.trim();
+            final ShortName sn = makeShortName(name);
+            final FatDirectoryEntry real =
+                    dir.createSub(fat, 2 *
+                    Math.min(expectedEntries, MAX_EXPECTED_ENTRIES));
+            real.setShortName(sn);
+            final FatLfnDirectoryEntry e =
+                    new FatLfnDirectoryEntry(this, real, name);
+            
+            try {
+                store(e);
+            } catch (IOException ex) {
+                final ClusterChain cc =
+                        new ClusterChain(fat, real.getStartCluster(), false);
+                cc.setChainLength(0);
+                dir.removeEntry(real);
+                throw ex;
+            }
+            
+            getDirectory(real).flush();
+            dir.flush();
+            return e;
+        } finally {
+            reserved.clear();
+            lock.writeLock().unlock();
         }
-        
-        shortNameIndex.put(sn, e);
-        longNameIndex.put(name.toLowerCase(Locale.ROOT), e);
-
-        getDirectory(real);
-        
-        flush();
-        return e;
     }
     
     /**
@@ -232,43 +421,289 @@ public final class FatLfnDirectory
      *
      * @param name {@inheritDoc}
      * @return {@inheritDoc}
+     * @throws IOException {@inheritDoc}
      */
     @Override
-    public FatLfnDirectoryEntry getEntry(String name) {
+    public FatLfnDirectoryEntry getEntry(String name) throws IOException {
         name = name.trim().toLowerCase(Locale.ROOT);
         
-        final FatLfnDirectoryEntry entry = longNameIndex.get(name);
+        lock.readLock().lock();
+        try {
+            if (indexed) return lookup(name);
+            
+            if (scannedSlots.get() < (long) MAX_SCANS * dir.getCapacity()) {
+                return scan(name);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
         
-        if (entry == null) {
-            if (!ShortName.canConvert(name)) return null;
-            return shortNameIndex.get(ShortName.get(name));
-        } else {
-            return entry;
+        lock.writeLock().lock();
+        try {
+            index();
+            return lookup(name);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
     
+    /**
+     * Looks up an entry in the index. A match of the long name takes
+     * precedence over a match of the short name.
+     *
+     * @param name the lower-case name of the entry
+     * @return the entry, or {@code null} if there is none
+     */
+    private FatLfnDirectoryEntry lookup(String name) {
+        final ShortName sn = ShortName.canConvert(name) ?
+            ShortName.get(name) : null;
+        
+        final int hash = name.hashCode();
+        FatLfnDirectoryEntry result = null;
+        
+        for (int p = names.first(hash); p >= 0; p = names.next(hash, p + 1)) {
+            final FatLfnDirectoryEntry e = names.get(p);
+            
+            if (name.equals(lowerName(e))) return e;
+            
+            if (result == null && sn != null &&
+                    sn.equals(e.realEntry.getShortName())) {
+                
+                result = e;
+            }
+        }
+        
+        if (result != null || sn == null) return result;
+        
+        /* the short name may be spelled differently, like "a.b   " */
+        
+        final String key = shortKey(sn);
+        if (key.equals(name)) return null;
+        
+        final int keyHash = key.hashCode();
+        
+        for (int p = names.first(keyHash); p >= 0;
+                p = names.next(keyHash, p + 1)) {
+            
+            final FatLfnDirectoryEntry e = names.get(p);
+            if (sn.equals(e.realEntry.getShortName())) return e;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the lower-case long name of an entry stored in this
+     * directory. Must be called while holding the lock.
+     */
+    private String lowerName(FatLfnDirectoryEntry e) {
+        return FatLfnDirectoryEntry.decodeName(dir,
+                e.realEntry.getSlot(dir), e.slotCount).toLowerCase(
+                Locale.ROOT);
+    }
+    
+    private static String shortKey(ShortName sn) {
+        return sn.asSimpleString().toLowerCase(Locale.ROOT);
+    }
+    
+    private void addNames(FatLfnDirectoryEntry e, String name) {
+        names.add(name.hashCode(), e, true);
+        
+        final String key = shortKey(e.realEntry.getShortName());
+        if (!key.equals(name)) names.add(key.hashCode(), e, false);
+    }
+    
+    private void removeNames(FatLfnDirectoryEntry e, String name) {
+        names.remove(name.hashCode(), e);
+        
+        final String key = shortKey(e.realEntry.getShortName());
+        if (!key.equals(name)) names.remove(key.hashCode(), e);
+    }
+    
+    /**
+     * Decodes the name of the specified entry from the slots of this
+     * directory.
+     *
+     * @param e the entry whose name to decode
+     * @return the name, or {@code null} if the entry is not stored in this
+     *      directory
+     * @see FatLfnDirectoryEntry#getName() 
+     */
+    String nameOf(FatLfnDirectoryEntry e) {
+        lock.readLock().lock();
+        try {
+            final String name = e.fileName;
+            if (name != null) return name;
+            
+            final int last = e.realEntry.getSlot(dir);
+            if (last < 0) return null;
+            
+            return FatLfnDirectoryEntry.decodeName(dir, last, e.slotCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Looks up an entry by reading the directory up to the entry. Must be
+     * called while holding the read lock.
+     *
+     * @param name the lower-case name of the entry
+     * @return the entry, or {@code null} if there is none
+     * @throws IOException on read error
+     */
+    private FatLfnDirectoryEntry scan(String name) throws IOException {
+        final ShortName sn = ShortName.canConvert(name) ?
+            ShortName.get(name) : null;
+        
+        final Scanner s = new Scanner();
+        
+        try {
+            while (s.next()) {
+                if (name.equals(s.getName().toLowerCase(Locale.ROOT)) ||
+                        (sn != null && sn.equals(s.getShortName()))) {
+                    
+                    return s.getEntry();
+                }
+            }
+        } finally {
+            scannedSlots.addAndGet(s.slots.getSlot() + 1);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Reads the entries of a directory which has no index straight from
+     * the storage. Must be used while holding the read lock.
+     */
+    private final class Scanner {
+        
+        private final AbstractDirectory.SlotReader slots;
+        private final byte[] slot;
+        private final List<String> parts;
+        private String name;
+        private int first;
+        
+        Scanner() {
+            this.slots = dir.slotReader();
+            this.slot = new byte[FatDirectoryEntry.SIZE];
+            this.parts = new ArrayList<String>();
+        }
+        
+        /**
+         * Advances to the next entry.
+         *
+         * @return if there is a next entry
+         * @throws IOException on read error
+         */
+        boolean next() throws IOException {
+            parts.clear();
+            this.first = -1;
+            
+            while (slots.next()) {
+                if (slots.isDeleted()) {
+                    /* LFN slots without a real entry, skip them */
+                    parts.clear();
+                    this.first = -1;
+                    continue;
+                }
+                
+                slots.get(slot);
+                
+                if (first < 0) first = slots.getSlot();
+                
+                if (FatDirectoryEntry.isLfnEntry(slot, 0)) {
+                    parts.add(FatDirectoryEntry.getLfnPart(slot, 0));
+                } else if (FatDirectoryEntry.isVolumeLabel(slot, 0)) {
+                    parts.clear();
+                    this.first = -1;
+                } else {
+                    this.name = null;
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        /**
+         * Returns the short name of the current entry.
+         *
+         * @return the current short name
+         */
+        ShortName getShortName() {
+            return ShortName.parse(slot);
+        }
+        
+        /**
+         * Returns the long name of the current entry, which is the short
+         * name for entries without a long name.
+         *
+         * @return the current name
+         */
+        String getName() {
+            if (name != null) return name;
+            
+            if (parts.isEmpty()) {
+                this.name = getShortName().asSimpleString();
+            } else {
+                /* stored in reverse order */
+                final StringBuilder sb = new StringBuilder(13 * parts.size());
+                
+                for (int i = parts.size() - 1; i >= 0; i--) {
+                    sb.append(parts.get(i));
+                }
+                
+                this.name = sb.toString().trim();
+            }
+            
+            return name;
+        }
+        
+        /**
+         * Returns the current entry. The same object is returned for an
+         * entry until the index is built, and then becomes part of it.
+         *
+         * @return the current entry
+         */
+        FatLfnDirectoryEntry getEntry() {
+            final int last = slots.getSlot();
+            
+            synchronized (scannedEntries) {
+                FatLfnDirectoryEntry result = scannedEntries.get(last);
+                
+                if (result == null) {
+                    final FatDirectoryEntry real = slots.getEntry();
+                    dir.adopt(real, last);
+                    
+                    result = new FatLfnDirectoryEntry(
+                            FatLfnDirectory.this, real, getName());
+                    result.slotCount = last - first + 1;
+                    scannedEntries.put(last, result);
+                }
+                
+                return result;
+            }
+        }
+        
+    }
+    
     private void parseLfn() throws IOException {
         int i = 0;
-        final int size = dir.getEntryCount();
+        final int size = dir.getSlotCount();
         
         while (i < size) {
-            // jump over empty entries
-            while (i < size && dir.getEntry(i) == null) {
+            if (dir.getEntry(i) == null && !dir.isLfnSlot(i)) {
                 i++;
+                continue;
             }
-
-            if (i >= size) {
-                break;
-            }
-
-            int offset = i; // beginning of the entry
+            
+            final int offset = i; // beginning of the entry
+            
             // check when we reach a real entry
-            while (dir.getEntry(i).isLfnEntry()) {
+            while (i < size && dir.isLfnSlot(i)) {
                 i++;
-                if (i >= size) {
-                    // This is a cutted entry, forgive it
-                    break;
-                }
             }
             
             if (i >= size) {
@@ -276,58 +711,231 @@ public final class FatLfnDirectory
                 break;
             }
             
-            final FatLfnDirectoryEntry current =
-                    FatLfnDirectoryEntry.extract(this, offset, ++i - offset);
+            if (dir.getEntry(i) == null) {
+                // LFN slots without a real entry, skip them
+                continue;
+            }
             
-            if (!current.realEntry.isDeleted() && current.isValid()) {
-                checkUniqueName(current.getName());
-                this.usedNames.add(current.realEntry.getShortName().asSimpleString().toLowerCase(Locale.ROOT));
-                
-                shortNameIndex.put(current.realEntry.getShortName(), current);
-                longNameIndex.put(current
-                        .getName()
-                        .toLowerCase(Locale.ROOT), current);
+            FatLfnDirectoryEntry current = scannedEntries.get(i);
+            
+            if (current == null) {
+                current = FatLfnDirectoryEntry.extract(
+                        this, offset, i - offset + 1);
+            } else {
+                current.fileName = null;
             }
+            
+            i++;
+            
+            final String name = lowerName(current);
+            
+            if (isUsed(name)) throw new IOException(
+                    "an entry named " + current.getName() +
+                    " already exists");
+            
+            addNames(current, name);
         }
     }
     
-    private void updateLFN() throws IOException {
-        ArrayList<FatDirectoryEntry> dest =
-                new ArrayList<FatDirectoryEntry>();
-
-        for (FatLfnDirectoryEntry currentEntry : shortNameIndex.values()) {
-            FatDirectoryEntry[] encoded = currentEntry.compactForm();
-            dest.addAll(Arrays.asList(encoded));
+    /**
+     * Stores the slots for the specified entry in a free run of slots of
+     * the underlying directory, and adds it to the index. From then on, the
+     * name of the entry is decoded from the slots.
+     *
+     * @param entry the entry to store
+     * @throws IOException on error growing the directory
+     */
+    private void store(FatLfnDirectoryEntry entry) throws IOException {
+        final FatDirectoryEntry[] slots = entry.compactForm();
+        
+        dir.addEntries(slots);
+        entry.slotCount = slots.length;
+        entry.fileName = null;
+        addNames(entry, lowerName(entry));
+    }
+    
+    /**
+     * Called by {@link #dir} when it becomes dirty. This may happen without
+     * holding any directory lock, for example when a file's length changes.
+     */
+    void storageChanged() {
+        if (parent != null && !deleted) {
+            parent.childChanged(this);
         }
+    }
+    
+    /**
+     * Records that the specified sub-directory needs to be flushed, and
+     * makes sure this directory is visited by the next flush as well.
+     *
+     * @param child the sub-directory that needs to be flushed
+     */
+    private void childChanged(FatLfnDirectory child) {
+        if (deleted) return;
         
-        final int size = dest.size();
-
-        dir.changeSize(size);
-        dir.setEntries(dest);
+        if (dirtyChildren.add(child) && parent != null) {
+            parent.childChanged(this);
+        }
     }
-
+    
+    /**
+     * Flushes this directory and all sub-directories which were modified.
+     * Sub-directories which were only read and directories below them are
+     * not visited at all. The sub-directories are flushed without holding
+     * the lock on this directory, so only one directory lock is held at any
+     * time. Flushing a directory which was removed does nothing.
+     *
+     * @throws IOException on write error
+     */
     @Override
     public void flush() throws IOException {
         checkWritable();
         
-        for (FatFile f : entryToFile.values()) {
-            f.flush();
-        }
+        if (deleted) return;
         
-        for (FatLfnDirectory d : entryToDirectory.values()) {
-            d.flush();
+        final Iterator<FatLfnDirectory> it = dirtyChildren.iterator();
+        
+        while (it.hasNext()) {
+            final FatLfnDirectory d = it.next();
+            
+            /* remove first, so changes made while flushing are not lost */
+            it.remove();
+            
+            try {
+                d.flush();
+            } catch (IOException ex) {
+                childChanged(d);
+                throw ex;
+            }
         }
         
-        updateLFN();
-        dir.flush();
+        if (!dir.isDirty()) return;
+        
+        lock.writeLock().lock();
+        try {
+            if (!deleted) dir.flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    /**
+     * Returns an iterator over the entries of this directory. If this
+     * directory has an index, the iterator works on a snapshot which is
+     * not affected by later changes to the directory. Otherwise it reads
+     * the directory one cluster at a time while iterating, and continues
+     * on a snapshot of the remaining entries if the index is built in the
+     * meantime. Read errors are reported as
+     * {@code IllegalStateException}s.
+     *
+     * @return an iterator over the entries of this directory
+     */
     @Override
     public Iterator<FsDirectoryEntry> iterator() {
+        lock.readLock().lock();
+        try {
+            if (!indexed) return new ScanningIterator();
+            
+            return snapshotAfter(-1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Iterates over the entries of a directory without an index.
+     */
+    private final class ScanningIterator
+            implements Iterator<FsDirectoryEntry> {
+        
+        private final Scanner scanner;
+        private FatLfnDirectoryEntry next;
+        private Iterator<FsDirectoryEntry> rest;
+        private int lastSlot;
+        
+        ScanningIterator() {
+            this.scanner = new Scanner();
+            this.lastSlot = -1;
+            advance();
+        }
+        
+        private void advance() {
+            lock.readLock().lock();
+            try {
+                if (indexed) {
+                    this.next = null;
+                    this.rest = snapshotAfter(lastSlot);
+                } else if (scanner.next()) {
+                    this.next = scanner.getEntry();
+                    this.lastSlot = scanner.slots.getSlot();
+                } else {
+                    this.next = null;
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(
+                        "could not read directory", ex); //NOI18N
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return (rest != null) ? rest.hasNext() : (next != null);
+        }
+        
+        @Override
+        public FsDirectoryEntry next() {
+            if (rest != null) return rest.next();
+            if (next == null) throw new NoSuchElementException();
+            
+            final FatLfnDirectoryEntry result = next;
+            advance();
+            return result;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+    }
+    
+    /**
+     * Returns an iterator over a snapshot of the indexed entries stored
+     * after the specified slot, in the order they are stored. Must be called
+     * while holding the read lock.
+     *
+     * @param slot the slot after which the entries are stored
+     * @return the iterator over the entries
+     */
+    private Iterator<FsDirectoryEntry> snapshotAfter(final int slot) {
+        final List<FatLfnDirectoryEntry> entries =
+                new ArrayList<FatLfnDirectoryEntry>();
+        
+        for (FatLfnDirectoryEntry e : names.values()) {
+            if (e.realEntry.getSlot(dir) > slot) entries.add(e);
+        }
+        
+        Collections.sort(entries, new Comparator<FatLfnDirectoryEntry>() {
+            
+            @Override
+            public int compare(FatLfnDirectoryEntry e1,
+                    FatLfnDirectoryEntry e2) {
+                
+                return e1.realEntry.getSlot(dir) - e2.realEntry.getSlot(dir);
+            }
+        });
+        
+        return snapshot(entries);
+    }
+    
+    private static Iterator<FsDirectoryEntry> snapshot(
+            final List<FatLfnDirectoryEntry> entries) {
+        
         return new Iterator<FsDirectoryEntry>() {
 
-            final Iterator<FatLfnDirectoryEntry> it =
-                    shortNameIndex.values().iterator();
+            final Iterator<FatLfnDirectoryEntry> it = entries.iterator();
 
             @Override
             public boolean hasNext() {
@@ -360,19 +968,47 @@ public final class FatLfnDirectory
     public void remove(String name)
             throws IOException, IllegalArgumentException {
         
-        checkWritable();
-        
-        final FatLfnDirectoryEntry entry = getEntry(name);
-        if (entry == null) return;
-        
-        unlinkEntry(entry);
-        
-        final ClusterChain cc = new ClusterChain(
-                fat, entry.realEntry.getStartCluster(), false);
-
-        cc.setChainLength(0);
-        
-        updateLFN();
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            index();
+            
+            final FatLfnDirectoryEntry entry =
+                    lookup(name.trim().toLowerCase(Locale.ROOT));
+            
+            if (entry == null) return;
+            
+            final FatLfnDirectory child = entry.isDirectory() ?
+                entryToDirectory.get(entry.realEntry) : null;
+            
+            unlinkEntry(entry);
+            
+            if (child != null) {
+                dirtyChildren.remove(child);
+                child.markDeleted();
+            }
+            
+            final ClusterChain cc = new ClusterChain(
+                    fat, entry.realEntry.getStartCluster(), false);
+            
+            cc.setChainLength(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Marks this directory as deleted before its cluster chain is freed,
+     * and drops the sub-directories it would have flushed.
+     */
+    private void markDeleted() {
+        lock.writeLock().lock();
+        try {
+            this.deleted = true;
+            this.dirtyChildren.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
     
     /**
@@ -380,31 +1016,39 @@ public final class FatLfnDirectory
      * deleting it.
      *
      * @param e the entry to be unlinked
+     * @throws IOException on error reading the directory
      * @see #linkEntry(de.waldheinz.fs.fat.FatLfnDirectoryEntry) 
      */
-    void unlinkEntry(FatLfnDirectoryEntry entry) {
-        final ShortName sn = entry.realEntry.getShortName();
-        
-        if (sn.equals(ShortName.DOT) || sn.equals(ShortName.DOT_DOT)) throw
-                new IllegalArgumentException(
-                    "the dot entries can not be removed");
-
-        final String lowerName = entry.getName().toLowerCase(Locale.ROOT);
-
-        assert (this.longNameIndex.containsKey(lowerName));
-        this.longNameIndex.remove(lowerName);
-        
-        assert (this.shortNameIndex.containsKey(sn));
-        this.shortNameIndex.remove(sn);
-        this.usedNames.remove(sn.asSimpleString().toLowerCase(Locale.ROOT));
-        
-        assert (this.usedNames.contains(lowerName));
-        this.usedNames.remove(lowerName);
-        
-        if (entry.isFile()) {
-            this.entryToFile.remove(entry.realEntry);
-        } else {
-            this.entryToDirectory.remove(entry.realEntry);
+    void unlinkEntry(FatLfnDirectoryEntry entry) throws IOException {
+        lock.writeLock().lock();
+        try {
+            index();
+            
+            final ShortName sn = entry.realEntry.getShortName();
+            
+            if (sn.equals(ShortName.DOT) || sn.equals(ShortName.DOT_DOT)) throw
+                    new IllegalArgumentException(
+                        "the dot entries can not be removed");
+            
+            final String name = entry.getName();
+            removeNames(entry, name.toLowerCase(Locale.ROOT));
+            
+            if (entry.isFile()) {
+                this.entryToFile.remove(entry.realEntry);
+            } else {
+                this.entryToDirectory.remove(entry.realEntry);
+            }
+            
+            final int last = entry.realEntry.getSlot(dir);
+            
+            /* keep the name while the entry is not stored */
+            entry.fileName = name;
+            
+            if (last >= 0) {
+                dir.freeSlots(last - entry.slotCount + 1, entry.slotCount);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
     
@@ -416,21 +1060,24 @@ public final class FatLfnDirectory
      * @see #unlinkEntry(de.waldheinz.fs.fat.FatLfnDirectoryEntry) 
      */
     void linkEntry(FatLfnDirectoryEntry entry) throws IOException {
-        checkUniqueName(entry.getName());
-
-        final ShortName sn = makeShortName(entry.getName());
-        entry.realEntry.setShortName(sn);
-        
-        this.longNameIndex.put(entry.getName().toLowerCase(Locale.ROOT), entry);
-        this.shortNameIndex.put(entry.realEntry.getShortName(), entry);
-        
-        updateLFN();
+        lock.writeLock().lock();
+        try {
+            index();
+            checkUniqueName(entry.getName());
+            
+            final ShortName sn = makeShortName(entry.getName());
+            entry.realEntry.setShortName(sn);
+            store(entry);
+        } finally {
+            reserved.clear();
+            lock.writeLock().unlock();
+        }
     }
     
     @Override
     public String toString() {
         return getClass().getSimpleName() +
-                " [size=" + shortNameIndex.size() + //NOI18N
+                " [size=" + (indexed ? names.size() : "?") + //NOI18N
                 ", dir=" + dir + "]"; //NOI18N
     }
     
@@ -447,8 +1094,65 @@ public final class FatLfnDirectory
         final ClusterChainDirectory result =
                 new ClusterChainDirectory(chain, false);
 
-        result.read();
+        result.open();
         return result;
     }
     
+    /**
+     * Maps the entries of a directory to their handles, as long as the
+     * handles are in use somewhere else. This way the same handle is
+     * returned for an entry while it is reachable, without keeping a handle
+     * for every entry that was ever looked at. Guarded by the directory's
+     * lock.
+     *
+     * @param <T> the type of the handles
+     */
+    private static final class HandleCache<T> {
+        
+        private final Map<FatDirectoryEntry, Handle<T>> handles;
+        private final ReferenceQueue<T> queue;
+        
+        HandleCache() {
+            this.handles = new HashMap<FatDirectoryEntry, Handle<T>>();
+            this.queue = new ReferenceQueue<T>();
+        }
+        
+        T get(FatDirectoryEntry entry) {
+            purge();
+            
+            final Handle<T> h = handles.get(entry);
+            return (h == null) ? null : h.get();
+        }
+        
+        void put(FatDirectoryEntry entry, T handle) {
+            purge();
+            handles.put(entry, new Handle<T>(entry, handle, queue));
+        }
+        
+        void remove(FatDirectoryEntry entry) {
+            handles.remove(entry);
+        }
+        
+        private void purge() {
+            Handle<?> h;
+            
+            while ((h = (Handle<?>) queue.poll()) != null) {
+                if (handles.get(h.entry) == h) handles.remove(h.entry);
+            }
+        }
+        
+    }
+    
+    private static final class Handle<T> extends WeakReference<T> {
+        
+        final FatDirectoryEntry entry;
+        
+        Handle(FatDirectoryEntry entry, T handle, ReferenceQueue<T> queue) {
+            super(handle, queue);
+            
+            this.entry = entry;
+        }
+        
+    }
+    
 }
@@ -24,6 +24,7 @@ import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
 import de.waldheinz.fs.ReadOnlyException;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Represents an entry in a {@link FatLfnDirectory}. Besides implementing the
@@ -41,10 +42,31 @@ public final class FatLfnDirectoryEntry
         extends AbstractFsObject
         implements FsDirectoryEntry {
     
+    /**
+     * Orders the locking of two directories whose identity hash codes are
+     * equal, see {@link #moveTo(FatLfnDirectory, String)}.
+     */
+    private final static Object MOVE_TIE_LOCK = new Object();
+    
     final FatDirectoryEntry realEntry;
     
-    private FatLfnDirectory parent;
-    private String fileName;
+    private volatile FatLfnDirectory parent;
+    
+    /**
+     * The name of this entry while it is not stored in a loaded parent
+     * directory, {@code null} otherwise. Names of stored entries are
+     * decoded from the parent's slots when asked for, so they take no
+     * memory.
+     *
+     * @see FatLfnDirectory#nameOf(FatLfnDirectoryEntry) 
+     */
+    volatile String fileName;
+    
+    /**
+     * The number of directory slots this entry occupies in the parent,
+     * including the LFN slots. Guarded by the parent's lock.
+     */
+    int slotCount;
     
     FatLfnDirectoryEntry(String name, ShortName sn,
             FatLfnDirectory parent, boolean directory) {
@@ -76,24 +98,37 @@ public final class FatLfnDirectoryEntry
             FatLfnDirectory dir, int offset, int len) {
             
         final FatDirectoryEntry realEntry = dir.dir.getEntry(offset + len - 1);
-        final String fileName;
+        final FatLfnDirectoryEntry result =
+                new FatLfnDirectoryEntry(dir, realEntry, null);
         
+        result.slotCount = len;
+        return result;
+    }
+    
+    /**
+     * Decodes the name of the entry whose real entry is stored in the
+     * specified slot of a directory.
+     *
+     * @param dir the directory holding the entry
+     * @param last the slot of the real entry
+     * @param len the number of slots the entry occupies
+     * @return the decoded name
+     */
+    static String decodeName(AbstractDirectory dir, int last, int len) {
         if (len == 1) {
             /* this is just an old plain 8.3 entry */
-            fileName = realEntry.getShortName().asSimpleString();
-        } else {
-            /* stored in reverse order */
-            final StringBuilder name = new StringBuilder(13 * (len - 1));
-            
-            for (int i = len - 2; i >= 0; i--) {
-                FatDirectoryEntry entry = dir.dir.getEntry(i + offset);
-                name.append(entry.getLfnPart());
-            }
-            
-            fileName = name.toString().trim();
+            return dir.getEntry(last).getShortName().asSimpleString();
+        }
+        
+        /* stored in reverse order */
+        
+        final StringBuilder name = new StringBuilder(13 * (len - 1));
+        
+        for (int i = last - 1; i > last - len; i--) {
+            name.append(dir.getLfnPart(i));
         }
         
-        return new FatLfnDirectoryEntry(dir, realEntry, fileName);
+        return name.toString().trim();
     }
     
     /**
@@ -195,7 +230,7 @@ public final class FatLfnDirectoryEntry
         this.realEntry.setArchiveFlag(archive);
     }
     
-    private int totalEntrySize() {
+    private static int totalEntrySize(String fileName) {
         int result = (fileName.length() / 13) + 1;
 
         if ((fileName.length() % 13) != 0) {
@@ -206,6 +241,8 @@ public final class FatLfnDirectoryEntry
     }
 
     FatDirectoryEntry[] compactForm() {
+        final String fileName = getName();
+        
         if (this.realEntry.getShortName().equals(ShortName.DOT) ||
                 this.realEntry.getShortName().equals(ShortName.DOT_DOT)) {
             /* the dot entries must not have a LFN */
@@ -218,7 +255,7 @@ public final class FatLfnDirectoryEntry
             return new FatDirectoryEntry[]{this.realEntry};
         }
 
-        final int totalEntrySize = totalEntrySize();
+        final int totalEntrySize = totalEntrySize(fileName);
 
         final FatDirectoryEntry[] entries =
                 new FatDirectoryEntry[totalEntrySize];
@@ -245,7 +282,15 @@ public final class FatLfnDirectoryEntry
     public String getName() {
         checkValid();
         
-        return fileName;
+        while (true) {
+            final String name = this.fileName;
+            if (name != null) return name;
+            
+            /* retried if this entry was moved meanwhile */
+            
+            final String decoded = this.parent.nameOf(this);
+            if (decoded != null) return decoded;
+        }
     }
     
     @Override
@@ -259,14 +304,21 @@ public final class FatLfnDirectoryEntry
     public void setName(String newName) throws IOException {
         checkWritable();
         
-        if (!this.parent.isFreeName(newName)) {
-            throw new IOException(
-                    "the name \"" + newName + "\" is already in use");
-        }
+        final FatLfnDirectory dir = this.parent;
         
-        this.parent.unlinkEntry(this);
-        this.fileName = newName;
-        this.parent.linkEntry(this);
+        dir.lock.writeLock().lock();
+        try {
+            if (!dir.isFreeName(newName)) {
+                throw new IOException(
+                        "the name \"" + newName + "\" is already in use");
+            }
+            
+            dir.unlinkEntry(this);
+            this.fileName = newName;
+            dir.linkEntry(this);
+        } finally {
+            dir.lock.writeLock().unlock();
+        }
     }
     
     /**
@@ -282,16 +334,59 @@ public final class FatLfnDirectoryEntry
             throws IOException, ReadOnlyException {
 
         checkWritable();
-
+        
+        final FatLfnDirectory source = this.parent;
+        
+        /* lock both directories in a globally consistent order */
+        
+        final int sourceHash = System.identityHashCode(source);
+        final int targetHash = System.identityHashCode(target);
+        
+        if (source == target || sourceHash != targetHash) {
+            final boolean sourceFirst = (sourceHash <= targetHash);
+            final Lock first = (sourceFirst ? source : target).lock.writeLock();
+            final Lock second = (sourceFirst ? target : source).lock.writeLock();
+            
+            first.lock();
+            try {
+                second.lock();
+                try {
+                    move(source, target, newName);
+                } finally {
+                    second.unlock();
+                }
+            } finally {
+                first.unlock();
+            }
+        } else {
+            synchronized (MOVE_TIE_LOCK) {
+                source.lock.writeLock().lock();
+                try {
+                    target.lock.writeLock().lock();
+                    try {
+                        move(source, target, newName);
+                    } finally {
+                        target.lock.writeLock().unlock();
+                    }
+                } finally {
+                    source.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+    
+    private void move(FatLfnDirectory source, FatLfnDirectory target,
+            String newName) throws IOException {
+        
         if (!target.isFreeName(newName)) {
             throw new IOException(
                     "the name \"" + newName + "\" is already in use");
         }
         
-        this.parent.unlinkEntry(this);
+        source.unlinkEntry(this);
         this.parent = target;
         this.fileName = newName;
-        this.parent.linkEntry(this);
+        target.linkEntry(this);
     }
     
     @Override
@@ -312,7 +407,10 @@ public final class FatLfnDirectoryEntry
     
     @Override
     public String toString() {
-        return "LFN = " + fileName + " / SFN = " + realEntry.getShortName();
+        final String name = this.fileName;
+        
+        return "LFN = " + ((name != null) ? name : parent.nameOf(this)) +
+                " / SFN = " + realEntry.getShortName();
     }
     
     private static FatDirectoryEntry createPart(FatType type, String subName,
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Holds a bounded number of FAT sectors in memory, reading them from the
+ * device on first access. When the cache is full, the least recently used
+ * sector is evicted, writing it to all FAT copies first if it was modified.
+ * Only FAT16 and FAT32 are supported, because their entries never cross
+ * a sector boundary.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @see Fat#read(de.waldheinz.fs.fat.BootSector, int, int) 
+ */
+final class FatSectorCache {
+    
+    private final BootSector bs;
+    private final BlockDevice device;
+    private final FatType fatType;
+    private final long offset;
+    private final int sectorSize;
+    private final int entriesPerSector;
+    private final int maxSectors;
+    private final LinkedHashMap<Integer, CachedSector> sectors;
+    
+    /**
+     * Creates a new {@code FatSectorCache} for the FAT stored at the
+     * specified device offset.
+     *
+     * @param bs the boot sector describing the FAT layout
+     * @param offset the device offset of the FAT copy to read sectors from
+     * @param maxSectors the maximum number of sectors to keep in memory
+     * @throws IllegalArgumentException if {@code maxSectors} is less than 1
+     *      or the FAT type is not supported
+     */
+    FatSectorCache(BootSector bs, long offset, int maxSectors)
+            throws IllegalArgumentException {
+        
+        if (maxSectors < 1) throw new IllegalArgumentException(
+                "cache must hold at least one sector");
+        
+        this.fatType = bs.getFatType();
+        
+        if (fatType == FatType.FAT12) throw new IllegalArgumentException(
+                "FAT12 tables can not be cached by sector");
+        
+        this.bs = bs;
+        this.device = bs.getDevice();
+        this.offset = offset;
+        this.sectorSize = bs.getBytesPerSector();
+        this.entriesPerSector = (int) (sectorSize / fatType.getEntrySize());
+        this.maxSectors = maxSectors;
+        this.sectors = new LinkedHashMap<Integer, CachedSector>(
+                16, 0.75f, true);
+    }
+    
+    public long getEntry(int index) throws IOException {
+        final CachedSector s = getSector(index / entriesPerSector);
+        return fatType.readEntry(s.data, index % entriesPerSector);
+    }
+    
+    public void setEntry(int index, long value) throws IOException {
+        final CachedSector s = getSector(index / entriesPerSector);
+        fatType.writeEntry(s.data, index % entriesPerSector, value);
+        s.dirty = true;
+    }
+    
+    /**
+     * Returns the number of sectors that are currently held in memory.
+     *
+     * @return the number of cached sectors
+     */
+    public int getCachedSectorCount() {
+        return this.sectors.size();
+    }
+    
+    /**
+     * Copies a run of sectors to a buffer, reading them from the device
+     * with a single call. Sectors that are cached are taken from memory, as
+     * they may have been modified. This neither caches the sectors read nor
+     * changes the order in which the cached sectors will be evicted.
+     *
+     * @param first the first sector to read
+     * @param count the number of sectors to read
+     * @param dest the buffer to receive the sector contents
+     * @throws IOException on read error
+     */
+    public void readSectors(int first, int count, ByteBuffer dest)
+            throws IOException {
+        
+        final int start = dest.position();
+        final ByteBuffer run = dest.duplicate();
+        run.limit(start + count * sectorSize);
+        device.read(offset + (long) first * sectorSize, run);
+        
+        /* iterating does not touch the access order, unlike get() */
+        for (Map.Entry<Integer, CachedSector> e : sectors.entrySet()) {
+            final int nr = e.getKey() - first;
+            
+            if (nr >= 0 && nr < count) {
+                final ByteBuffer d = dest.duplicate();
+                d.position(start + nr * sectorSize);
+                d.put(e.getValue().data);
+            }
+        }
+        
+        dest.position(start + count * sectorSize);
+    }
+    
+    /**
+     * Writes all modified sectors to all FAT copies.
+     *
+     * @return the number of bytes written
+     * @throws IOException on write error
+     */
+    public long flush() throws IOException {
+        final SortedMap<Integer, CachedSector> dirty =
+                new TreeMap<Integer, CachedSector>();
+        
+        for (Map.Entry<Integer, CachedSector> e : sectors.entrySet()) {
+            if (e.getValue().dirty) {
+                dirty.put(e.getKey(), e.getValue());
+            }
+        }
+        
+        if (dirty.isEmpty()) return 0;
+        
+        /* write all dirty sectors of all copies with a single device call */
+        final int nrFats = bs.getNrFats();
+        final long[] offsets = new long[nrFats * dirty.size()];
+        final ByteBuffer[] bufs = new ByteBuffer[offsets.length];
+        int pos = 0;
+        
+        for (int i=0; i < nrFats; i++) {
+            for (Map.Entry<Integer, CachedSector> e : dirty.entrySet()) {
+                offsets[pos] = bs.getFatOffset(i) +
+                        (long) e.getKey() * sectorSize;
+                bufs[pos] = ByteBuffer.wrap(e.getValue().data);
+                pos++;
+            }
+        }
+        
+        DeviceUtils.write(device, offsets, bufs);
+        
+        for (CachedSector s : dirty.values()) {
+            s.dirty = false;
+        }
+        
+        return (long) offsets.length * sectorSize;
+    }
+    
+    private CachedSector getSector(int sector) throws IOException {
+        CachedSector result = sectors.get(sector);
+        
+        if (result == null) {
+            result = new CachedSector(sectorSize);
+            device.read(offset + (long) sector * sectorSize,
+                    ByteBuffer.wrap(result.data));
+            sectors.put(sector, result);
+            evict();
+        }
+        
+        return result;
+    }
+    
+    private void evict() throws IOException {
+        final Iterator<Map.Entry<Integer, CachedSector>> it =
+                sectors.entrySet().iterator();
+        
+        while (sectors.size() > maxSectors) {
+            final Map.Entry<Integer, CachedSector> eldest = it.next();
+            
+            if (eldest.getValue().dirty) {
+                write(eldest.getKey(), eldest.getValue());
+            }
+            
+            it.remove();
+        }
+    }
+    
+    private long write(int sector, CachedSector s) throws IOException {
+        final int nrFats = bs.getNrFats();
+        final long[] offsets = new long[nrFats];
+        final ByteBuffer[] bufs = new ByteBuffer[nrFats];
+        
+        for (int i=0; i < nrFats; i++) {
+            offsets[i] = bs.getFatOffset(i) + (long) sector * sectorSize;
+            bufs[i] = ByteBuffer.wrap(s.data);
+        }
+        
+        DeviceUtils.write(device, offsets, bufs);
+        s.dirty = false;
+        return (long) nrFats * sectorSize;
+    }
+    
+    private static final class CachedSector {
+        
+        final byte[] data;
+        boolean dirty;
+        
+        CachedSector(int size) {
+            this.data = new byte[size];
+        }
+        
+    }
+    
+}
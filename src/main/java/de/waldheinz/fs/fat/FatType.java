@@ -51,11 +51,15 @@ public enum FatType {
         void writeEntry(byte[] data, int index, long entry) {
             final int idx = (int) (index * 1.5);
             
+            /* preserve the nibble shared with the neighbouring entry */
+            
             if ((index % 2) == 0) {
                 data[idx] = (byte) (entry & 0xFF);
-                data[idx + 1] = (byte) ((entry >> 8) & 0x0F);
+                data[idx + 1] = (byte) ((data[idx + 1] & 0xF0) |
+                        ((entry >> 8) & 0x0F));
             } else {
-                data[idx] |= (byte) ((entry & 0x0F) << 4);
+                data[idx] = (byte) ((data[idx] & 0x0F) |
+                        ((entry & 0x0F) << 4));
                 data[idx + 1] = (byte) ((entry >> 4) & 0xFF);
             }
         }
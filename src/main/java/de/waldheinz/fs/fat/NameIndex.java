@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package de.waldheinz.fs.fat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The index of the entries of a {@link FatLfnDirectory}, by the hash codes
+ * of their lower-case names. Each entry is recorded under the hash of its
+ * long name and, if that differs, under the hash of its short name. Only
+ * the hash codes are kept, so callers compare the names of the candidate
+ * entries themselves. The records are kept in a single open-addressing
+ * table, which takes far less memory than a map with an object per record.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+final class NameIndex {
+    
+    private static final int MIN_CAPACITY = 16;
+    
+    private FatLfnDirectoryEntry[] entries;
+    private int[] hashes;
+    
+    /**
+     * Marks the records for the long names, of which there is exactly one
+     * per entry.
+     */
+    private boolean[] primary;
+    
+    private int records;
+    private int size;
+    
+    NameIndex() {
+        allocate(MIN_CAPACITY);
+    }
+    
+    private void allocate(int capacity) {
+        this.entries = new FatLfnDirectoryEntry[capacity];
+        this.hashes = new int[capacity];
+        this.primary = new boolean[capacity];
+    }
+    
+    private int home(int hash) {
+        return (hash ^ (hash >>> 16)) & (entries.length - 1);
+    }
+    
+    /**
+     * Returns the number of entries in this index.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * Records an entry under the specified hash.
+     *
+     * @param hash the hash code of one of the entry's names
+     * @param e the entry
+     * @param longName if the hash is the one of the entry's long name
+     */
+    void add(int hash, FatLfnDirectoryEntry e, boolean longName) {
+        if ((records + 1) * 2 > entries.length) {
+            rehash(entries.length * 2);
+        }
+        
+        put(hash, e, longName);
+        records++;
+        if (longName) size++;
+    }
+    
+    private void put(int hash, FatLfnDirectoryEntry e, boolean longName) {
+        final int mask = entries.length - 1;
+        int i = home(hash);
+        
+        while (entries[i] != null) {
+            i = (i + 1) & mask;
+        }
+        
+        entries[i] = e;
+        hashes[i] = hash;
+        primary[i] = longName;
+    }
+    
+    private void rehash(int capacity) {
+        final FatLfnDirectoryEntry[] oldEntries = this.entries;
+        final int[] oldHashes = this.hashes;
+        final boolean[] oldPrimary = this.primary;
+        
+        allocate(capacity);
+        
+        for (int i=0; i < oldEntries.length; i++) {
+            if (oldEntries[i] != null) {
+                put(oldHashes[i], oldEntries[i], oldPrimary[i]);
+            }
+        }
+    }
+    
+    /**
+     * Removes a record of an entry that was added under the specified hash.
+     *
+     * @param hash the hash the entry was recorded under
+     * @param e the entry
+     */
+    void remove(int hash, FatLfnDirectoryEntry e) {
+        final int mask = entries.length - 1;
+        int i = home(hash);
+        
+        while (entries[i] != e || hashes[i] != hash) {
+            if (entries[i] == null) return;
+            i = (i + 1) & mask;
+        }
+        
+        records--;
+        if (primary[i]) size--;
+        
+        /* move records up which would not be found past the gap */
+        
+        int j = i;
+        
+        while (true) {
+            j = (j + 1) & mask;
+            if (entries[j] == null) break;
+            
+            final int h = home(hashes[j]);
+            
+            if ((i < j) ? (h <= i || h > j) : (h <= i && h > j)) {
+                entries[i] = entries[j];
+                hashes[i] = hashes[j];
+                primary[i] = primary[j];
+                i = j;
+            }
+        }
+        
+        entries[i] = null;
+        primary[i] = false;
+        
+        if (entries.length > MIN_CAPACITY && records * 8 < entries.length) {
+            rehash(entries.length / 2);
+        }
+    }
+    
+    /**
+     * Returns the position of the first record for the specified hash,
+     * to be passed to {@link #next(int, int)}.
+     *
+     * @param hash the hash to look for
+     * @return the position where the search starts
+     */
+    int first(int hash) {
+        return next(hash, home(hash));
+    }
+    
+    /**
+     * Returns the position of the next record for the specified hash,
+     * starting at the specified position.
+     *
+     * @param hash the hash to look for
+     * @param pos the position to start at
+     * @return the position of the record, or -1 if there is none
+     */
+    int next(int hash, int pos) {
+        final int mask = entries.length - 1;
+        
+        for (int i = pos & mask; entries[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash) return i;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Returns the entry of the record at the specified position.
+     *
+     * @param pos the position of the record
+     * @return the entry
+     */
+    FatLfnDirectoryEntry get(int pos) {
+        return entries[pos];
+    }
+    
+    /**
+     * Returns all entries in this index, in no particular order.
+     *
+     * @return the list of entries
+     */
+    List<FatLfnDirectoryEntry> values() {
+        final List<FatLfnDirectoryEntry> result =
+                new ArrayList<FatLfnDirectoryEntry>(size);
+        
+        for (int i=0; i < entries.length; i++) {
+            if (primary[i]) result.add(entries[i]);
+        }
+        
+        return result;
+    }
+    
+}
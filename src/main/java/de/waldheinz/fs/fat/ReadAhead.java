@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Detects sequential reads of a {@link ClusterChain} and prefetches the
+ * data following each read into a bounded buffer. The amount of data read
+ * ahead (the window) starts small, doubles whenever the previously fetched
+ * data was consumed completely by sequential reads, and drops to zero as
+ * soon as a read does not continue where the previous one ended.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+final class ReadAhead {
+    
+    /**
+     * The initial read-ahead window size in bytes.
+     */
+    final static int MIN_WINDOW = 16 * 1024;
+    
+    /**
+     * The maximum read-ahead window size in bytes. Reads larger than this
+     * go straight to the chain without being buffered.
+     */
+    final static int MAX_WINDOW = 256 * 1024;
+    
+    private final ClusterChain chain;
+    
+    private ByteBuffer buffer;
+    
+    /**
+     * The chain offset of the first byte in the buffer.
+     */
+    private long bufferStart;
+    
+    /**
+     * The chain offset after the last byte read.
+     */
+    private long lastEnd;
+    
+    private int window;
+    
+    ReadAhead(ClusterChain chain) {
+        this.chain = chain;
+        this.lastEnd = -1;
+    }
+    
+    /**
+     * Reads data from the chain, possibly serving it from the read-ahead
+     * buffer or reading ahead.
+     *
+     * @param offset the chain offset to read from
+     * @param dest the buffer to fill
+     * @param limit the offset where valid data ends (the file length),
+     *      read-ahead never goes beyond this
+     * @throws IOException on read error
+     */
+    void read(long offset, ByteBuffer dest, long limit) throws IOException {
+        final boolean sequential = (offset == lastEnd);
+        lastEnd = offset + dest.remaining();
+        
+        /* serve what the buffer holds */
+        
+        if (buffer != null && offset >= bufferStart &&
+                offset < bufferStart + buffer.limit()) {
+            
+            final ByteBuffer src = buffer.duplicate();
+            src.position((int) (offset - bufferStart));
+            src.limit(src.position() + Math.min(
+                    src.remaining(), dest.remaining()));
+            offset += src.remaining();
+            dest.put(src);
+            
+            if (!dest.hasRemaining()) return;
+        }
+        
+        final int len = dest.remaining();
+        
+        if (!sequential) {
+            window = 0;
+            buffer = null;
+        } else {
+            window = (window == 0) ? MIN_WINDOW :
+                Math.min(MAX_WINDOW, window * 2);
+        }
+        
+        if (window == 0 || len > MAX_WINDOW) {
+            chain.readData(offset, dest);
+            return;
+        }
+        
+        /* fetch the requested data and the window following it at once */
+        
+        final int size = (int) Math.min(len + window, limit - offset);
+        final ByteBuffer b = (buffer != null && buffer.capacity() >= size) ?
+            buffer : ByteBuffer.allocate(len + MAX_WINDOW);
+        
+        buffer = null;
+        b.clear();
+        b.limit(size);
+        chain.readData(offset, b);
+        b.flip();
+        
+        this.buffer = b;
+        this.bufferStart = offset;
+        
+        final ByteBuffer src = b.duplicate();
+        src.limit(len);
+        dest.put(src);
+    }
+    
+    /**
+     * Returns the current read-ahead window size.
+     *
+     * @return the window size in bytes, 0 if no sequential access was
+     *      detected
+     */
+    int getWindow() {
+        return window;
+    }
+    
+    /**
+     * Discards the read-ahead buffer, which must be done whenever the data
+     * in the chain is modified.
+     */
+    void invalidate() {
+        this.buffer = null;
+    }
+    
+}
@@ -19,6 +19,7 @@
 package de.waldheinz.fs.fat;
 
 import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -44,6 +45,8 @@ class Sector {
         this.buffer = ByteBuffer.allocate(size);
         this.buffer.order(ByteOrder.LITTLE_ENDIAN);
         this.dirty = true;
+        
+        DeviceUtils.markMetadata(device, offset, size);
     }
     
     /**
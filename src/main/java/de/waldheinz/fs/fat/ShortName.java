@@ -140,19 +140,32 @@ final class ShortName {
     }
     
     public static ShortName parse(byte[] data) {
+        return parse(data, 0);
+    }
+    
+    /**
+     * Parses the {@code ShortName} stored at the specified offset of a
+     * byte array.
+     *
+     * @param data the array holding the directory entry
+     * @param offset the offset of the directory entry within the array
+     * @return the parsed {@code ShortName}
+     */
+    static ShortName parse(byte[] data, int offset) {
         final char[] nameArr = new char[8];
         
         for (int i = 0; i < nameArr.length; i++) {
-            nameArr[i] = (char) LittleEndian.getUInt8(data, i);
+            nameArr[i] = (char) LittleEndian.getUInt8(data, offset + i);
         }
 
-        if (LittleEndian.getUInt8(data, 0) == 0x05) {
+        if (LittleEndian.getUInt8(data, offset) == 0x05) {
             nameArr[0] = (char) 0xe5;
         }
         
         final char[] extArr = new char[3];
         for (int i = 0; i < extArr.length; i++) {
-            extArr[i] = (char) LittleEndian.getUInt8(data, 0x08 + i);
+            extArr[i] = (char) LittleEndian.getUInt8(data,
+                    offset + 0x08 + i);
         }
 
         return new ShortName(
@@ -161,7 +174,18 @@ final class ShortName {
     }
 
     public void write(byte[] dest) {
-        System.arraycopy(nameBytes, 0, dest, 0, nameBytes.length);
+        write(dest, 0);
+    }
+    
+    /**
+     * Writes this {@code ShortName} to the directory entry stored at the
+     * specified offset of a byte array.
+     *
+     * @param dest the array holding the directory entry
+     * @param offset the offset of the directory entry within the array
+     */
+    void write(byte[] dest, int offset) {
+        System.arraycopy(nameBytes, 0, dest, offset, nameBytes.length);
     }
     
     public String asSimpleString() {
@@ -18,8 +18,9 @@
 
 package de.waldheinz.fs.fat;
 
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -29,7 +30,33 @@ import java.util.Set;
  */
 final class ShortNameGenerator {
     
-    private final Set<String> usedNames;
+    /**
+     * The serial numbers appended to short names stay below this value.
+     */
+    private final static int MAX_SERIAL = 99999;
+    
+    /**
+     * Tells if a short name is already taken.
+     */
+    interface UsedNames {
+        
+        /**
+         * Checks if the specified short name is already in use.
+         *
+         * @param name the lower-case 8.3 name to check
+         * @return if the name is already in use
+         */
+        boolean isUsed(String name);
+    }
+    
+    private final UsedNames usedNames;
+    
+    /**
+     * The last serial number handed out for a name and extension, where
+     * the search for a free serial starts the next time. Without this,
+     * creating n entries with a common prefix would cost O(n^2).
+     */
+    private final Map<String, Integer> lastSerials;
 
     /**
      * Creates a new instance of {@code ShortNameGenerator} that will use
@@ -40,8 +67,25 @@ final class ShortNameGenerator {
      *
      * @param usedNames the look-up for already used 8.3 names
      */
-    public ShortNameGenerator(Set<String> usedNames) {
-        this.usedNames = Collections.unmodifiableSet(usedNames);
+    public ShortNameGenerator(final Set<String> usedNames) {
+        this(new UsedNames() {
+            
+            @Override
+            public boolean isUsed(String name) {
+                return usedNames.contains(name);
+            }
+        });
+    }
+    
+    /**
+     * Creates a new instance of {@code ShortNameGenerator} that asks the
+     * specified {@code UsedNames} to avoid short-name collisions.
+     *
+     * @param usedNames the look-up for already used 8.3 names
+     */
+    ShortNameGenerator(UsedNames usedNames) {
+        this.usedNames = usedNames;
+        this.lastSerials = new HashMap<String, Integer>();
     }
     
     /*
@@ -141,23 +185,29 @@ final class ShortNameGenerator {
             longExt.substring(0, 3) : longExt;
             
         if (forceSuffix || (longName.length() > 8) ||
-                usedNames.contains(new ShortName(longName, shortExt).
+                usedNames.isUsed(new ShortName(longName, shortExt).
                 asSimpleString().toLowerCase(Locale.ROOT))) {
 
             /* we have to append the "~n" suffix */
 
             final int maxLongIdx = Math.min(longName.length(), 8);
-
-            for (int i=1; i < 99999; i++) {
+            final String key = longName.substring(0, maxLongIdx) +
+                    '.' + shortExt; //NOI18N
+            final Integer last = lastSerials.get(key);
+            final int first = (last == null) ? 1 : last;
+            
+            for (int n=0; n < MAX_SERIAL - 1; n++) {
+                final int i = (first - 1 + n) % (MAX_SERIAL - 1) + 1;
                 final String serial = "~" + i; //NOI18N
                 final int serialLen = serial.length();
                 final String shortName = longName.substring(
                         0, Math.min(maxLongIdx, 8-serialLen)) + serial;
                 final ShortName result = new ShortName(shortName, shortExt);
                 
-                if (!usedNames.contains(
+                if (!usedNames.isUsed(
                         result.asSimpleString().toLowerCase(Locale.ROOT))) {
                     
+                    lastSerials.put(key, i);
                     return result;
                 }
             }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.AsyncBlockDevice;
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.ReadOnlyException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes a synchronous {@link BlockDevice} usable as an
+ * {@link AsyncBlockDevice} by running the requests on a pool of worker
+ * threads. The number of requests in flight is bounded by the queue depth
+ * given on construction.
+ * <p>
+ * The wrapped device must allow its {@code read} and {@code write}
+ * methods to be called from several threads at once. This is the case
+ * for {@link FileDisk} and {@link MappedFileDisk}.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class AsyncBlockDeviceAdapter implements AsyncBlockDevice {
+    
+    private final BlockDevice dev;
+    private final int queueDepth;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private volatile boolean closed;
+    
+    /**
+     * Creates a new {@code AsyncBlockDeviceAdapter}.
+     *
+     * @param dev the device to wrap
+     * @param queueDepth the maximum number of requests in flight, which is
+     *      also the number of worker threads
+     * @throws IllegalArgumentException if the queue depth is less than 1
+     */
+    public AsyncBlockDeviceAdapter(BlockDevice dev, int queueDepth)
+            throws IllegalArgumentException {
+        
+        if (queueDepth < 1) throw new IllegalArgumentException(
+                "queue depth must be at least 1"); //NOI18N
+        
+        this.dev = dev;
+        this.queueDepth = queueDepth;
+        this.inFlight = new Semaphore(queueDepth);
+        this.executor = Executors.newFixedThreadPool(
+                queueDepth, new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r,
+                        "AsyncBlockDeviceAdapter"); //NOI18N
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> readAsync(final long devOffset,
+            final ByteBuffer dest) {
+        
+        return submit(new Callable<Void>() {
+            
+            @Override
+            public Void call() throws IOException {
+                dev.read(devOffset, dest);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> writeAsync(final long devOffset,
+            final ByteBuffer src) throws ReadOnlyException {
+        
+        if (isReadOnly()) throw new ReadOnlyException();
+        
+        return submit(new Callable<Void>() {
+            
+            @Override
+            public Void call() throws IOException {
+                dev.write(devOffset, src);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public long getSize() throws IOException {
+        checkClosed();
+        
+        return dev.getSize();
+    }
+    
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+        
+        dev.read(devOffset, dest);
+    }
+    
+    @Override
+    public void write(long devOffset, ByteBuffer src)
+            throws ReadOnlyException, IOException, IllegalArgumentException {
+        
+        checkClosed();
+        
+        dev.write(devOffset, src);
+    }
+    
+    /**
+     * Waits until all requests in flight are completed and flushes the
+     * wrapped device.
+     *
+     * @throws IOException on error flushing the wrapped device
+     */
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        drain();
+        dev.flush();
+    }
+    
+    @Override
+    public int getSectorSize() throws IOException {
+        checkClosed();
+        
+        return dev.getSectorSize();
+    }
+    
+    /**
+     * Waits until all requests in flight are completed, stops the worker
+     * threads and closes the wrapped device.
+     *
+     * @throws IOException on error closing the wrapped device
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        
+        try {
+            drain();
+        } finally {
+            this.closed = true;
+            this.executor.shutdown();
+            this.dev.close();
+        }
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+        
+        return dev.isReadOnly();
+    }
+    
+    /**
+     * Returns the maximum number of requests in flight.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+    
+    private Future<Void> submit(Callable<Void> request) {
+        checkClosed();
+        inFlight.acquireUninterruptibly();
+        
+        final FutureTask<Void> result = new FutureTask<Void>(request) {
+            
+            /* not in done(), which runs on cancel while still executing */
+            @Override
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    inFlight.release();
+                }
+            }
+        };
+        
+        try {
+            executor.execute(result);
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+        
+        return result;
+    }
+    
+    private void drain() throws InterruptedIOException {
+        try {
+            inFlight.acquire(queueDepth);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        
+        inFlight.release(queueDepth);
+    }
+    
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("device already closed");
+    }
+    
+}
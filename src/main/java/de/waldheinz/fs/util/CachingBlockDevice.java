@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.MetadataAwareBlockDevice;
+import de.waldheinz.fs.ReadOnlyException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A {@link BlockDevice} which caches the data of another device in a bounded
+ * pool of fixed-size, aligned blocks. Which block is evicted when the pool is
+ * full is determined by the {@link Policy}.
+ * <p>
+ * Writes are absorbed by the cache (write-back) and only reach the wrapped
+ * device when a dirty block is evicted, or on {@link #flush()} and
+ * {@link #close()}, which write all dirty blocks in ascending offset order.
+ * Blocks which are completely overwritten are never read from the wrapped
+ * device.
+ * </p><p>
+ * The wrapped device should not be accessed directly while it is wrapped,
+ * as the cache would not notice such changes.
+ * </p><p>
+ * The methods of a {@code CachingBlockDevice} may be called from several
+ * threads at once. They are serialized on the instance's monitor, which is
+ * also held while a missed block is read from the wrapped device.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class CachingBlockDevice implements MetadataAwareBlockDevice {
+    
+    /**
+     * The replacement policies a {@code CachingBlockDevice} can use.
+     */
+    public enum Policy {
+        
+        /**
+         * Evicts the least recently used block. A single sequential
+         * transfer larger than the cache evicts all other blocks.
+         */
+        LRU,
+        
+        /**
+         * The "2Q" policy by Johnson and Shasha. Blocks accessed for the
+         * first time enter a small FIFO queue and are only promoted to the
+         * main LRU queue if they are accessed again soon after they left
+         * it. Blocks which were
+         * {@link CachingBlockDevice#markMetadata(long, long) marked} as
+         * metadata go to the main queue directly. This way, sequential
+         * scans only cycle through the FIFO queue, leaving the frequently
+         * used blocks alone.
+         */
+        TWO_QUEUE
+        
+    }
+    
+    private final BlockDevice dev;
+    private final int blockSize;
+    private final int maxBlocks;
+    private final long size;
+    private final Policy policy;
+    
+    /**
+     * The main queue in LRU order. This holds all blocks when using
+     * the {@link Policy#LRU} policy.
+     */
+    private final LinkedHashMap<Long, Block> main;
+    
+    /**
+     * The FIFO queue of blocks accessed only once recently.
+     */
+    private final LinkedHashMap<Long, Block> in;
+    
+    /**
+     * The numbers of the blocks recently evicted from {@link #in}, which
+     * do not hold any data anymore.
+     */
+    private final LinkedHashSet<Long> out;
+    
+    /**
+     * The maximum size of {@link #in}.
+     */
+    private final int maxIn;
+    
+    /**
+     * The maximum size of {@link #out}.
+     */
+    private final int maxOut;
+    
+    /**
+     * Maps the start offset of each metadata range to it's end offset.
+     */
+    private final TreeMap<Long, Long> metadata;
+    
+    private long hits;
+    private long misses;
+    private long writeBacks;
+    private volatile boolean closed;
+    
+    /**
+     * Creates a new {@code CachingBlockDevice} using the {@link Policy#LRU}
+     * policy.
+     *
+     * @param dev the device to cache
+     * @param blockSize the size of the cached blocks in bytes, which must
+     *      be a multiple of the device's sector size, for example it's
+     *      cluster size
+     * @param maxBlocks the maximum number of blocks to cache
+     * @throws IOException on error querying the device
+     * @throws IllegalArgumentException if the block size is not a multiple
+     *      of the sector size or {@code maxBlocks} is less than 1
+     */
+    public CachingBlockDevice(BlockDevice dev, int blockSize, int maxBlocks)
+            throws IOException, IllegalArgumentException {
+        
+        this(dev, blockSize, maxBlocks, Policy.LRU);
+    }
+    
+    /**
+     * Creates a new {@code CachingBlockDevice}.
+     *
+     * @param dev the device to cache
+     * @param blockSize the size of the cached blocks in bytes, which must
+     *      be a multiple of the device's sector size, for example it's
+     *      cluster size
+     * @param maxBlocks the maximum number of blocks to cache
+     * @param policy the replacement policy to use
+     * @throws IOException on error querying the device
+     * @throws IllegalArgumentException if the block size is not a multiple
+     *      of the sector size or {@code maxBlocks} is less than 1
+     */
+    public CachingBlockDevice(BlockDevice dev, int blockSize, int maxBlocks,
+            Policy policy) throws IOException, IllegalArgumentException {
+        
+        final int sectorSize = dev.getSectorSize();
+        
+        if (blockSize < sectorSize || blockSize % sectorSize != 0) {
+            throw new IllegalArgumentException("block size " + blockSize +
+                    " is no multiple of sector size " + sectorSize); //NOI18N
+        }
+        
+        if (maxBlocks < 1) throw new IllegalArgumentException(
+                "need to cache at least one block"); //NOI18N
+        
+        this.dev = dev;
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.size = dev.getSize();
+        this.policy = policy;
+        this.main = new LinkedHashMap<Long, Block>(16, 0.75f, true);
+        this.in = new LinkedHashMap<Long, Block>();
+        this.out = new LinkedHashSet<Long>();
+        this.metadata = new TreeMap<Long, Long>();
+        
+        /* the queue sizes suggested in the 2Q paper */
+        this.maxIn = Math.max(1, maxBlocks / 4);
+        this.maxOut = Math.max(1, maxBlocks / 2);
+    }
+    
+    @Override
+    public long getSize() throws IOException {
+        checkClosed();
+        
+        return size;
+    }
+    
+    @Override
+    public synchronized void read(long devOffset, ByteBuffer dest)
+            throws IOException {
+        
+        checkClosed();
+        checkRange(devOffset, dest.remaining());
+        
+        while (dest.hasRemaining()) {
+            final long nr = devOffset / blockSize;
+            final int off = (int) (devOffset % blockSize);
+            final Block b = getBlock(nr, true);
+            final int len = Math.min(dest.remaining(), b.data.length - off);
+            
+            dest.put(b.data, off, len);
+            devOffset += len;
+        }
+    }
+    
+    @Override
+    public synchronized void write(long devOffset, ByteBuffer src)
+            throws ReadOnlyException, IOException, IllegalArgumentException {
+        
+        checkClosed();
+        
+        if (isReadOnly()) throw new ReadOnlyException();
+        
+        checkRange(devOffset, src.remaining());
+        
+        while (src.hasRemaining()) {
+            final long nr = devOffset / blockSize;
+            final int off = (int) (devOffset % blockSize);
+            final int len = Math.min(src.remaining(),
+                    blockLength(nr) - off);
+            
+            /* no need to read what will be overwritten completely */
+            final Block b = getBlock(nr, off != 0 || len < blockLength(nr));
+            
+            src.get(b.data, off, len);
+            b.dirty = true;
+            devOffset += len;
+        }
+    }
+    
+    /**
+     * Writes all dirty blocks to the wrapped device in ascending offset
+     * order and flushes the wrapped device.
+     *
+     * @throws IOException on write error
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkClosed();
+        
+        final SortedMap<Long, Block> dirty = new TreeMap<Long, Block>();
+        
+        for (Map.Entry<Long, Block> e : main.entrySet()) {
+            if (e.getValue().dirty) {
+                dirty.put(e.getKey(), e.getValue());
+            }
+        }
+        
+        for (Map.Entry<Long, Block> e : in.entrySet()) {
+            if (e.getValue().dirty) {
+                dirty.put(e.getKey(), e.getValue());
+            }
+        }
+        
+        for (Map.Entry<Long, Block> e : dirty.entrySet()) {
+            writeBack(e.getKey(), e.getValue());
+        }
+        
+        dev.flush();
+    }
+    
+    @Override
+    public int getSectorSize() throws IOException {
+        checkClosed();
+        
+        return dev.getSectorSize();
+    }
+    
+    /**
+     * Flushes this cache and closes the wrapped device.
+     *
+     * @throws IOException on error writing back dirty blocks or closing
+     *      the wrapped device
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed()) return;
+        
+        try {
+            flush();
+        } finally {
+            this.closed = true;
+            this.main.clear();
+            this.in.clear();
+            this.out.clear();
+            dev.close();
+        }
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+        
+        return dev.isReadOnly();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the {@link Policy#TWO_QUEUE} policy makes use of this
+     * information.
+     * </p>
+     *
+     * @param devOffset {@inheritDoc}
+     * @param length {@inheritDoc}
+     */
+    @Override
+    public synchronized void markMetadata(long devOffset, long length) {
+        if (length <= 0) return;
+        
+        long start = devOffset;
+        long end = devOffset + length;
+        
+        /* merge with overlapping or adjacent ranges */
+        
+        final Map.Entry<Long, Long> before = metadata.floorEntry(start);
+        
+        if (before != null && before.getValue() >= start) {
+            if (before.getValue() >= end) return;
+            start = before.getKey();
+        }
+        
+        Map.Entry<Long, Long> next = metadata.ceilingEntry(start);
+        
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            metadata.remove(next.getKey());
+            next = metadata.ceilingEntry(start);
+        }
+        
+        metadata.put(start, end);
+        
+        /* blocks which were read before being marked are promoted */
+        
+        final long first = devOffset / blockSize;
+        final long last = (devOffset + length - 1) / blockSize;
+        final Iterator<Map.Entry<Long, Block>> it = in.entrySet().iterator();
+        
+        while (it.hasNext()) {
+            final Map.Entry<Long, Block> e = it.next();
+            
+            if (e.getKey() >= first && e.getKey() <= last) {
+                main.put(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Returns the replacement policy used by this cache.
+     *
+     * @return the replacement policy
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Returns the size of the cached blocks.
+     *
+     * @return the block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Returns the number of blocks currently held by this cache.
+     *
+     * @return the number of cached blocks
+     */
+    public synchronized int getCachedBlockCount() {
+        return main.size() + in.size();
+    }
+    
+    /**
+     * Returns how often a block that was accessed was found in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+    
+    /**
+     * Returns how often a block that was accessed had to be read from the
+     * wrapped device or, if it was overwritten completely, newly created.
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+    
+    /**
+     * Returns how many dirty blocks were written to the wrapped device,
+     * either because they were evicted or because of a {@link #flush()}.
+     *
+     * @return the number of blocks written back
+     */
+    public synchronized long getWriteBackCount() {
+        return writeBacks;
+    }
+    
+    /**
+     * Returns the ratio of hits to all block accesses.
+     *
+     * @return the hit ratio, between 0 and 1
+     */
+    public synchronized double getHitRatio() {
+        final long total = hits + misses;
+        
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+    
+    /**
+     * Resets the hit, miss and write-back counters to zero.
+     */
+    public synchronized void resetCounters() {
+        this.hits = 0;
+        this.misses = 0;
+        this.writeBacks = 0;
+    }
+    
+    private Block getBlock(long nr, boolean load) throws IOException {
+        Block b = main.get(nr);
+        if (b == null) b = in.get(nr);
+        
+        if (b != null) {
+            hits++;
+            return b;
+        }
+        
+        misses++;
+        b = new Block(blockLength(nr));
+        
+        if (load) {
+            dev.read(nr * blockSize, ByteBuffer.wrap(b.data));
+        }
+        
+        if (policy == Policy.LRU || out.remove(nr) || isMetadata(nr)) {
+            main.put(nr, b);
+        } else {
+            in.put(nr, b);
+        }
+        
+        evict();
+        return b;
+    }
+    
+    private void evict() throws IOException {
+        while (getCachedBlockCount() > maxBlocks) {
+            
+            /* never evict the block that was just added to main */
+            if (!in.isEmpty() && (in.size() > maxIn || main.size() <= 1)) {
+                
+                /* remember what was evicted from the FIFO queue */
+                
+                out.add(evict(in));
+                
+                if (out.size() > maxOut) {
+                    final Iterator<Long> it = out.iterator();
+                    it.next();
+                    it.remove();
+                }
+            } else {
+                evict(main);
+            }
+        }
+    }
+    
+    private long evict(LinkedHashMap<Long, Block> queue) throws IOException {
+        final Iterator<Map.Entry<Long, Block>> it =
+                queue.entrySet().iterator();
+        final Map.Entry<Long, Block> eldest = it.next();
+        
+        if (eldest.getValue().dirty) {
+            writeBack(eldest.getKey(), eldest.getValue());
+        }
+        
+        it.remove();
+        return eldest.getKey();
+    }
+    
+    private boolean isMetadata(long nr) {
+        final long start = nr * blockSize;
+        final Map.Entry<Long, Long> e =
+                metadata.lowerEntry(start + blockSize);
+        
+        return (e != null && e.getValue() > start);
+    }
+    
+    private void writeBack(long nr, Block b) throws IOException {
+        dev.write(nr * blockSize, ByteBuffer.wrap(b.data));
+        b.dirty = false;
+        writeBacks++;
+    }
+    
+    /**
+     * Returns the length of the specified block, which is less than the
+     * block size only for the last block of a device whose size is not a
+     * multiple of the block size.
+     */
+    private int blockLength(long nr) {
+        return (int) Math.min(blockSize, size - nr * blockSize);
+    }
+    
+    private void checkRange(long devOffset, int length) {
+        if (devOffset < 0 || devOffset + length > size) {
+            throw new IllegalArgumentException(
+                "offset=" + devOffset +
+                ", length=" + length +
+                ", size=" + size); //NOI18N
+        }
+    }
+    
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("device already closed");
+    }
+    
+    private static final class Block {
+        
+        final byte[] data;
+        boolean dirty;
+        
+        Block(int length) {
+            this.data = new byte[length];
+        }
+        
+    }
+    
+}
@@ -19,20 +19,37 @@
 package de.waldheinz.fs.util;
 
 import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
 import de.waldheinz.fs.ReadOnlyException;
+import de.waldheinz.fs.TransferBlockDevice;
+import de.waldheinz.fs.VectoredBlockDevice;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * This is a {@code BlockDevice} that uses a {@link File} as it's backing store.
+ * Ranges passed to the vectored read and write methods which are adjacent
+ * on the device are transferred with a single scattering read or gathering
+ * write on the underlying {@link FileChannel}, and transfers from or to other
+ * channels are delegated to the {@code FileChannel} so the operating system
+ * can copy the data without passing it through the Java heap.
+ * <p>
+ * The methods of a {@code FileDisk} may be called from several threads at
+ * once. Single-range reads and writes use positional channel operations and
+ * run concurrently, while the vectored ones are serialized because they
+ * move the channel's position.
+ * </p>
  *
  * @author Matthias Treydte &lt;matthias.treydte at meetwise.com&gt;
  */
-public final class FileDisk implements BlockDevice {
+public final class FileDisk
+        implements VectoredBlockDevice, TransferBlockDevice {
 
     /**
      * The number of bytes per sector for all {@code FileDisk} instances.
@@ -141,6 +158,149 @@ public final class FileDisk implements BlockDevice {
         }
     }
 
+    @Override
+    public synchronized void read(long[] devOffsets, ByteBuffer[] dests)
+            throws IOException {
+        
+        checkClosed();
+        checkRanges(devOffsets, dests);
+        
+        int i = 0;
+        
+        while (i < dests.length) {
+            final int n = adjacentCount(devOffsets, dests, i);
+            long toRead = remaining(dests, i, n);
+            
+            fc.position(devOffsets[i]);
+            
+            while (toRead > 0) {
+                final long read = fc.read(dests, i, n);
+                if (read < 0) throw new IOException();
+                toRead -= read;
+            }
+            
+            i += n;
+        }
+    }
+    
+    @Override
+    public synchronized void write(long[] devOffsets, ByteBuffer[] srcs)
+            throws IOException {
+        
+        checkClosed();
+        
+        if (this.readOnly) throw new ReadOnlyException();
+        
+        checkRanges(devOffsets, srcs);
+        
+        int i = 0;
+        
+        while (i < srcs.length) {
+            final int n = adjacentCount(devOffsets, srcs, i);
+            long toWrite = remaining(srcs, i, n);
+            
+            fc.position(devOffsets[i]);
+            
+            while (toWrite > 0) {
+                final long written = fc.write(srcs, i, n);
+                if (written < 0) throw new IOException();
+                toWrite -= written;
+            }
+            
+            i += n;
+        }
+    }
+    
+    @Override
+    public long transferTo(long devOffset, long count,
+            WritableByteChannel target) throws IOException {
+        
+        checkClosed();
+        
+        if (devOffset < 0 || devOffset + count > getSize()) throw
+                new IOException("transfer past end of device"); //NOI18N
+        
+        long done = 0;
+        
+        while (done < count) {
+            final long n = fc.transferTo(
+                    devOffset + done, count - done, target);
+            
+            if (n <= 0) break;
+            done += n;
+        }
+        
+        return done;
+    }
+    
+    @Override
+    public long transferFrom(ReadableByteChannel src, long devOffset,
+            long count) throws IOException {
+        
+        checkClosed();
+        
+        if (this.readOnly) throw new ReadOnlyException();
+        
+        if (devOffset < 0 || devOffset + count > getSize()) throw
+                new IOException("transfer past end of device"); //NOI18N
+        
+        long done = 0;
+        
+        while (done < count) {
+            final long n = fc.transferFrom(
+                    src, devOffset + done, count - done);
+            
+            if (n <= 0) break;
+            done += n;
+        }
+        
+        return done;
+    }
+    
+    private void checkRanges(long[] devOffsets, ByteBuffer[] bufs)
+            throws IOException {
+        
+        DeviceUtils.checkLengths(devOffsets, bufs);
+        
+        final long size = getSize();
+        
+        for (int i=0; i < devOffsets.length; i++) {
+            if (devOffsets[i] < 0) throw new IllegalArgumentException(
+                    "negative offset " + devOffsets[i]); //NOI18N
+            
+            if (devOffsets[i] + bufs[i].remaining() > size) throw
+                    new IOException("access past end of device"); //NOI18N
+        }
+    }
+    
+    /**
+     * Returns how many ranges starting at {@code from} directly follow
+     * each other on the device.
+     */
+    private static int adjacentCount(
+            long[] devOffsets, ByteBuffer[] bufs, int from) {
+        
+        int end = from + 1;
+        
+        while (end < bufs.length && devOffsets[end] ==
+                devOffsets[end - 1] + bufs[end - 1].remaining()) {
+            
+            end++;
+        }
+        
+        return end - from;
+    }
+    
+    private static long remaining(ByteBuffer[] bufs, int from, int n) {
+        long result = 0;
+        
+        for (int i=from; i < from + n; i++) {
+            result += bufs[i].remaining();
+        }
+        
+        return result;
+    }
+    
     @Override
     public void flush() throws IOException {
         checkClosed();
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.DeviceUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes (possibly huge) GZIP compressed disk images.
+ * <p>
+ * A GZIP file may consist of several members. If every member carries an
+ * index subfield in it's extra header field, which holds the compressed
+ * length of the member and the number of bytes it decompresses to, the
+ * members can be located without inflating them and are decompressed in
+ * parallel. Other files are decompressed sequentially.
+ * </p><p>
+ * The {@code write} methods produce such files by compressing fixed size
+ * chunks of a {@code BlockDevice} in parallel. The result is a standard
+ * multi-member GZIP file which can be read by {@code gunzip} and by
+ * {@link RamDisk#readGzipped(java.io.File)}.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class GzipImage {
+    
+    /**
+     * The default number of uncompressed bytes per GZIP member written by
+     * {@link #write(de.waldheinz.fs.BlockDevice, java.io.OutputStream)}.
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    
+    /**
+     * The first subfield ID byte of the index subfield.
+     */
+    final static byte INDEX_SI1 = 'F';
+    
+    /**
+     * The second subfield ID byte of the index subfield.
+     */
+    final static byte INDEX_SI2 = 'C';
+    
+    /**
+     * The size of the header of a member with an index subfield: the fixed
+     * header, XLEN, the subfield header and it's two 32 bit values.
+     */
+    final static int INDEXED_HEADER_SIZE = 10 + 2 + 4 + 8;
+    
+    /**
+     * The size of a member trailer, which holds the CRC32 and ISIZE.
+     */
+    final static int TRAILER_SIZE = 8;
+    
+    final static int ID1 = 0x1f;
+    final static int ID2 = 0x8b;
+    final static int CM_DEFLATE = 8;
+    final static int FLG_FEXTRA = 4;
+    final static byte OS_UNKNOWN = (byte) 255;
+    
+    private final static int BUFFER_SIZE = 64 * 1024;
+    
+    private GzipImage() { /* no instances */ }
+    
+    /**
+     * Describes a GZIP member that carries an index subfield.
+     */
+    final static class Member {
+        
+        final long offset;
+        final int length;
+        final long dataOffset;
+        final int size;
+        
+        Member(long offset, int length, long dataOffset, int size) {
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.size = size;
+        }
+        
+    }
+    
+    /**
+     * Locates all members of the GZIP file which is accessible through
+     * the specified channel.
+     *
+     * @param fc the channel to read from
+     * @return the members of the file, or {@code null} if at least one of
+     *      the members lacks an index subfield
+     * @throws IOException on read error
+     */
+    static List<Member> index(FileChannel fc) throws IOException {
+        final List<Member> result = new ArrayList<Member>();
+        final ByteBuffer header = ByteBuffer.allocate(INDEXED_HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        final long fileSize = fc.size();
+        long offset = 0;
+        long dataOffset = 0;
+        
+        while (offset < fileSize) {
+            header.clear();
+            
+            if (!readFully(fc, offset, header)) return null;
+            
+            if ((header.get(0) & 0xff) != ID1 ||
+                    (header.get(1) & 0xff) != ID2 ||
+                    header.get(2) != CM_DEFLATE ||
+                    header.get(3) != FLG_FEXTRA ||
+                    header.getShort(10) != 12 ||
+                    header.get(12) != INDEX_SI1 ||
+                    header.get(13) != INDEX_SI2 ||
+                    header.getShort(14) != 8) return null;
+            
+            final int length = header.getInt(16);
+            final int size = header.getInt(20);
+            
+            if (length < INDEXED_HEADER_SIZE + TRAILER_SIZE || size < 0 ||
+                    offset + length > fileSize) return null;
+            
+            result.add(new Member(offset, length, dataOffset, size));
+            offset += length;
+            dataOffset += size;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the total number of bytes the specified members decompress
+     * to.
+     *
+     * @param members the members
+     * @return the decompressed size
+     */
+    static long size(List<Member> members) {
+        if (members.isEmpty()) return 0;
+        
+        final Member last = members.get(members.size() - 1);
+        return last.dataOffset + last.size;
+    }
+    
+    /**
+     * Returns the value of the ISIZE field of the last member in the
+     * specified GZIP file. This is the size of the uncompressed data
+     * modulo 2^32 for files consisting of a single member, and only a
+     * hint otherwise.
+     *
+     * @param fc the channel to read from
+     * @return the ISIZE value, or -1 if the file is too short
+     * @throws IOException on read error
+     */
+    static long trailerSize(FileChannel fc) throws IOException {
+        final ByteBuffer isize = ByteBuffer.allocate(4);
+        isize.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (fc.size() < 18 || !readFully(fc, fc.size() - 4, isize)) {
+            return -1;
+        }
+        
+        return isize.getInt(0) & 0xffffffffL;
+    }
+    
+    /**
+     * Decompresses the specified members in parallel and writes the data
+     * to the device. The device must allow concurrent writes.
+     *
+     * @param fc the channel to read the compressed data from
+     * @param members the members to decompress
+     * @param dest the device to write to
+     * @throws IOException on read, write or decompression error
+     */
+    static void inflate(final FileChannel fc, List<Member> members,
+            final BlockDevice dest) throws IOException {
+        
+        final int threads = Math.min(members.size(),
+                Runtime.getRuntime().availableProcessors());
+        
+        if (threads <= 1) {
+            for (Member m : members) {
+                inflate(fc, m, dest);
+            }
+            
+            return;
+        }
+        
+        final ExecutorService executor = newExecutor(threads);
+        
+        try {
+            final List<Future<Void>> results =
+                    new ArrayList<Future<Void>>(members.size());
+            
+            for (final Member m : members) {
+                results.add(executor.submit(new Callable<Void>() {
+                    
+                    @Override
+                    public Void call() throws IOException {
+                        inflate(fc, m, dest);
+                        return null;
+                    }
+                }));
+            }
+            
+            DeviceUtils.await(results);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Sequentially decompresses the GZIP stream and writes the data to the
+     * start of the device.
+     *
+     * @param in the stream to read from
+     * @param dest the device to write to
+     * @return the number of bytes written
+     * @throws IOException on read, write or decompression error, or if the
+     *      decompressed data does not fit on the device
+     */
+    static long inflate(InputStream in, BlockDevice dest) throws IOException {
+        final GZIPInputStream zis = new GZIPInputStream(in, BUFFER_SIZE);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final long size = dest.getSize();
+        long total = 0;
+        
+        while (true) {
+            int read = zis.read(buffer);
+            if (read < 0) break;
+            
+            while (read < buffer.length) {
+                final int more = zis.read(buffer, read, buffer.length - read);
+                if (more < 0) break;
+                read += more;
+            }
+            
+            if (total + read > size) throw new IOException(
+                    "image larger than " + size + " bytes"); //NOI18N
+            
+            dest.write(total, ByteBuffer.wrap(buffer, 0, read));
+            total += read;
+        }
+        
+        return total;
+    }
+    
+    private static void inflate(FileChannel fc, Member m, BlockDevice dest)
+            throws IOException {
+        
+        final ByteBuffer member = ByteBuffer.allocate(m.length);
+        member.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (!readFully(fc, m.offset, member)) throw new IOException(
+                "truncated member at " + m.offset); //NOI18N
+        
+        final Inflater inf = new Inflater(true);
+        
+        /* one spare byte, so the inflater can always reach the end */
+        final byte[] data = new byte[m.size + 1];
+        int total = 0;
+        boolean finished;
+        
+        try {
+            inf.setInput(member.array(), INDEXED_HEADER_SIZE,
+                    m.length - INDEXED_HEADER_SIZE - TRAILER_SIZE);
+            
+            while (!inf.finished() && total < data.length) {
+                final int read = inf.inflate(data, total, data.length - total);
+                
+                if (read == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                
+                total += read;
+            }
+            
+            finished = inf.finished();
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inf.end();
+        }
+        
+        if (!finished || total != m.size) throw new IOException(
+                "corrupt member at " + m.offset); //NOI18N
+        
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, m.size);
+        
+        if ((int) crc.getValue() != member.getInt(m.length - 8) ||
+                m.size != member.getInt(m.length - 4)) throw new IOException(
+                "checksum mismatch in member at " + m.offset); //NOI18N
+        
+        dest.write(m.dataOffset, ByteBuffer.wrap(data, 0, m.size));
+    }
+    
+    /**
+     * Writes the contents of the specified device as a GZIP stream,
+     * compressing chunks of {@link #DEFAULT_CHUNK_SIZE} bytes on all
+     * available processors.
+     *
+     * @param dev the device to export
+     * @param out the stream to write the compressed image to, which is not
+     *      closed by this method
+     * @throws IOException on read or write error
+     */
+    public static void write(BlockDevice dev, OutputStream out)
+            throws IOException {
+        
+        write(dev, out, DEFAULT_CHUNK_SIZE,
+                Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Writes the contents of the specified device to a GZIP compressed
+     * file.
+     *
+     * @param dev the device to export
+     * @param f the file to write, which is created or truncated
+     * @throws IOException on read or write error
+     * @see #write(de.waldheinz.fs.BlockDevice, java.io.OutputStream)
+     */
+    public static void write(BlockDevice dev, File f) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(f);
+        
+        try {
+            write(dev, fos);
+        } finally {
+            fos.close();
+        }
+    }
+    
+    /**
+     * Writes the contents of the specified device as a GZIP stream. The
+     * device is read sequentially by the calling thread, so it need not
+     * support concurrent access. Every chunk becomes a GZIP member of it's
+     * own; chunks holding only zeros are not compressed again but share a
+     * single, precomputed member. At most twice as many chunks as there are
+     * threads are held in memory at any time.
+     *
+     * @param dev the device to export
+     * @param out the stream to write the compressed image to, which is not
+     *      closed by this method
+     * @param chunkSize the number of uncompressed bytes per member
+     * @param threads the number of compressing threads
+     * @throws IOException on read or write error
+     * @throws IllegalArgumentException if the chunk size or the number of
+     *      threads is less than 1
+     */
+    public static void write(BlockDevice dev, OutputStream out,
+            int chunkSize, int threads)
+            throws IOException, IllegalArgumentException {
+        
+        if (chunkSize < 1) throw new IllegalArgumentException(
+                "invalid chunk size " + chunkSize); //NOI18N
+        
+        if (threads < 1) throw new IllegalArgumentException(
+                "invalid thread count " + threads); //NOI18N
+        
+        final long size = dev.getSize();
+        final ExecutorService executor = newExecutor(threads);
+        final LinkedList<Future<byte[]>> pending =
+                new LinkedList<Future<byte[]>>();
+        byte[] zeroMember = null;
+        
+        try {
+            for (long offset = 0; offset < size; offset += chunkSize) {
+                final int len = (int) Math.min(chunkSize, size - offset);
+                final byte[] chunk = new byte[len];
+                dev.read(offset, ByteBuffer.wrap(chunk));
+                
+                if (pending.size() >= 2 * threads) {
+                    out.write(get(pending.removeFirst()));
+                }
+                
+                if (isZero(chunk)) {
+                    if (zeroMember == null || len != chunkSize) {
+                        final byte[] m = member(chunk);
+                        if (len == chunkSize) zeroMember = m;
+                        pending.add(new Done(m));
+                    } else {
+                        pending.add(new Done(zeroMember));
+                    }
+                } else {
+                    pending.add(executor.submit(new Callable<byte[]>() {
+
+                        @Override
+                        public byte[] call() {
+                            return member(chunk);
+                        }
+                    }));
+                }
+            }
+            
+            while (!pending.isEmpty()) {
+                out.write(get(pending.removeFirst()));
+            }
+            
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Compresses the specified data into a GZIP member carrying the index
+     * subfield.
+     *
+     * @param data the data to compress
+     * @return the complete member
+     */
+    static byte[] member(byte[] data) {
+        final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] result = new byte[INDEXED_HEADER_SIZE +
+                data.length + data.length / 1000 + 64];
+        int pos = INDEXED_HEADER_SIZE;
+        
+        try {
+            def.setInput(data);
+            def.finish();
+            
+            while (!def.finished()) {
+                if (pos == result.length - TRAILER_SIZE) {
+                    result = Arrays.copyOf(result, 2 * result.length);
+                }
+                
+                pos += def.deflate(result, pos,
+                        result.length - TRAILER_SIZE - pos);
+            }
+        } finally {
+            def.end();
+        }
+        
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        
+        final int length = pos + TRAILER_SIZE;
+        final ByteBuffer bb = ByteBuffer.wrap(result, 0, length);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        
+        bb.put((byte) ID1).put((byte) ID2);
+        bb.put((byte) CM_DEFLATE).put((byte) FLG_FEXTRA);
+        bb.putInt(0); /* MTIME */
+        bb.put((byte) 0).put(OS_UNKNOWN);
+        bb.putShort((short) 12); /* XLEN */
+        bb.put(INDEX_SI1).put(INDEX_SI2).putShort((short) 8);
+        bb.putInt(length).putInt(data.length);
+        
+        bb.position(pos);
+        bb.putInt((int) crc.getValue()).putInt(data.length);
+        
+        return Arrays.copyOf(result, length);
+    }
+    
+    private static boolean isZero(byte[] data) {
+        for (int i=0; i < data.length; i++) {
+            if (data[i] != 0) return false;
+        }
+        
+        return true;
+    }
+    
+    private static byte[] get(Future<byte[]> f) throws IOException {
+        boolean interrupted = false;
+        
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    final Throwable cause = ex.getCause();
+                    
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new IOException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static ExecutorService newExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r, "GzipImage"); //NOI18N
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+    
+    /**
+     * A {@code Future} for a member that needs no compression.
+     */
+    private final static class Done implements Future<byte[]> {
+        
+        private final byte[] member;
+        
+        Done(byte[] member) {
+            this.member = member;
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+        
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+        
+        @Override
+        public byte[] get() {
+            return member;
+        }
+        
+        @Override
+        public byte[] get(long timeout, TimeUnit unit) {
+            return member;
+        }
+        
+    }
+    
+    private static boolean readFully(FileChannel fc, long pos, ByteBuffer dst)
+            throws IOException {
+        
+        while (dst.hasRemaining()) {
+            final int read = fc.read(dst, pos);
+            if (read < 0) return false;
+            pos += read;
+        }
+        
+        return true;
+    }
+    
+}
@@ -10,7 +10,6 @@ import de.waldheinz.fs.fat.SuperFloppyFormatter;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -34,32 +33,25 @@ public final class ImageBuilder {
         
         try {
             final FileChannel fc = raf.getChannel();
+            final long size = fc.size();
             long dstOffset = 0;
-
-            while (true) {
-                final int read = fc.read(this.buffer);
-
-                if (read >= 0) {
-                    this.buffer.flip();
-                    file.write(dstOffset, this.buffer);
-                    this.buffer.clear();
-                    dstOffset += read;
-                } else {
-                    break;
-                }
+            
+            while (dstOffset < size) {
+                final long read = file.transferFrom(
+                        fc, dstOffset, size - dstOffset);
+                
+                if (read <= 0) break;
+                dstOffset += read;
             }
         } finally {
-            this.buffer.clear();
             raf.close();
         }
     }
     
     private final File imageRoot;
-    private final ByteBuffer buffer;
     
     private ImageBuilder(File imageRoot) {
         this.imageRoot = imageRoot;
-        this.buffer = ByteBuffer.allocate(1024 * 1024);
     }
     
     public void createDiskImage(File outFile) throws IOException {
@@ -80,7 +72,9 @@ public final class ImageBuilder {
             System.out.println("-> " + f);
             
             if (f.isDirectory()) {
-                final FatLfnDirectoryEntry de = dst.addDirectory(f.getName());
+                final File[] children = f.listFiles();
+                final FatLfnDirectoryEntry de = dst.addDirectory(f.getName(),
+                        (children == null) ? 0 : children.length);
                 copyRec(f, de.getDirectory());
             } else if (f.isFile()) {
                 final FatLfnDirectoryEntry de = dst.addFile(f.getName());
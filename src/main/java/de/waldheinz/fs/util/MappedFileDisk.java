@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.DeviceUtils;
+import de.waldheinz.fs.ReadOnlyException;
+import de.waldheinz.fs.VectoredBlockDevice;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@code BlockDevice} that maps a {@link File} into memory. The file is
+ * mapped in segments of at most 1 GiB, so files larger than 2 GiB can be
+ * used. Reading and writing are plain memory copies, and {@link #flush()}
+ * forces the segments which were written to out to the storage device.
+ * <p>
+ * The methods of a {@code MappedFileDisk} may be called from several
+ * threads at once. Reads and writes do not lock; only mapping a segment
+ * for the first time is synchronized. The size of the device is determined
+ * when it is opened. The mappings are released when this instance is
+ * garbage collected, so the file may not be deletable on some platforms
+ * until then.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class MappedFileDisk implements VectoredBlockDevice {
+    
+    /**
+     * The number of bytes per sector for all {@code MappedFileDisk}
+     * instances.
+     */
+    public final static int BYTES_PER_SECTOR = 512;
+    
+    /**
+     * The default size of the mapped segments.
+     */
+    private final static int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private final boolean readOnly;
+    private final long size;
+    private final int segmentSize;
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    
+    /**
+     * The segments written to since the last flush. Guarded by its own
+     * monitor.
+     */
+    private final BitSet dirty;
+    private volatile boolean closed;
+    
+    /**
+     * Creates a new instance of {@code MappedFileDisk} for the specified
+     * {@code File}.
+     *
+     * @param file the file that holds the disk contents
+     * @param readOnly if the file should be mapped in read-only mode, which
+     *      will result in a read-only {@code MappedFileDisk} instance
+     * @throws FileNotFoundException if the specified file does not exist
+     * @throws IOException on error determining the file size
+     */
+    public MappedFileDisk(File file, boolean readOnly)
+            throws FileNotFoundException, IOException {
+        
+        this(file, readOnly, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    MappedFileDisk(File file, boolean readOnly, int segmentSize)
+            throws FileNotFoundException, IOException {
+        
+        if (!file.exists()) throw new FileNotFoundException();
+        
+        final String modeString = readOnly ? "r" : "rw"; //NOI18N
+        
+        this.raf = new RandomAccessFile(file, modeString);
+        this.fc = raf.getChannel();
+        this.readOnly = readOnly;
+        this.size = raf.length();
+        this.segmentSize = segmentSize;
+        this.segments = new AtomicReferenceArray<MappedByteBuffer>(
+                (int) ((size + segmentSize - 1) / segmentSize));
+        this.dirty = new BitSet(segments.length());
+    }
+    
+    /**
+     * Creates a new {@code MappedFileDisk} of the specified size. The
+     * {@code MappedFileDisk} returned by this method will be writable.
+     *
+     * @param file the file to hold the {@code MappedFileDisk} contents
+     * @param size the size of the new {@code MappedFileDisk}
+     * @return the created {@code MappedFileDisk} instance
+     * @throws IOException on error creating the {@code MappedFileDisk}
+     * @throws IllegalArgumentException if size is &lt; 0
+     */
+    public static MappedFileDisk create(File file, long size)
+            throws IOException, IllegalArgumentException {
+        
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be >= 0");
+        }
+        
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw"); //NOI18N
+        
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+        
+        return new MappedFileDisk(file, false);
+    }
+    
+    @Override
+    public long getSize() {
+        checkClosed();
+        
+        return size;
+    }
+    
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+        
+        if (devOffset < 0 || devOffset + dest.remaining() > size) throw
+                new IOException("reading past end of device"); //NOI18N
+        
+        while (dest.hasRemaining()) {
+            final ByteBuffer src = slice(devOffset, dest.remaining());
+            devOffset += src.remaining();
+            dest.put(src);
+        }
+    }
+    
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkClosed();
+        
+        if (this.readOnly) throw new ReadOnlyException();
+        
+        if (devOffset < 0 || devOffset + src.remaining() > size) throw
+                new IOException("writing past end of file"); //NOI18N
+        
+        while (src.hasRemaining()) {
+            final ByteBuffer dest = slice(devOffset, src.remaining());
+            final int len = dest.remaining();
+            final ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + len);
+            src.position(chunk.limit());
+            dest.put(chunk);
+            
+            /* only after the copy, so a concurrent flush can not miss it */
+            markDirty((int) (devOffset / segmentSize));
+            devOffset += len;
+        }
+    }
+    
+    @Override
+    public void read(long[] devOffsets, ByteBuffer[] dests)
+            throws IOException {
+        
+        DeviceUtils.readEach(this, devOffsets, dests);
+    }
+    
+    @Override
+    public void write(long[] devOffsets, ByteBuffer[] srcs)
+            throws IOException {
+        
+        DeviceUtils.writeEach(this, devOffsets, srcs);
+    }
+    
+    /**
+     * Forces all segments which were written to since the last flush out
+     * to the storage device.
+     *
+     * @throws IOException on write error
+     */
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        
+        final BitSet toForce;
+        
+        synchronized (dirty) {
+            toForce = (BitSet) dirty.clone();
+            dirty.clear();
+        }
+        
+        for (int i = toForce.nextSetBit(0); i >= 0;
+                i = toForce.nextSetBit(i+1)) {
+            
+            segments.get(i).force();
+        }
+    }
+    
+    @Override
+    public int getSectorSize() {
+        checkClosed();
+        
+        return BYTES_PER_SECTOR;
+    }
+    
+    /**
+     * Flushes and closes this device.
+     *
+     * @throws IOException on error flushing or closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed()) return;
+        
+        try {
+            flush();
+        } finally {
+            this.closed = true;
+            this.fc.close();
+            this.raf.close();
+        }
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+    
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+        
+        return this.readOnly;
+    }
+    
+    /**
+     * Returns a buffer for the specified range, which is limited to the
+     * segment holding the first byte.
+     */
+    private ByteBuffer slice(long devOffset, int maxLength)
+            throws IOException {
+        
+        final int nr = (int) (devOffset / segmentSize);
+        final int off = (int) (devOffset % segmentSize);
+        
+        final ByteBuffer result = segment(nr).duplicate();
+        result.position(off);
+        result.limit(Math.min(result.capacity(), off + maxLength));
+        return result;
+    }
+    
+    private MappedByteBuffer segment(int nr) throws IOException {
+        final MappedByteBuffer seg = segments.get(nr);
+        if (seg != null) return seg;
+        
+        synchronized (segments) {
+            if (segments.get(nr) == null) {
+                final long start = (long) nr * segmentSize;
+                final FileChannel.MapMode mode = readOnly ?
+                    FileChannel.MapMode.READ_ONLY :
+                    FileChannel.MapMode.READ_WRITE;
+                
+                segments.set(nr, fc.map(mode, start,
+                        Math.min(segmentSize, size - start)));
+            }
+            
+            return segments.get(nr);
+        }
+    }
+    
+    private void markDirty(int nr) {
+        synchronized (dirty) {
+            dirty.set(nr);
+        }
+    }
+    
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("device already closed");
+    }
+    
+}
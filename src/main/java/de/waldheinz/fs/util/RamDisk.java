@@ -19,32 +19,52 @@
 package de.waldheinz.fs.util;
 
 import de.waldheinz.fs.*;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 /**
  * A {@link BlockDevice} that lives entirely in heap memory. This is basically
  * a RAM disk. A {@code RamDisk} is always writable.
+ * <p>
+ * Reads and writes copy straight between the caller's buffer and the backing
+ * array without using any shared position or limit, so a {@code RamDisk} can
+ * be used by multiple threads concurrently without locking.
+ * </p><p>
+ * A {@code RamDisk} is limited to 2 GiB. The {@link SegmentedRamDisk} can
+ * hold larger images outside of the Java heap.
+ * </p>
  *
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
  */
-public final class RamDisk implements BlockDevice {
+public final class RamDisk implements VectoredBlockDevice {
     
     /**
      * The default sector size for {@code RamDisk}s.
      */
     public final static int DEFAULT_SECTOR_SIZE = 512;
     
+    /**
+     * The largest array the JVM will reliably allocate.
+     */
+    private final static int MAX_SIZE = Integer.MAX_VALUE - 8;
+    
+    /**
+     * The initial buffer size when reading an image of unknown size.
+     */
+    private final static int DEFAULT_GROWTH_SIZE = 1024 * 1024;
+    
     private final int sectorSize;
     private final ByteBuffer data;
     private final int size;
-    private boolean closed;
+    private volatile boolean closed;
 
     /**
      * Reads a GZIP compressed disk image from the specified input stream and
@@ -53,31 +73,66 @@ public final class RamDisk implements BlockDevice {
      * @param in the stream to read the disk image from
      * @return the decompressed {@code RamDisk}
      * @throws IOException on read or decompression error
+     * @see #readGzipped(java.io.InputStream, int)
      */
     public static RamDisk readGzipped(InputStream in) throws IOException {
-        final GZIPInputStream zis = new GZIPInputStream(in);
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        
-        final byte[] buffer = new byte[4096];
+        return readGzipped(in, 0);
+    }
+    
+    /**
+     * Reads a GZIP compressed disk image from the specified input stream and
+     * returns a {@code RamDisk} holding the decompressed image. The data is
+     * decompressed directly into the backing array of the new
+     * {@code RamDisk}, which is allocated with the specified size up front.
+     * If the size hint is exact, no other copy of the image is ever held in
+     * memory.
+     *
+     * @param in the stream to read the disk image from
+     * @param sizeHint the expected size of the decompressed image, or
+     *      {@code 0} if unknown
+     * @return the decompressed {@code RamDisk}
+     * @throws IOException on read or decompression error, or if the image
+     *      is larger than 2 GiB
+     * @since 0.6.6
+     */
+    public static RamDisk readGzipped(InputStream in, int sizeHint)
+            throws IOException {
         
-        int read = zis.read(buffer);
+        final GZIPInputStream zis = new GZIPInputStream(in, 64 * 1024);
+        byte[] data = new byte[Math.max(sizeHint, DEFAULT_GROWTH_SIZE)];
         int total = 0;
         
-        while (read >= 0) {
+        while (true) {
+            if (total == data.length) {
+                /* probe for the end before growing, so an exact hint fits */
+                final int b = zis.read();
+                if (b < 0) break;
+                
+                if (data.length == MAX_SIZE) throw new IOException(
+                        "image larger than " + MAX_SIZE + " bytes"); //NOI18N
+                
+                data = Arrays.copyOf(data,
+                        (int) Math.min(MAX_SIZE, 2L * data.length));
+                data[total++] = (byte) b;
+            }
+            
+            final int read = zis.read(data, total, data.length - total);
+            if (read < 0) break;
             total += read;
-            bos.write(buffer, 0, read);
-            read = zis.read(buffer);
         }
-
+        
         if (total < DEFAULT_SECTOR_SIZE) throw new IOException(
                 "read only " + total + " bytes"); //NOI18N
                 
-        final ByteBuffer bb = ByteBuffer.wrap(bos.toByteArray(), 0, total);
+        final ByteBuffer bb = ByteBuffer.wrap(data, 0, total);
         return new RamDisk(bb, DEFAULT_SECTOR_SIZE);
     }
     
     /**
-     * Reads a GZIP compressed file into a new {@code RamDisk} instance.
+     * Reads a GZIP compressed file into a new {@code RamDisk} instance. The
+     * size of the image is taken from the GZIP trailer, so the image is
+     * decompressed straight into a buffer of the right size. Files written
+     * by {@link GzipImage} are decompressed in parallel.
      * 
      * @param f the file to read
      * @return the new RamDisk with the file contents
@@ -90,7 +145,27 @@ public final class RamDisk implements BlockDevice {
         final FileInputStream is = new FileInputStream(f);
         
         try {
-            return readGzipped(is);
+            final FileChannel fc = is.getChannel();
+            final List<GzipImage.Member> members = GzipImage.index(fc);
+            
+            if (members != null) {
+                final long size = GzipImage.size(members);
+                
+                if (size > MAX_SIZE) throw new IOException(
+                        "image larger than " + MAX_SIZE + " bytes"); //NOI18N
+                
+                if (size < DEFAULT_SECTOR_SIZE) throw new IOException(
+                        "read only " + size + " bytes"); //NOI18N
+                
+                final RamDisk result = new RamDisk((int) size);
+                GzipImage.inflate(fc, members, result);
+                return result;
+            }
+            
+            final long isize = GzipImage.trailerSize(fc);
+            
+            return readGzipped(is,
+                    isize > 0 && isize <= MAX_SIZE ? (int) isize : 0);
         } finally {
             is.close();
         }
@@ -135,32 +210,61 @@ public final class RamDisk implements BlockDevice {
         return this.size;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This method copies directly from the backing array and does not touch
+     * any shared buffer state, so it may be called by any number of threads
+     * at the same time without further synchronization.
+     * </p>
+     */
     @Override
     public void read(long devOffset, ByteBuffer dest) throws IOException {
         checkClosed();
-        if (devOffset > getSize()) throw new IllegalArgumentException();
-        
-        data.limit((int) (devOffset + dest.remaining()));
-        data.position((int) devOffset);
+        checkRange(devOffset, dest.remaining());
         
-        dest.put(data);
+        dest.put(data.array(), data.arrayOffset() + (int) devOffset,
+                dest.remaining());
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Like {@link #read(long, java.nio.ByteBuffer)}, this method does not
+     * touch any shared buffer state. Concurrent writes to disjoint regions
+     * need no synchronization; what concurrent readers observe of a region
+     * that is being written is unspecified.
+     * </p>
+     */
     @Override
     public void write(long devOffset, ByteBuffer src) throws IOException {
         checkClosed();
+        checkRange(devOffset, src.remaining());
         
-        if (devOffset + src.remaining() > getSize()) throw new
+        src.get(data.array(), data.arrayOffset() + (int) devOffset,
+                src.remaining());
+    }
+    
+    private void checkRange(long devOffset, int length) {
+        if (devOffset < 0 || devOffset + length > this.size) throw new
                 IllegalArgumentException(
                 "offset=" + devOffset +
-                ", length=" + src.remaining() +
-                ", size=" + getSize());
-                
-        data.limit((int) (devOffset + src.remaining()));
-        data.position((int) devOffset);
+                ", length=" + length +
+                ", size=" + this.size); //NOI18N
+    }
+    
+    @Override
+    public void read(long[] devOffsets, ByteBuffer[] dests)
+            throws IOException {
         
+        DeviceUtils.readEach(this, devOffsets, dests);
+    }
+    
+    @Override
+    public void write(long[] devOffsets, ByteBuffer[] srcs)
+            throws IOException {
         
-        data.put(src);
+        DeviceUtils.writeEach(this, devOffsets, srcs);
     }
     
     /**
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.DeviceUtils;
+import de.waldheinz.fs.VectoredBlockDevice;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@code BlockDevice} that lives in memory outside of the Java heap. Unlike
+ * the {@link RamDisk}, the contents are held in a number of direct
+ * {@code ByteBuffer} segments, so a {@code SegmentedRamDisk} can be larger
+ * than 2 GiB and does not add to the garbage collector's workload.
+ * <p>
+ * Segments can be allocated lazily, when they are first written to with
+ * anything but zeros. Reading from a segment that was not allocated yet
+ * yields zeros, so a sparse image costs only the memory for the segments
+ * that actually hold data.
+ * </p><p>
+ * The methods of a {@code SegmentedRamDisk} may be called from several
+ * threads at once. Reads and writes do not lock; only the allocation of
+ * a new segment is synchronized.
+ * </p>
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ * @since 0.6.6
+ */
+public final class SegmentedRamDisk implements VectoredBlockDevice {
+    
+    /**
+     * The default size of the segments a {@code SegmentedRamDisk} is
+     * made of.
+     */
+    public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    
+    private final static int BUFFER_SIZE = 64 * 1024;
+    
+    private final long size;
+    private final int sectorSize;
+    private final int segmentSize;
+    private final AtomicReferenceArray<ByteBuffer> segments;
+    private volatile boolean closed;
+    
+    /**
+     * Creates a new {@code SegmentedRamDisk} of the specified size, using
+     * the {@link RamDisk#DEFAULT_SECTOR_SIZE}, the
+     * {@link #DEFAULT_SEGMENT_SIZE} and lazy segment allocation.
+     *
+     * @param size the size of the new device in bytes
+     */
+    public SegmentedRamDisk(long size) {
+        this(size, RamDisk.DEFAULT_SECTOR_SIZE, DEFAULT_SEGMENT_SIZE, true);
+    }
+    
+    /**
+     * Creates a new {@code SegmentedRamDisk}.
+     *
+     * @param size the size of the new device in bytes
+     * @param sectorSize the sector size of the new device
+     * @param segmentSize the size of the segments, must be a multiple of
+     *      the sector size
+     * @param lazy if segments should be allocated only when they are first
+     *      written to; otherwise all memory is allocated up front
+     * @throws IllegalArgumentException if any of the sizes is invalid
+     */
+    public SegmentedRamDisk(long size, int sectorSize, int segmentSize,
+            boolean lazy) throws IllegalArgumentException {
+        
+        if (size < 0) throw new IllegalArgumentException(
+                "size must be >= 0"); //NOI18N
+        
+        if (sectorSize < 1) throw new IllegalArgumentException(
+                "invalid sector size"); //NOI18N
+        
+        if (segmentSize < sectorSize || segmentSize % sectorSize != 0)
+            throw new IllegalArgumentException(
+                "invalid segment size " + segmentSize); //NOI18N
+        
+        final long count = (size + segmentSize - 1) / segmentSize;
+        
+        if (count > Integer.MAX_VALUE) throw new IllegalArgumentException(
+                "too many segments"); //NOI18N
+        
+        this.size = size;
+        this.sectorSize = sectorSize;
+        this.segmentSize = segmentSize;
+        this.segments = new AtomicReferenceArray<ByteBuffer>((int) count);
+        
+        if (!lazy) {
+            for (int i=0; i < count; i++) {
+                segment(i);
+            }
+        }
+    }
+    
+    /**
+     * Decompresses a GZIP compressed disk image from the specified stream
+     * into a new {@code SegmentedRamDisk} of the specified size. Segments
+     * that hold only zeros are not allocated.
+     *
+     * @param in the stream to read the disk image from
+     * @param size the size of the new device, which must not be less than
+     *      the size of the decompressed image
+     * @return the new {@code SegmentedRamDisk}
+     * @throws IOException on read or decompression error, or if the image
+     *      is larger than the specified size
+     */
+    public static SegmentedRamDisk readGzipped(InputStream in, long size)
+            throws IOException {
+        
+        final SegmentedRamDisk result = new SegmentedRamDisk(size);
+        GzipImage.inflate(in, result);
+        return result;
+    }
+    
+    /**
+     * Decompresses a GZIP compressed file into a new
+     * {@code SegmentedRamDisk}. Files written by {@link GzipImage} are
+     * decompressed in parallel. Other files are decompressed sequentially,
+     * and the size of the device is the number of bytes inflated rather
+     * than the GZIP trailer, which holds the size only modulo 2^32.
+     *
+     * @param f the file to read
+     * @return the new {@code SegmentedRamDisk}
+     * @throws FileNotFoundException if the specified file does not exist
+     * @throws IOException on read or decompression error
+     */
+    public static SegmentedRamDisk readGzipped(File f)
+            throws FileNotFoundException, IOException {
+        
+        final FileInputStream is = new FileInputStream(f);
+        
+        try {
+            final FileChannel fc = is.getChannel();
+            final List<GzipImage.Member> members = GzipImage.index(fc);
+            
+            if (members != null) {
+                final SegmentedRamDisk result =
+                        new SegmentedRamDisk(GzipImage.size(members));
+                GzipImage.inflate(fc, members, result);
+                return result;
+            }
+            
+            fc.position(0);
+            return inflate(is);
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Decompresses a GZIP stream of unknown size. The segments are
+     * collected as the data is inflated, so the size of the resulting
+     * device is exactly the size of the decompressed data.
+     */
+    private static SegmentedRamDisk inflate(InputStream in)
+            throws IOException {
+        
+        final GZIPInputStream zis = new GZIPInputStream(in, BUFFER_SIZE);
+        final List<ByteBuffer> segs = new ArrayList<ByteBuffer>();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        
+        while (true) {
+            final int read = zis.read(buffer);
+            if (read < 0) break;
+            
+            final ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+            
+            while (src.hasRemaining()) {
+                final long nr = total / DEFAULT_SEGMENT_SIZE;
+                final int off = (int) (total % DEFAULT_SEGMENT_SIZE);
+                final int len = Math.min(src.remaining(),
+                        DEFAULT_SEGMENT_SIZE - off);
+                final ByteBuffer chunk = src.duplicate();
+                chunk.limit(chunk.position() + len);
+                
+                if (nr >= Integer.MAX_VALUE) throw new IOException(
+                        "image too large"); //NOI18N
+                
+                while (segs.size() <= nr) {
+                    segs.add(null);
+                }
+                
+                if (segs.get((int) nr) == null && !isZero(chunk)) {
+                    segs.set((int) nr,
+                            ByteBuffer.allocateDirect(DEFAULT_SEGMENT_SIZE));
+                }
+                
+                if (segs.get((int) nr) != null) {
+                    final ByteBuffer dest = segs.get((int) nr).duplicate();
+                    dest.position(off);
+                    dest.put(chunk);
+                }
+                
+                src.position(src.position() + len);
+                total += len;
+            }
+        }
+        
+        final SegmentedRamDisk result = new SegmentedRamDisk(total);
+        
+        for (int i=0; i < segs.size(); i++) {
+            result.segments.set(i, segs.get(i));
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public long getSize() {
+        checkClosed();
+        
+        return this.size;
+    }
+    
+    /**
+     * Returns the size of the segments this device is made of.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+    
+    /**
+     * Returns the number of segments that are currently allocated.
+     *
+     * @return the number of allocated segments
+     */
+    public int getAllocatedSegmentCount() {
+        int result = 0;
+        
+        for (int i=0; i < segments.length(); i++) {
+            if (segments.get(i) != null) result++;
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+        checkRange(devOffset, dest.remaining());
+        
+        while (dest.hasRemaining()) {
+            final int nr = (int) (devOffset / segmentSize);
+            final int off = (int) (devOffset % segmentSize);
+            final int len = Math.min(dest.remaining(), segmentSize - off);
+            final ByteBuffer seg = segments.get(nr);
+            
+            if (seg == null) {
+                for (int i=0; i < len; i++) {
+                    dest.put((byte) 0);
+                }
+            } else {
+                final ByteBuffer src = seg.duplicate();
+                src.limit(off + len);
+                src.position(off);
+                dest.put(src);
+            }
+            
+            devOffset += len;
+        }
+    }
+    
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkClosed();
+        checkRange(devOffset, src.remaining());
+        
+        while (src.hasRemaining()) {
+            final int nr = (int) (devOffset / segmentSize);
+            final int off = (int) (devOffset % segmentSize);
+            final int len = Math.min(src.remaining(), segmentSize - off);
+            final ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + len);
+            
+            if (segments.get(nr) != null || !isZero(chunk)) {
+                final ByteBuffer dest = segment(nr).duplicate();
+                dest.position(off);
+                dest.put(chunk);
+            }
+            
+            src.position(src.position() + len);
+            devOffset += len;
+        }
+    }
+    
+    @Override
+    public void read(long[] devOffsets, ByteBuffer[] dests)
+            throws IOException {
+        
+        DeviceUtils.readEach(this, devOffsets, dests);
+    }
+    
+    @Override
+    public void write(long[] devOffsets, ByteBuffer[] srcs)
+            throws IOException {
+        
+        DeviceUtils.writeEach(this, devOffsets, srcs);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+    }
+    
+    @Override
+    public int getSectorSize() {
+        checkClosed();
+        
+        return this.sectorSize;
+    }
+    
+    /**
+     * Closes this device and drops the references to its segments, so the
+     * memory can be reclaimed.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        
+        for (int i=0; i < segments.length(); i++) {
+            segments.set(i, null);
+        }
+    }
+    
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+    
+    /**
+     * Returns always {@code false}, as a {@code SegmentedRamDisk} is always
+     * writable.
+     *
+     * @return always {@code false}
+     */
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+        
+        return false;
+    }
+    
+    private ByteBuffer segment(int nr) {
+        final ByteBuffer seg = segments.get(nr);
+        if (seg != null) return seg;
+        
+        synchronized (segments) {
+            if (segments.get(nr) == null) {
+                final long start = (long) nr * segmentSize;
+                segments.set(nr, ByteBuffer.allocateDirect(
+                        (int) Math.min(segmentSize, size - start)));
+            }
+            
+            return segments.get(nr);
+        }
+    }
+    
+    private static boolean isZero(ByteBuffer buf) {
+        for (int i=buf.position(); i < buf.limit(); i++) {
+            if (buf.get(i) != 0) return false;
+        }
+        
+        return true;
+    }
+    
+    private void checkRange(long devOffset, int length) {
+        if (devOffset < 0 || devOffset + length > this.size) throw new
+                IllegalArgumentException(
+                "offset=" + devOffset +
+                ", length=" + length +
+                ", size=" + this.size); //NOI18N
+    }
+    
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("device already closed");
+    }
+    
+}
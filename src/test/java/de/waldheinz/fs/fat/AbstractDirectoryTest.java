@@ -50,11 +50,12 @@ public class AbstractDirectoryTest {
         AbstractDirectory directory = new AbstractDirectory(FatType.FAT32, TEST_CAPACITY, false, true) {
 
             @Override
-            protected void write(ByteBuffer data) throws IOException {
+            protected void write(long offset, ByteBuffer data) throws IOException {
             }
 
             @Override
-            protected void read(ByteBuffer data) throws IOException {
+            protected void read(long offset, ByteBuffer data)
+                    throws IOException {
             }
 
             @Override
@@ -71,6 +71,65 @@ public class ClusterChainDirectoryTest {
         }
     }
 
+    @Test
+    public void testGeometricGrowth() throws IOException {
+        System.out.println("geometricGrowth");
+        
+        /* interleave with file allocations that compete for clusters */
+        
+        final ClusterChain other = new ClusterChain(fat, false);
+        int resizes = 0;
+        int capacity = dir.getCapacity();
+        
+        for (int i=0; i < 10000; i++) {
+            dir.addEntry(FatDirectoryEntry.create(FatType.FAT32, false));
+            
+            if (dir.getCapacity() != capacity) {
+                capacity = dir.getCapacity();
+                resizes++;
+                other.setChainLength(other.getChainLength() + 1);
+            }
+        }
+        
+        assertTrue("too many resizes: " + resizes, resizes <= 10);
+        assertTrue(dir.chain.getExtentCount() <= resizes + 1);
+        assertTrue(capacity < 2 * 10000);
+    }
+    
+    @Test
+    public void testGrowthWhenNearlyFull() throws IOException {
+        System.out.println("growthWhenNearlyFull");
+        
+        while (dir.chain.getChainLength() < 4 ||
+                dir.getEntryCount() < dir.getCapacity()) {
+            
+            dir.addEntry(FatDirectoryEntry.create(FatType.FAT32, false));
+        }
+        
+        /* leave a single free cluster, so doubling is impossible */
+        
+        final ClusterChain other = new ClusterChain(fat, false);
+        other.setChainLength(fat.getFreeClusterCount() - 1);
+        
+        final int length = dir.chain.getChainLength();
+        dir.addEntry(FatDirectoryEntry.create(FatType.FAT32, false));
+        
+        assertEquals(length + 1, dir.chain.getChainLength());
+        assertEquals(0, fat.getFreeClusterCount());
+    }
+    
+    @Test
+    public void testCreateSubPresized() throws IOException {
+        System.out.println("createSubPresized");
+        
+        final FatDirectoryEntry e = dir.createSub(fat, 1000);
+        final ClusterChain cc =
+                new ClusterChain(fat, e.getStartCluster(), false);
+        
+        assertTrue(cc.getLengthOnDisk() >= 1002 * FatDirectoryEntry.SIZE);
+        assertEquals(1, cc.getExtentCount());
+    }
+    
     @Test
     public void testGetStorageCluster() {
         System.out.println("getStorageCluster");
@@ -18,7 +18,6 @@
 
 package de.waldheinz.fs.fat;
 
-
 import de.waldheinz.fs.util.RamDisk;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -156,6 +155,101 @@ public class ClusterChainTest {
         assertEquals(1, cc.getChainLength());
     }
 
+    @Test
+    public void testSetChainLengthContiguous() throws IOException {
+        System.out.println("setChainLength (contiguous)");
+        
+        cc.setChainLength(3);
+        cc.setChainLength(8);
+        
+        final long[] chain = fat.getChain(cc.getStartCluster());
+        assertEquals(8, chain.length);
+        
+        for (int i=1; i < chain.length; i++) {
+            assertEquals(chain[i - 1] + 1, chain[i]);
+        }
+    }
+    
+    @Test
+    public void testExtents() throws IOException {
+        System.out.println("extents");
+        
+        cc.setChainLength(3);
+        new ClusterChain(fat, false).setChainLength(1);
+        cc.setChainLength(6);
+        
+        assertEquals(2, cc.getExtentCount());
+        assertChainMatchesFat();
+        
+        cc.setChainLength(4);
+        assertEquals(2, cc.getExtentCount());
+        assertChainMatchesFat();
+        
+        cc.setChainLength(3);
+        assertEquals(1, cc.getExtentCount());
+        assertChainMatchesFat();
+        
+        final ClusterChain other =
+                new ClusterChain(fat, cc.getStartCluster(), false);
+        assertEquals(3, other.getChainLength());
+        assertEquals(1, other.getExtentCount());
+        
+        cc.setChainLength(0);
+        assertEquals(0, cc.getExtentCount());
+        assertEquals(0, cc.getLengthOnDisk());
+    }
+    
+    private void assertChainMatchesFat() {
+        final long[] chain = fat.getChain(cc.getStartCluster());
+        assertEquals(chain.length, cc.getChainLength());
+        
+        for (int i=0; i < chain.length; i++) {
+            assertEquals(chain[i], cc.getCluster(i));
+        }
+    }
+    
+    @Test
+    public void testReadDataCoalesced() throws IOException {
+        System.out.println("readData (coalesced)");
+        
+        final CountingDevice dev = new CountingDevice(
+                new RamDisk(512 * 2048));
+        SuperFloppyFormatter.get(dev).format();
+        
+        final Fat cfat = Fat.read(BootSector.read(dev), 0);
+        final ClusterChain chain = new ClusterChain(cfat, false);
+        final int clusterSize = chain.getClusterSize();
+        
+        chain.setChainLength(4);
+        new ClusterChain(cfat, false).setChainLength(1);
+        chain.setChainLength(8);
+        assertEquals(2, chain.getExtentCount());
+        
+        final ByteBuffer data = ByteBuffer.allocate(8 * clusterSize);
+        
+        dev.count = 0;
+        chain.writeData(0, data);
+        assertEquals(2, dev.count);
+        
+        data.clear();
+        dev.count = 0;
+        chain.readData(0, data);
+        assertEquals(2, dev.count);
+        assertFalse(data.hasRemaining());
+        
+        data.clear();
+        data.limit(2 * clusterSize);
+        dev.count = 0;
+        chain.readData(clusterSize / 2, data);
+        assertEquals(1, dev.count);
+        
+        data.clear();
+        data.limit(2 * clusterSize);
+        dev.count = 0;
+        chain.readData(3 * clusterSize + 1, data);
+        assertEquals(2, dev.count);
+    }
+    
     @Test
     public void testFirstClusterAlloc() throws IOException {
         System.out.println("firstClusterAlloc");
@@ -172,4 +266,5 @@ public class ClusterChainTest {
 
         cc.setChainLength(-1);
     }
+    
 }
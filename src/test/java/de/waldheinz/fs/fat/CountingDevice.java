@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import de.waldheinz.fs.BlockDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BlockDevice} wrapper counting the read and write calls. The
+ * {@link #count} includes both, {@link #writes} only the write calls.
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+final class CountingDevice implements BlockDevice {
+
+    private final BlockDevice dev;
+    int count;
+    int writes;
+
+    CountingDevice(BlockDevice dev) {
+        this.dev = dev;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return dev.getSize();
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        count++;
+        dev.read(devOffset, dest);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        count++;
+        writes++;
+        dev.write(devOffset, src);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        dev.flush();
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        return dev.getSectorSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dev.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return dev.isClosed();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return dev.isReadOnly();
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import de.waldheinz.fs.util.RamDisk;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class FatFileChannelTest {
+    
+    private FatFile file;
+    private byte[] data;
+    
+    @Before
+    public void setUp() throws IOException {
+        final RamDisk rd = new RamDisk(16 * 1024 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(rd).format();
+        
+        this.file = fs.getRoot().addFile("test.dat").getFile();
+        this.data = new byte[300000];
+        new Random(42).nextBytes(data);
+    }
+    
+    @Test
+    public void testWriteSmallChunks() throws IOException {
+        System.out.println("writeSmallChunks");
+        
+        final FatFileChannel ch = file.newChannel();
+        
+        for (int pos=0; pos < data.length; pos += 1000) {
+            final int len = Math.min(1000, data.length - pos);
+            assertEquals(len, ch.write(ByteBuffer.wrap(data, pos, len)));
+        }
+        
+        assertEquals(data.length, ch.position());
+        assertEquals(data.length, ch.size());
+        ch.close();
+        
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        file.read(0, read);
+        assertArrayEquals(data, read.array());
+    }
+    
+    @Test
+    public void testReadAndSeek() throws IOException {
+        System.out.println("readAndSeek");
+        
+        file.write(0, ByteBuffer.wrap(data));
+        final FatFileChannel ch = file.newChannel();
+        
+        final ByteBuffer small = ByteBuffer.allocate(100);
+        assertEquals(100, ch.read(small));
+        assertArrayEquals(Arrays.copyOf(data, 100), small.array());
+        
+        ch.position(200000);
+        final ByteBuffer large = ByteBuffer.allocate(150000);
+        assertEquals(100000, ch.read(large));
+        assertEquals(-1, ch.read(large));
+        assertArrayEquals(Arrays.copyOfRange(data, 200000, 300000),
+                Arrays.copyOf(large.array(), 100000));
+        
+        ch.position(5);
+        small.clear();
+        assertEquals(100, ch.read(small));
+        assertArrayEquals(Arrays.copyOfRange(data, 5, 105), small.array());
+    }
+    
+    @Test
+    public void testRepositionSeesOtherWrites() throws IOException {
+        System.out.println("repositionSeesOtherWrites");
+        
+        file.write(0, ByteBuffer.wrap(data));
+        final FatFileChannel ch = file.newChannel();
+        
+        final ByteBuffer small = ByteBuffer.allocate(100);
+        assertEquals(100, ch.read(small));
+        
+        /* overwrite the buffered range behind the channel's back */
+        
+        final byte[] other = new byte[100];
+        Arrays.fill(other, (byte) 0x55);
+        file.write(0, ByteBuffer.wrap(other));
+        
+        ch.position(0);
+        small.clear();
+        assertEquals(100, ch.read(small));
+        assertArrayEquals(other, small.array());
+        ch.close();
+    }
+    
+    @Test
+    public void testOverwriteAndTruncate() throws IOException {
+        System.out.println("overwriteAndTruncate");
+        
+        file.write(0, ByteBuffer.wrap(data));
+        final FatFileChannel ch = file.newChannel();
+        
+        ch.position(1000);
+        ch.write(ByteBuffer.allocate(10));
+        
+        /* the pending write must be visible to reads */
+        final ByteBuffer read = ByteBuffer.allocate(20);
+        ch.position(995);
+        ch.read(read);
+        
+        for (int i=0; i < 20; i++) {
+            final byte expected = (i >= 5 && i < 15) ? 0 : data[995 + i];
+            assertEquals(expected, read.get(i));
+        }
+        
+        ch.truncate(500);
+        assertEquals(500, ch.position());
+        assertEquals(500, file.getLength());
+    }
+    
+    @Test
+    public void testStreams() throws IOException {
+        System.out.println("streams");
+        
+        final OutputStream os = file.newOutputStream();
+        os.write(data, 0, 7);
+        os.write(data, 7, data.length - 7);
+        os.close();
+        
+        assertEquals(data.length, file.getLength());
+        
+        final InputStream is = file.newInputStream();
+        final byte[] read = new byte[data.length];
+        int total = 0;
+        
+        while (total < read.length) {
+            final int n = is.read(read, total, Math.min(333, read.length - total));
+            assertTrue(n > 0);
+            total += n;
+        }
+        
+        assertEquals(-1, is.read());
+        is.close();
+        
+        assertArrayEquals(data, read);
+    }
+    
+}
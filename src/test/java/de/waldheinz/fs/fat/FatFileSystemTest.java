@@ -26,7 +26,12 @@ import java.util.Iterator;
 import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
 import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.util.FileDisk;
 import de.waldheinz.fs.util.RamDisk;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -311,4 +316,127 @@ public class FatFileSystemTest {
             assertNotNull(rootDir.getEntry("f-" + i));
         }
     }
+    
+    @Test
+    public void testFatCopiesMatchAfterFlush() throws IOException {
+        System.out.println("fatCopiesMatchAfterFlush");
+        
+        final FatType[] types = {
+            FatType.FAT12, FatType.FAT16, FatType.FAT32 };
+        final int[] sizes = {
+            1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024 };
+        
+        for (int t=0; t < types.length; t++) {
+            final RamDisk rd = new RamDisk(sizes[t]);
+            final FatFileSystem fs = SuperFloppyFormatter.get(rd)
+                    .setFatType(types[t]).format();
+            final Random rnd = new Random(1);
+            
+            /* allocate and free clusters all over the FAT */
+            
+            for (int i=0; i < 60; i++) {
+                final FatFile f = fs.getRoot().addFile("f" + i).getFile();
+                f.write(0, ByteBuffer.allocate(rnd.nextInt(20000) + 1));
+                
+                if (i % 3 == 0) fs.getRoot().remove("f" + (i / 2));
+            }
+            
+            fs.flush();
+            
+            final BootSector bs = fs.getBootSector();
+            assertEquals(types[t].toString(), fs.getFat(), Fat.read(bs, 0));
+            assertEquals(types[t].toString(), fs.getFat(), Fat.read(bs, 1));
+            fs.close();
+        }
+    }
+    
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        System.out.println("concurrentAccess");
+        
+        final File f = File.createTempFile("fatFsTest", ".img");
+        f.deleteOnExit();
+        
+        final FileDisk fd = FileDisk.create(f, 32 * 1024 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(fd).format();
+        final int threads = 4;
+        final List<Thread> workers = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        
+        for (int t=0; t < threads; t++) {
+            final int nr = t;
+            
+            workers.add(new Thread() {
+                
+                @Override
+                public void run() {
+                    try {
+                        work(fs, nr);
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        
+        fs.close();
+        
+        /* check the result with a fresh instance */
+        
+        final FatFileSystem fs2 = FatFileSystem.read(fd, true);
+        
+        for (int t=0; t < threads; t++) {
+            final FatLfnDirectory dir =
+                    fs2.getRoot().getEntry("dir" + t).getDirectory();
+            
+            for (int i=0; i < 10; i++) {
+                checkFile(dir.getEntry("file" + i).getFile(), t * 100 + i);
+            }
+        }
+        
+        fd.close();
+        f.delete();
+    }
+    
+    private static void work(FatFileSystem fs, int nr) throws IOException {
+        final FatLfnDirectory dir =
+                fs.getRoot().addDirectory("dir" + nr).getDirectory();
+        
+        for (int i=0; i < 10; i++) {
+            final FatFile file = dir.addFile("file" + i).getFile();
+            file.write(0, ByteBuffer.wrap(content(nr * 100 + i)));
+            
+            /* interleave with listings and reads of other files */
+            
+            for (FsDirectoryEntry e : fs.getRoot()) {
+                e.getName();
+            }
+            
+            checkFile(file, nr * 100 + i);
+            fs.flush();
+        }
+    }
+    
+    private static byte[] content(int seed) {
+        final byte[] result = new byte[10000 + seed * 37];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+    
+    private static void checkFile(FatFile file, int seed) throws IOException {
+        final byte[] expected = content(seed);
+        final ByteBuffer read = ByteBuffer.allocate(expected.length);
+        file.read(0, read);
+        assertArrayEquals(expected, read.array());
+    }
+    
 }
@@ -18,10 +18,20 @@
 
 package de.waldheinz.fs.fat;
 
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.util.FileDisk;
 import de.waldheinz.fs.util.RamDisk;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -116,4 +126,138 @@ public class FatFileTest {
                 ff.getChain().getChainLength());
     }
     
+    @Test
+    public void testTransferFileDisk() throws Exception {
+        System.out.println("transfer (FileDisk)");
+        
+        final File img = File.createTempFile("fatFileTest", ".img");
+        final File host = File.createTempFile("fatFileTest", ".dat");
+        img.deleteOnExit();
+        host.deleteOnExit();
+        
+        final byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        
+        final FileDisk fd = FileDisk.create(img, 16 * 1024 * 1024);
+        
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(host, "rw");
+            
+            try {
+                final FileChannel fc = raf.getChannel();
+                fc.write(ByteBuffer.wrap(data));
+                fc.position(0);
+                
+                checkTransfer(fd, data, fc);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            fd.close();
+            img.delete();
+            host.delete();
+        }
+    }
+    
+    @Test
+    public void testTransferRamDisk() throws Exception {
+        System.out.println("transfer (RamDisk)");
+        
+        final byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        
+        checkTransfer(new RamDisk(16 * 1024 * 1024), data, null);
+    }
+    
+    @Test
+    public void testTransferShortSourceOnFullVolume() throws Exception {
+        System.out.println("transfer (short source, full volume)");
+        
+        final FatFileSystem fs =
+                SuperFloppyFormatter.get(new RamDisk(4 * 1024 * 1024)).format();
+        final long free = fs.getFreeSpace();
+        
+        /* leave room for the data, but far less than the count */
+        fs.getRoot().addFile("filler").getFile().setLength(free - 64 * 1024);
+        
+        final byte[] data = new byte[30000];
+        new Random(2).nextBytes(data);
+        
+        final FatFile file = fs.getRoot().addFile("a").getFile();
+        assertEquals(data.length, file.transferFrom(Channels.newChannel(
+                new ByteArrayInputStream(data)), 0, 1024L * 1024 * 1024));
+        assertEquals(data.length, file.getLength());
+        
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        file.read(0, read);
+        assertArrayEquals(data, read.array());
+        fs.close();
+    }
+    
+    @Test
+    public void testReadAhead() throws Exception {
+        System.out.println("readAhead");
+        
+        final CountingDevice dev = new CountingDevice(
+                new RamDisk(16 * 1024 * 1024));
+        final FatFileSystem fs = SuperFloppyFormatter.get(dev).format();
+        final FatFile file = fs.getRoot().addFile("a").getFile();
+        final byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        file.write(0, ByteBuffer.wrap(data));
+        
+        /* sequential 4k reads are served mostly from the buffer */
+        
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        final ByteBuffer chunk = ByteBuffer.allocate(4096);
+        dev.count = 0;
+        
+        for (int pos=0; pos < data.length; pos += chunk.capacity()) {
+            chunk.clear();
+            file.read(pos, chunk);
+            chunk.flip();
+            read.put(chunk);
+        }
+        
+        assertArrayEquals(data, read.array());
+        assertTrue("device reads: " + dev.count, dev.count < 16);
+        
+        /* random access disables the read-ahead */
+        
+        dev.count = 0;
+        
+        for (int i=0; i < 10; i++) {
+            chunk.clear();
+            file.read((i * 7919 * 4096L) % (data.length - 4096), chunk);
+        }
+        
+        assertEquals(10, dev.count);
+    }
+    
+    private static void checkTransfer(BlockDevice dev, byte[] data,
+            FileChannel src) throws IOException {
+        
+        final FatFileSystem fs = SuperFloppyFormatter.get(dev).format();
+        final FatFile file = fs.getRoot().addFile("a").getFile();
+        
+        /* block the file's growth so it spans several extents */
+        file.setLength(1);
+        fs.getRoot().addFile("b").getFile().setLength(10000);
+        
+        final long transferred = (src != null) ?
+            file.transferFrom(src, 0, data.length + 1000) :
+            file.transferFrom(Channels.newChannel(
+                new ByteArrayInputStream(data)), 0, data.length + 1000);
+        
+        assertEquals(data.length, transferred);
+        assertEquals(data.length, file.getLength());
+        assertTrue(file.getChain().getExtentCount() > 1);
+        
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(data.length - 100, file.transferTo(
+                100, data.length, Channels.newChannel(bos)));
+        assertArrayEquals(Arrays.copyOfRange(data, 100, data.length),
+                bos.toByteArray());
+    }
+    
 }
@@ -18,16 +18,19 @@
 
 package de.waldheinz.fs.fat;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
 import org.junit.Before;
 import org.junit.Test;
@@ -509,4 +512,351 @@ public class FatLfnDirectoryTest {
         root.addDirectory("bundle.jar-embedded");
         assertFalse ("Shortname bundle~2.jar shouldn't be available", root.isFreeName("bundle~2.jar"));
     }
+    @Test
+    public void testIncrementalFlush() throws IOException {
+        System.out.println("incrementalFlush");
+        
+        final CountingDevice cd = new CountingDevice(
+                new RamDisk(4 * 1024 * 1024));
+        final FatFileSystem fs = SuperFloppyFormatter.get(cd).format();
+        final FatLfnDirectory root = fs.getRoot();
+        
+        for (int i=0; i < 20; i++) {
+            final FatLfnDirectory sub =
+                    root.addDirectory("directory " + i).getDirectory();
+            
+            for (int j=0; j < 50; j++) {
+                sub.addFile("file " + j);
+            }
+        }
+        
+        fs.flush();
+        
+        /* nothing changed, nothing to write */
+        
+        cd.writes = 0;
+        fs.flush();
+        assertEquals(0, cd.writes);
+        
+        /* a time stamp change rewrites a single sector */
+        
+        final long time = 1234567890000l;
+        
+        root.getEntry("directory 7").getDirectory()
+                .getEntry("file 42").setLastModified(time);
+        
+        cd.writes = 0;
+        fs.flush();
+        assertEquals(1, cd.writes);
+        fs.close();
+        
+        final FatFileSystem fs2 = FatFileSystem.read(cd, true);
+        assertEquals(time, fs2.getRoot().getEntry("directory 7")
+                .getDirectory().getEntry("file 42").getLastModified());
+    }
+    
+    @Test
+    public void testRemoveInPlace() throws IOException {
+        System.out.println("removeInPlace");
+        
+        final RamDisk rd = new RamDisk(8 * 1024 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(rd).format();
+        final FatLfnDirectory sub =
+                fs.getRoot().addDirectory("sub").getDirectory();
+        
+        for (int i=0; i < 1000; i++) {
+            sub.addFile("a file with a long name " + i);
+        }
+        
+        final int capacity = sub.dir.getCapacity();
+        final int slots = sub.dir.getSlotCount();
+        
+        for (int i=0; i < 1000; i += 2) {
+            sub.remove("a file with a long name " + i);
+        }
+        
+        /* nothing moves and the directory does not shrink */
+        
+        assertEquals(capacity, sub.dir.getCapacity());
+        assertEquals(slots, sub.dir.getSlotCount());
+        
+        fs.close();
+        
+        final FatFileSystem fs2 = FatFileSystem.read(rd, false);
+        final FatLfnDirectory sub2 =
+                fs2.getRoot().getEntry("sub").getDirectory();
+        
+        for (int i=0; i < 1000; i++) {
+            final FatLfnDirectoryEntry e =
+                    sub2.getEntry("a file with a long name " + i);
+            
+            assertEquals("entry " + i, (i % 2) == 1, e != null);
+        }
+        
+        assertTrue(sub2.dir.getEntryCount() < sub2.dir.getSlotCount());
+        
+        /* the free slots are reused */
+        
+        for (int i=0; i < 1000; i += 2) {
+            sub2.addFile("b file with a long name " + i);
+        }
+        
+        assertEquals(capacity, sub2.dir.getCapacity());
+        assertEquals(slots, sub2.dir.getSlotCount());
+        fs2.close();
+    }
+    
+    @Test
+    public void testAddDirectoryPresized() throws IOException {
+        System.out.println("addDirectoryPresized");
+        
+        final FatLfnDirectory sub =
+                dir.addDirectory("sub", 500).getDirectory();
+        
+        final int capacity = sub.dir.getCapacity();
+        assertTrue(capacity >= 1002);
+        
+        for (int i=0; i < 500; i++) {
+            sub.addFile("file " + i);
+        }
+        
+        assertEquals(capacity, sub.dir.getCapacity());
+    }
+    
+    @Test
+    public void testLazyLookup() throws IOException {
+        System.out.println("lazyLookup");
+        
+        final CountingDevice cd = new CountingDevice(
+                new RamDisk(8 * 1024 * 1024));
+        createLargeDirectory(cd);
+        
+        final FatFileSystem fs = FatFileSystem.read(cd, false);
+        final FatLfnDirectory sub = fs.getRoot().getEntry("sub").getDirectory();
+        assertFalse(sub.dir.isLoaded());
+        
+        /* finding an entry near the start reads only the first cluster */
+        
+        cd.count = 0;
+        final FatLfnDirectoryEntry e =
+                sub.getEntry("A FILE WITH A LONG NAME 3");
+        assertNotNull(e);
+        assertEquals(1, cd.count);
+        assertSame(e, sub.getEntry("a file with a long name 3"));
+        assertFalse(sub.dir.isLoaded());
+        
+        /* modified entries are written without loading the directory */
+        
+        final long time = 1234567890000l;
+        e.setLastModified(time);
+        fs.flush();
+        assertFalse(sub.dir.isLoaded());
+        
+        /* the index reuses the entries handed out before */
+        
+        sub.addFile("another file");
+        assertTrue(sub.dir.isLoaded());
+        assertSame(e, sub.getEntry("a file with a long name 3"));
+        fs.close();
+        
+        final FatFileSystem fs2 = FatFileSystem.read(cd, true);
+        final FatLfnDirectory sub2 =
+                fs2.getRoot().getEntry("sub").getDirectory();
+        
+        assertEquals(time,
+                sub2.getEntry("a file with a long name 3").getLastModified());
+        assertNotNull(sub2.getEntry("another file"));
+        assertNull(sub2.getEntry("no such file"));
+        assertNotNull(sub2.getEntry("a file with a long name 1999"));
+    }
+    
+    @Test
+    public void testLazyIteration() throws IOException {
+        System.out.println("lazyIteration");
+        
+        final RamDisk rd = new RamDisk(8 * 1024 * 1024);
+        createLargeDirectory(rd);
+        
+        final FatFileSystem fs = FatFileSystem.read(rd, false);
+        final FatLfnDirectory sub = fs.getRoot().getEntry("sub").getDirectory();
+        final HashSet<String> names = new HashSet<String>();
+        
+        for (FsDirectoryEntry e : sub) {
+            assertTrue(names.add(e.getName()));
+        }
+        
+        assertEquals(2002, names.size());
+        assertFalse(sub.dir.isLoaded());
+        
+        /* the iterator continues on the index once it is built */
+        
+        names.clear();
+        final Iterator<FsDirectoryEntry> it = sub.iterator();
+        
+        for (int i=0; i < 100; i++) {
+            assertTrue(names.add(it.next().getName()));
+        }
+        
+        sub.remove("a file with a long name 1000");
+        
+        while (it.hasNext()) {
+            assertTrue(names.add(it.next().getName()));
+        }
+        
+        assertEquals(2001, names.size());
+        assertFalse(names.contains("a file with a long name 1000"));
+        fs.close();
+    }
+    
+    @Test
+    public void testRemovedEntryKeepsName() throws IOException {
+        System.out.println("removedEntryKeepsName");
+        
+        final String name = "A Name which is Decoded from the Slots";
+        final FatLfnDirectoryEntry e = dir.addFile(name);
+        
+        assertEquals(name, e.getName());
+        assertSame(e, dir.getEntry(name.toUpperCase(Locale.ROOT)));
+        
+        dir.remove(name);
+        
+        assertEquals(name, e.getName());
+        assertNull(dir.getEntry(name));
+    }
+    
+    @Test
+    public void testFootprint() throws IOException {
+        System.out.println("footprint");
+        
+        final int count = 20000;
+        final RamDisk rd = new RamDisk(64 * 1024 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(rd).
+                setFatType(FatType.FAT32).format();
+        final FatLfnDirectory sub =
+                fs.getRoot().addDirectory("sub", count).getDirectory();
+        
+        for (int i=0; i < count; i++) {
+            sub.addFile("a long file name " + i);
+        }
+        
+        fs.close();
+        
+        final FatFileSystem fs2 = FatFileSystem.read(rd, false);
+        final FatLfnDirectoryEntry entry = fs2.getRoot().getEntry("sub");
+        final long before = usedMemory();
+        final FatLfnDirectory sub2 = entry.getDirectory();
+        
+        /* builds the index */
+        sub2.addFile("x");
+        
+        final long perEntry = (usedMemory() - before) / count;
+        System.out.println(perEntry + " bytes per entry");
+        
+        /* the entries took 717 bytes each with a copy of every name */
+        assertTrue(perEntry < 400);
+        assertNotNull(sub2.getEntry("a long file name " + (count - 1)));
+        fs2.close();
+    }
+    
+    private static long usedMemory() {
+        final Runtime rt = Runtime.getRuntime();
+        
+        for (int i=0; i < 4; i++) {
+            System.gc();
+            
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        return rt.totalMemory() - rt.freeMemory();
+    }
+    
+    private static void createLargeDirectory(BlockDevice dev)
+            throws IOException {
+        
+        final FatFileSystem fs = SuperFloppyFormatter.get(dev).format();
+        final FatLfnDirectory sub =
+                fs.getRoot().addDirectory("sub", 2000).getDirectory();
+        
+        for (int i=0; i < 2000; i++) {
+            sub.addFile("a file with a long name " + i);
+        }
+        
+        fs.close();
+    }
+    
+    @Test
+    public void testRemoveDirectoryThenReuseClusters() throws IOException {
+        System.out.println("removeDirectoryThenReuseClusters");
+        
+        final FatType[] types = {
+            FatType.FAT12, FatType.FAT16, FatType.FAT32 };
+        final int[] sizes = {
+            1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024 };
+        
+        for (int t=0; t < types.length; t++) {
+            final RamDisk rd = new RamDisk(sizes[t]);
+            final FatFileSystem fs = SuperFloppyFormatter.get(rd)
+                    .setFatType(types[t]).format();
+            final FatLfnDirectory root = fs.getRoot();
+            
+            final FatLfnDirectory d = root.addDirectory("d").getDirectory();
+            d.addFile("a file in d");
+            root.remove("d");
+            
+            /* the file gets the clusters of the removed directory */
+            
+            final byte[] data =
+                    new byte[fs.getBootSector().getBytesPerCluster()];
+            
+            for (int i=0; i < data.length; i++) {
+                data[i] = (byte) (i + 1);
+            }
+            
+            root.addFile("f").getFile().write(0, ByteBuffer.wrap(data));
+            fs.close();
+            
+            final FatFileSystem fs2 = FatFileSystem.read(rd, true);
+            final ByteBuffer read = ByteBuffer.allocate(data.length);
+            fs2.getRoot().getEntry("f").getFile().read(0, read);
+            
+            assertArrayEquals(types[t].toString(), data, read.array());
+            assertNull(fs2.getRoot().getEntry("d"));
+        }
+    }
+    
+    @Test
+    public void testCompactWhenFull() throws IOException {
+        System.out.println("compactWhenFull");
+        
+        int count = 0;
+        
+        try {
+            while (true) {
+                dir.addFile("F" + count++);
+            }
+        } catch (DirectoryFullException ex) {
+            /* the root directory is full now */
+        }
+        
+        for (int i=0; i < 10; i += 2) {
+            dir.remove("F" + i);
+        }
+        
+        dir.addFile("a somewhat longer name");
+        dir.flush();
+        
+        final FatLfnDirectory reread = new FatLfnDirectory(
+                Fat16RootDirectory.read((Fat16BootSector) bs, false),
+                fat, false);
+        
+        assertNotNull(reread.getEntry("a somewhat longer name"));
+        assertNotNull(reread.getEntry("F1"));
+        assertNull(reread.getEntry("F2"));
+        assertNotNull(reread.getEntry("F" + (count - 2)));
+    }
+    
 }
@@ -21,6 +21,7 @@ package de.waldheinz.fs.fat;
 import de.waldheinz.fs.BlockDevice;
 import de.waldheinz.fs.util.RamDisk;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -99,6 +100,85 @@ public class FatTest {
         fat.writeCopy(bs.getFatOffset(1));
     }
     
+    @Test
+    public void testFlush() throws IOException {
+        System.out.println("flush");
+        
+        fat.flush();
+        assertEquals(0, fat.getLastFlushBytesWritten());
+        
+        final long cluster = fat.allocNew();
+        fat.allocAppend(cluster);
+        fat.flush();
+        
+        final long fatSize = bs.getSectorsPerFat() * bs.getBytesPerSector();
+        
+        assertEquals(2 * bs.getBytesPerSector(),
+                fat.getLastFlushBytesWritten());
+        assertEquals(2 * fatSize - fat.getLastFlushBytesWritten(),
+                fat.getLastFlushBytesSkipped());
+        assertEquals(fat, Fat.read(bs, 0));
+        assertEquals(fat, Fat.read(bs, 1));
+        
+        fat.flush();
+        assertEquals(0, fat.getLastFlushBytesWritten());
+    }
+    
+    @Test
+    public void testReadPaged() throws IOException {
+        System.out.println("read (paged)");
+        
+        final RamDisk rd = new RamDisk(64 * 1024 * 1024);
+        FatFileSystem fs = SuperFloppyFormatter.get(rd)
+                .setFatType(FatType.FAT32).format();
+        fs.close();
+        
+        fs = FatFileSystem.read(rd, false, 2);
+        assertTrue(fs.getFat().isPaged());
+        
+        for (int i=0; i < 10; i++) {
+            final FatFile f = fs.getRoot().addFile("file" + i).getFile();
+            f.write(0, ByteBuffer.allocate((i + 1) * 100000));
+        }
+        
+        fs.getRoot().remove("file3");
+        fs.close();
+        
+        final Fat paged = fs.getFat();
+        final BootSector fsBs = BootSector.read(rd);
+        
+        assertEquals(Fat.read(fsBs, 0), paged);
+        assertEquals(Fat.read(fsBs, 1), paged);
+        
+        fs = FatFileSystem.read(rd, true);
+        assertEquals(paged.getFreeClusterCount(),
+                fs.getFat().getFreeClusterCount());
+        assertEquals(9 * 100000 + 100000,
+                fs.getRoot().getEntry("file9").getFile().getLength());
+    }
+    
+    @Test
+    public void testPagedFreeScan() throws IOException {
+        System.out.println("pagedFreeScan");
+        
+        final RamDisk rd = new RamDisk(64 * 1024 * 1024);
+        SuperFloppyFormatter.get(rd).setFatType(FatType.FAT32).format()
+                .close();
+        
+        final CountingDevice cd = new CountingDevice(rd);
+        final BootSector cbs = BootSector.read(cd);
+        final Fat paged = Fat.read(cbs, 0, 2);
+        final long fatSize = cbs.getSectorsPerFat() * cbs.getBytesPerSector();
+        
+        cd.count = 0;
+        assertEquals(Fat.read(BootSector.read(rd), 0).getFreeClusterCount(),
+                paged.getFreeClusterCount());
+        
+        /* the whole FAT is scanned with a few large reads */
+        assertTrue("reads: " + cd.count,
+                cd.count <= fatSize / (1024 * 1024) + 1);
+    }
+    
     @Test
     public void testGetMediumDescriptor() {
         System.out.println("getMediumDescriptor");
@@ -136,4 +216,83 @@ public class FatTest {
         }
     }
     
+    @Test
+    public void testAllocNewContiguous() throws IOException {
+        System.out.println("allocNew (contiguous)");
+        
+        final long[] chain = fat.allocNew(10);
+        assertEquals(10, chain.length);
+        
+        for (int i=1; i < chain.length; i++) {
+            assertEquals(chain[i - 1] + 1, chain[i]);
+            assertEquals(chain[i], fat.getNextCluster(chain[i - 1]));
+        }
+        
+        assertEquals(-1, fat.getNextCluster(chain[9]));
+        
+        final long[] more = fat.allocAppend(chain[0], 5);
+        assertEquals(chain[9] + 1, more[0]);
+        assertEquals(15, fat.getChain(chain[0]).length);
+    }
+    
+    @Test
+    public void testAllocNewFragmented() throws IOException {
+        System.out.println("allocNew (fragmented)");
+        
+        final int free = fat.getFreeClusterCount();
+        final long[] all = fat.allocNew(free);
+        assertEquals(0, fat.getFreeClusterCount());
+        
+        /* free runs of 1, 2, 3 and 4 clusters */
+        
+        for (int run = 1, at = 10; run <= 4; at += 10 * run, run++) {
+            for (int i=0; i < run; i++) {
+                fat.setFree(all[at + i]);
+            }
+        }
+        
+        final long[] chain = fat.allocNew(6);
+        
+        /* uses the runs of 4 and 3 clusters, the latter partially */
+        
+        assertEquals(all[40], chain[0]);
+        assertEquals(all[41], chain[1]);
+        assertEquals(all[70], chain[2]);
+        assertEquals(all[73], chain[5]);
+        assertEquals(4, fat.getFreeClusterCount());
+        
+        try {
+            fat.allocNew(5);
+            fail("allocated too many clusters");
+        } catch (IOException ex) {
+            assertEquals(4, fat.getFreeClusterCount());
+        }
+    }
+    
+    @Test
+    public void testSetFree() throws IOException {
+        System.out.println("setFree");
+        
+        final int max = fat.getFreeClusterCount();
+        final long first = fat.allocNew();
+        final long second = fat.allocAppend(first);
+        assertEquals(max - 2, fat.getFreeClusterCount());
+        
+        fat.setFree(first);
+        fat.setFree(first);
+        assertEquals(max - 1, fat.getFreeClusterCount());
+        
+        while (fat.getFreeClusterCount() > 1) {
+            fat.allocNew();
+        }
+        
+        /* allocation wraps around to the only free cluster left */
+        
+        assertEquals(first, fat.allocNew());
+        assertEquals(0, fat.getFreeClusterCount());
+        
+        fat.setFree(second);
+        assertEquals(1, fat.getFreeClusterCount());
+    }
+    
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class FatTypeTest {
+    
+    @Test
+    public void testFat12WriteEntry() {
+        System.out.println("writeEntry (FAT12)");
+        
+        final FatType t = FatType.FAT12;
+        final byte[] data = new byte[6];
+        
+        t.writeEntry(data, 1, 0xabc);
+        t.writeEntry(data, 0, 0x123);
+        t.writeEntry(data, 2, 0xfff);
+        t.writeEntry(data, 3, 0x456);
+        
+        assertEquals(0x123, t.readEntry(data, 0));
+        assertEquals(0xabc, t.readEntry(data, 1));
+        assertEquals(0xfff, t.readEntry(data, 2));
+        assertEquals(0x456, t.readEntry(data, 3));
+        
+        t.writeEntry(data, 1, 0);
+        t.writeEntry(data, 2, 0x789);
+        
+        assertEquals(0x123, t.readEntry(data, 0));
+        assertEquals(0, t.readEntry(data, 1));
+        assertEquals(0x789, t.readEntry(data, 2));
+        assertEquals(0x456, t.readEntry(data, 3));
+    }
+    
+    @Test
+    public void testFat32WriteEntry() {
+        System.out.println("writeEntry (FAT32)");
+        
+        final FatType t = FatType.FAT32;
+        final byte[] data = new byte[8];
+        
+        t.writeEntry(data, 1, 0x0fffffffL);
+        t.writeEntry(data, 0, 0x01234567L);
+        
+        assertEquals(0x01234567L, t.readEntry(data, 0));
+        assertEquals(0x0fffffffL, t.readEntry(data, 1));
+    }
+    
+}
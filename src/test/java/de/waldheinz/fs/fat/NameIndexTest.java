@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.fat;
+
+import de.waldheinz.fs.util.RamDisk;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class NameIndexTest {
+    
+    private List<FatLfnDirectoryEntry> entries;
+    
+    @Before
+    public void setUp() throws IOException {
+        final FatFileSystem fs = SuperFloppyFormatter.get(
+                new RamDisk(1024 * 1024)).format();
+        
+        this.entries = new ArrayList<FatLfnDirectoryEntry>();
+        
+        for (int i=0; i < 100; i++) {
+            entries.add(fs.getRoot().addFile("file " + i));
+        }
+    }
+    
+    @Test
+    public void testCollisions() {
+        System.out.println("collisions");
+        
+        final NameIndex index = new NameIndex();
+        
+        /* every entry under the same few hashes */
+        
+        for (int i=0; i < entries.size(); i++) {
+            index.add(i % 3, entries.get(i), true);
+        }
+        
+        assertEquals(entries.size(), index.size());
+        
+        for (int i=0; i < entries.size(); i += 2) {
+            index.remove(i % 3, entries.get(i));
+        }
+        
+        assertEquals(entries.size() / 2, index.size());
+        
+        for (int i=0; i < entries.size(); i++) {
+            assertEquals("entry " + i, (i % 2) == 1,
+                    find(index, i % 3, entries.get(i)));
+        }
+    }
+    
+    @Test
+    public void testValues() {
+        System.out.println("values");
+        
+        final NameIndex index = new NameIndex();
+        
+        for (int i=0; i < entries.size(); i++) {
+            index.add(i, entries.get(i), true);
+            index.add(-i, entries.get(i), false);
+        }
+        
+        final Set<FatLfnDirectoryEntry> values =
+                new HashSet<FatLfnDirectoryEntry>(index.values());
+        
+        assertEquals(entries.size(), index.values().size());
+        assertEquals(new HashSet<FatLfnDirectoryEntry>(entries), values);
+        
+        for (int i=0; i < entries.size(); i++) {
+            index.remove(i, entries.get(i));
+            index.remove(-i, entries.get(i));
+        }
+        
+        assertEquals(0, index.size());
+        assertTrue(index.values().isEmpty());
+    }
+    
+    private static boolean find(
+            NameIndex index, int hash, FatLfnDirectoryEntry e) {
+        
+        for (int p = index.first(hash); p >= 0; p = index.next(hash, p + 1)) {
+            if (index.get(p) == e) return true;
+        }
+        
+        return false;
+    }
+    
+}
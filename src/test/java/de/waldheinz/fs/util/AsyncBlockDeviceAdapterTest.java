@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.fat.FatFile;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class AsyncBlockDeviceAdapterTest {
+    
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        System.out.println("concurrentRequests");
+        
+        /* every read waits until two reads are running */
+        
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AsyncBlockDeviceAdapter async = new AsyncBlockDeviceAdapter(
+                new LatchDevice(latch), 2);
+        
+        final Future<Void> a = async.readAsync(0, ByteBuffer.allocate(10));
+        final Future<Void> b = async.readAsync(10, ByteBuffer.allocate(10));
+        
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        async.close();
+    }
+    
+    @Test
+    public void testFlushWaitsForCancelledRequest() throws Exception {
+        System.out.println("flushWaitsForCancelledRequest");
+        
+        final GateDevice dev = new GateDevice();
+        final AsyncBlockDeviceAdapter async =
+                new AsyncBlockDeviceAdapter(dev, 2);
+        
+        final Future<Void> f = async.readAsync(0, ByteBuffer.allocate(10));
+        dev.started.await();
+        assertTrue(f.cancel(true));
+        
+        final AtomicBoolean sawFinished = new AtomicBoolean();
+        final Thread flusher = new Thread() {
+            
+            @Override
+            public void run() {
+                try {
+                    async.flush();
+                    sawFinished.set(dev.finished);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        
+        flusher.start();
+        flusher.join(200);
+        assertTrue("flush returned with a read in flight", flusher.isAlive());
+        
+        dev.gate.countDown();
+        flusher.join(10000);
+        assertTrue(sawFinished.get());
+        async.close();
+    }
+    
+    @Test
+    public void testFileSystem() throws Exception {
+        System.out.println("fileSystem");
+        
+        final File f = File.createTempFile("asyncTest", ".img");
+        f.deleteOnExit();
+        
+        final AsyncBlockDeviceAdapter async = new AsyncBlockDeviceAdapter(
+                FileDisk.create(f, 16 * 1024 * 1024), 4);
+        
+        final FatFileSystem fs = SuperFloppyFormatter.get(async).format();
+        final FatFile a = fs.getRoot().addFile("a").getFile();
+        final byte[] data = new byte[300000];
+        new Random(1).nextBytes(data);
+        
+        /* interleave the files so their data is fragmented */
+        
+        for (int pos=0; pos < data.length; pos += 30000) {
+            a.write(pos, ByteBuffer.wrap(data, pos, 30000));
+            fs.getRoot().addFile("f" + pos).getFile().setLength(1);
+        }
+        
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        a.read(0, read);
+        assertArrayEquals(data, read.array());
+        
+        fs.close();
+        async.close();
+        f.delete();
+    }
+    
+    /**
+     * A device whose reads block until the gate is opened, ignoring
+     * interrupts.
+     */
+    private static final class GateDevice implements BlockDevice {
+        
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        volatile boolean finished;
+        
+        @Override
+        public long getSize() {
+            return 4096;
+        }
+        
+        @Override
+        public void read(long devOffset, ByteBuffer dest) {
+            started.countDown();
+            
+            while (true) {
+                try {
+                    gate.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    /* keep running like an uninterruptible read */
+                }
+            }
+            
+            dest.position(dest.limit());
+            finished = true;
+        }
+        
+        @Override
+        public void write(long devOffset, ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public int getSectorSize() {
+            return 512;
+        }
+        
+        @Override
+        public void close() {
+        }
+        
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+        
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+        
+    }
+    
+    /**
+     * A device whose reads block until all parties of a latch are reading.
+     */
+    private static final class LatchDevice implements BlockDevice {
+        
+        private final CountDownLatch latch;
+        
+        LatchDevice(CountDownLatch latch) {
+            this.latch = latch;
+        }
+        
+        @Override
+        public long getSize() {
+            return 4096;
+        }
+        
+        @Override
+        public void read(long devOffset, ByteBuffer dest) throws IOException {
+            latch.countDown();
+            
+            try {
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("reads were not concurrent");
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            
+            dest.position(dest.limit());
+        }
+        
+        @Override
+        public void write(long devOffset, ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public int getSectorSize() {
+            return 512;
+        }
+        
+        @Override
+        public void close() {
+        }
+        
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+        
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+        
+    }
+    
+}
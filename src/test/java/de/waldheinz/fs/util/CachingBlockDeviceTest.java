@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.fat.FatFile;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class CachingBlockDeviceTest {
+    
+    private RamDisk rd;
+    private CachingBlockDevice cd;
+    
+    @Before
+    public void setUp() throws IOException {
+        rd = new RamDisk(1024 * 1024);
+        cd = new CachingBlockDevice(rd, 4096, 4);
+    }
+    
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        System.out.println("hitsAndMisses");
+        
+        cd.read(0, ByteBuffer.allocate(100));
+        cd.read(100, ByteBuffer.allocate(100));
+        cd.read(4000, ByteBuffer.allocate(200));
+        
+        assertEquals(2, cd.getMissCount());
+        assertEquals(2, cd.getHitCount());
+        assertEquals(2, cd.getCachedBlockCount());
+    }
+    
+    @Test
+    public void testWriteBack() throws IOException {
+        System.out.println("writeBack");
+        
+        final ByteBuffer data = ByteBuffer.allocate(10);
+        data.put(0, (byte) 42);
+        cd.write(5000, data);
+        
+        assertEquals(0, rd.getBuffer().get(5000));
+        
+        final ByteBuffer read = ByteBuffer.allocate(1);
+        cd.read(5000, read);
+        assertEquals(42, read.get(0));
+        
+        cd.flush();
+        assertEquals(42, rd.getBuffer().get(5000));
+        assertEquals(1, cd.getWriteBackCount());
+    }
+    
+    @Test
+    public void testEviction() throws IOException {
+        System.out.println("eviction");
+        
+        final ByteBuffer block = ByteBuffer.allocate(4096);
+        block.put(0, (byte) 1);
+        cd.write(0, block);
+        
+        /* a full block write must not read from the device */
+        assertEquals(1, cd.getMissCount());
+        
+        for (int i=1; i <= 4; i++) {
+            cd.read(i * 4096, ByteBuffer.allocate(1));
+        }
+        
+        assertEquals(4, cd.getCachedBlockCount());
+        assertEquals(1, cd.getWriteBackCount());
+        assertEquals(1, rd.getBuffer().get(0));
+    }
+    
+    @Test
+    public void testFileSystem() throws IOException {
+        System.out.println("fileSystem");
+        
+        final RamDisk disk = new RamDisk(16 * 1024 * 1024);
+        final CachingBlockDevice cache =
+                new CachingBlockDevice(disk, 4096, 64);
+        
+        final byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        
+        FatFileSystem fs = SuperFloppyFormatter.get(cache).format();
+        fs.getRoot().addFile("test").getFile().write(0, ByteBuffer.wrap(data));
+        fs.close();
+        
+        fs = FatFileSystem.read(disk, true);
+        final FatFile file = fs.getRoot().getEntry("test").getFile();
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        file.read(0, read);
+        
+        assertArrayEquals(data, read.array());
+    }
+    
+    @Test
+    public void testScanResistance() throws IOException {
+        System.out.println("scanResistance");
+        
+        final double lru = mixedWorkload(CachingBlockDevice.Policy.LRU);
+        final double twoQ = mixedWorkload(
+                CachingBlockDevice.Policy.TWO_QUEUE);
+        
+        System.out.println("  hit ratio LRU: " + lru + ", 2Q: " + twoQ);
+        
+        assertTrue(twoQ > lru);
+    }
+    
+    @Test
+    public void testFileSystemMarksMetadata() throws IOException {
+        System.out.println("fileSystemMarksMetadata");
+        
+        final RamDisk disk = new RamDisk(16 * 1024 * 1024);
+        FatFileSystem fs = SuperFloppyFormatter.get(disk).format();
+        fs.getRoot().addFile("big").getFile().setLength(8 * 1024 * 1024);
+        fs.close();
+        
+        final CachingBlockDevice cache = new CachingBlockDevice(
+                disk, 4096, 64, CachingBlockDevice.Policy.TWO_QUEUE);
+        
+        fs = FatFileSystem.read(cache, true);
+        final FatFile big = fs.getRoot().getEntry("big").getFile();
+        
+        /* the boot sector is marked and read again after the scan */
+        cache.read(0, ByteBuffer.allocate(512));
+        big.read(0, ByteBuffer.allocate((int) big.getLength()));
+        cache.resetCounters();
+        cache.read(0, ByteBuffer.allocate(512));
+        
+        assertEquals(1, cache.getHitCount());
+    }
+    
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        System.out.println("concurrentAccess");
+        
+        final int region = 64 * 1024;
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        final byte[][] expected = new byte[8][region];
+        final Thread[] threads = new Thread[expected.length];
+        
+        for (int t=0; t < threads.length; t++) {
+            final int nr = t;
+            
+            threads[t] = new Thread() {
+                
+                @Override
+                public void run() {
+                    final Random rnd = new Random(nr);
+                    final byte[] mine = expected[nr];
+                    final ByteBuffer buf = ByteBuffer.allocate(1000);
+                    
+                    try {
+                        for (int i=0; i < 500; i++) {
+                            final int off = rnd.nextInt(region - 1000);
+                            final long devOff = (long) nr * region + off;
+                            
+                            rnd.nextBytes(buf.array());
+                            System.arraycopy(buf.array(), 0, mine, off, 1000);
+                            buf.clear();
+                            cd.write(devOff, buf);
+                            
+                            buf.clear();
+                            cd.read(devOff, buf);
+                            
+                            for (int j=0; j < 1000; j++) {
+                                if (buf.get(j) != mine[off + j]) {
+                                    throw new AssertionError(
+                                            "mismatch at " + (devOff + j));
+                                }
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            
+            threads[t].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        assertNull(String.valueOf(failure.get()), failure.get());
+        
+        cd.flush();
+        
+        for (int t=0; t < expected.length; t++) {
+            final byte[] stored = new byte[region];
+            rd.read((long) t * region, ByteBuffer.wrap(stored));
+            assertArrayEquals("region " + t, expected[t], stored);
+        }
+    }
+    
+    /**
+     * Repeatedly looks up a small set of metadata blocks, each time followed
+     * by a sequential scan over a region twice the size of the cache.
+     */
+    private static double mixedWorkload(CachingBlockDevice.Policy policy)
+            throws IOException {
+        
+        final int blockSize = 4096;
+        final CachingBlockDevice cache = new CachingBlockDevice(
+                new RamDisk(4 * 1024 * 1024), blockSize, 64, policy);
+        
+        cache.markMetadata(0, 16 * blockSize);
+        final ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        
+        for (int round=0; round < 20; round++) {
+            for (int i=0; i < 16; i++) {
+                buf.clear();
+                cache.read(i * blockSize, buf);
+            }
+            
+            for (int i=0; i < 128; i++) {
+                buf.clear();
+                cache.read((long) (256 + i) * blockSize, buf);
+            }
+        }
+        
+        return cache.getHitRatio();
+    }
+    
+}
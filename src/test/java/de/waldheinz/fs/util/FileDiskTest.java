@@ -22,6 +22,7 @@ import de.waldheinz.fs.ReadOnlyException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 import org.junit.After;
 import org.junit.Before;
@@ -88,6 +89,34 @@ public class FileDiskTest {
         fd.write(SIZE - 999, ByteBuffer.allocate(1000));
     }
 
+    @Test
+    public void testVectored() throws IOException {
+        System.out.println("vectored");
+        
+        final byte[] data = new byte[3000];
+        new Random(1).nextBytes(data);
+        
+        /* the first two ranges are adjacent, the third is not */
+        fd.write(new long[] { 1000, 2000, 10000 }, new ByteBuffer[] {
+            ByteBuffer.wrap(data, 0, 1000),
+            ByteBuffer.wrap(data, 1000, 1000),
+            ByteBuffer.wrap(data, 2000, 1000) });
+        
+        final ByteBuffer first = ByteBuffer.allocate(2000);
+        fd.read(1000, first);
+        
+        final byte[] read = new byte[1500];
+        fd.read(new long[] { 1500, 10500 }, new ByteBuffer[] {
+            ByteBuffer.wrap(read, 0, 1000),
+            ByteBuffer.wrap(read, 1000, 500) });
+        
+        assertArrayEquals(Arrays.copyOf(data, 2000), first.array());
+        assertArrayEquals(Arrays.copyOfRange(data, 500, 1500),
+                Arrays.copyOf(read, 1000));
+        assertArrayEquals(Arrays.copyOfRange(data, 2500, 3000),
+                Arrays.copyOfRange(read, 1000, 1500));
+    }
+    
     @Test
     public void testPersistence() throws IOException {
         System.out.println("persistence");
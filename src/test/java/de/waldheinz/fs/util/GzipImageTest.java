@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class GzipImageTest {
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        System.out.println("roundTrip");
+        
+        final RamDisk src = new RamDisk(1000 * 1024);
+        final byte[] data = new byte[300000];
+        new Random(5).nextBytes(data);
+        src.write(100000, ByteBuffer.wrap(data));
+        
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GzipImage.write(src, bos, 64 * 1024, 3);
+        
+        /* the stream is plain multi-member GZIP */
+        final RamDisk read = RamDisk.readGzipped(
+                new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(src.getBuffer(), read.getBuffer());
+        
+        final File f = File.createTempFile("gzipImageTest", ".gz");
+        f.deleteOnExit();
+        
+        try {
+            GzipImage.write(src, f);
+            assertEquals(src.getBuffer(), RamDisk.readGzipped(f).getBuffer());
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test
+    public void testZeroChunks() throws IOException {
+        System.out.println("zeroChunks");
+        
+        final SegmentedRamDisk src = new SegmentedRamDisk(64L * 1024 * 1024);
+        src.write(5000, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GzipImage.write(src, bos);
+        
+        /* 64 members, 63 of them the shared zero member */
+        assertTrue(bos.size() < 64 * 2000);
+        
+        final SegmentedRamDisk read = SegmentedRamDisk.readGzipped(
+                new ByteArrayInputStream(bos.toByteArray()), src.getSize());
+        assertEquals(1, read.getAllocatedSegmentCount());
+        
+        final ByteBuffer bb = ByteBuffer.allocate(3);
+        read.read(5000, bb);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, bb.array());
+    }
+    
+    @Test
+    public void testFileSystem() throws IOException {
+        System.out.println("fileSystem");
+        
+        final RamDisk src = new RamDisk(4 * 1024 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(src).format();
+        fs.getRoot().addDirectory("dir").getDirectory().addFile("file");
+        fs.close();
+        
+        final File f = File.createTempFile("gzipImageTest", ".gz");
+        f.deleteOnExit();
+        
+        try {
+            GzipImage.write(src, f);
+            
+            final FatFileSystem fs2 = FatFileSystem.read(
+                    RamDisk.readGzipped(f), true);
+            assertNotNull(fs2.getRoot().getEntry("dir")
+                    .getDirectory().getEntry("file"));
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidChunkSize() throws IOException {
+        System.out.println("invalidChunkSize");
+        
+        GzipImage.write(new RamDisk(4096), new ByteArrayOutputStream(), 0, 1);
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.ReadOnlyException;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class MappedFileDiskTest {
+    
+    private final static int SIZE = 1024 * 1024;
+    private File f;
+    
+    @Before
+    public void setUp() throws Exception {
+        f = File.createTempFile("mappedFileDiskTest", ".tmp");
+        f.deleteOnExit();
+        MappedFileDisk.create(f, SIZE).close();
+    }
+    
+    @After
+    public void tearDown() {
+        f.delete();
+    }
+    
+    @Test
+    public void testSegments() throws IOException {
+        System.out.println("segments");
+        
+        final MappedFileDisk md = new MappedFileDisk(f, false, 64 * 1024);
+        final byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        
+        md.write(1000, ByteBuffer.wrap(data));
+        md.close();
+        
+        final FileDisk fd = new FileDisk(f, true);
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        fd.read(1000, read);
+        fd.close();
+        
+        assertArrayEquals(data, read.array());
+        
+        final MappedFileDisk md2 = new MappedFileDisk(f, true, 100 * 1024);
+        read.clear();
+        md2.read(1000, read);
+        md2.close();
+        
+        assertArrayEquals(data, read.array());
+    }
+    
+    @Test(expected=ReadOnlyException.class)
+    public void testReadOnly() throws IOException {
+        System.out.println("readOnly");
+        
+        final MappedFileDisk md = new MappedFileDisk(f, true);
+        assertTrue(md.isReadOnly());
+        md.write(0, ByteBuffer.allocate(10));
+    }
+    
+    @Test(expected=IOException.class)
+    public void testReadPastEnd() throws IOException {
+        System.out.println("readPastEnd");
+        
+        new MappedFileDisk(f, true).read(SIZE - 999, ByteBuffer.allocate(1000));
+    }
+    
+    @Test
+    public void testFileSystem() throws IOException {
+        System.out.println("fileSystem");
+        
+        final MappedFileDisk md = new MappedFileDisk(f, false, 128 * 1024);
+        final FatFileSystem fs = SuperFloppyFormatter.get(md).format();
+        fs.getRoot().addDirectory("dir").getDirectory().addFile("file");
+        fs.close();
+        md.close();
+        
+        final FileDisk fd = new FileDisk(f, true);
+        final FatFileSystem fs2 = FatFileSystem.read(fd, true);
+        assertNotNull(fs2.getRoot().getEntry("dir")
+                .getDirectory().getEntry("file"));
+        fd.close();
+    }
+    
+}
@@ -18,8 +18,17 @@
 
 package de.waldheinz.fs.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -50,4 +59,154 @@ public class RamDiskTest {
         d.flush();
     }
     
+    @Test
+    public void testConcurrentReads() throws Exception {
+        System.out.println("concurrentReads");
+        
+        final int size = 1024 * 1024;
+        final RamDisk d = new RamDisk(size);
+        final byte[] expected = new byte[size];
+        new Random(42).nextBytes(expected);
+        d.write(0, ByteBuffer.wrap(expected));
+        
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        
+        final Thread[] threads = new Thread[8];
+        
+        for (int t=0; t < threads.length; t++) {
+            final long seed = t;
+            
+            threads[t] = new Thread() {
+                
+                @Override
+                public void run() {
+                    final Random rnd = new Random(seed);
+                    final ByteBuffer buf = ByteBuffer.allocate(8192);
+                    
+                    try {
+                        for (int i=0; i < 2000; i++) {
+                            final int len = 1 + rnd.nextInt(buf.capacity());
+                            final int off = rnd.nextInt(size - len);
+                            
+                            buf.clear();
+                            buf.limit(len);
+                            d.read(off, buf);
+                            
+                            for (int j=0; j < len; j++) {
+                                if (buf.get(j) != expected[off + j]) {
+                                    throw new AssertionError(
+                                            "mismatch at " + (off + j));
+                                }
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            
+            threads[t].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testReadPastEnd() throws IOException {
+        System.out.println("readPastEnd");
+        
+        final RamDisk d = new RamDisk(4096);
+        d.read(4000, ByteBuffer.allocate(512));
+    }
+    
+    @Test
+    public void testReadGzippedSizeHint() throws IOException {
+        System.out.println("readGzippedSizeHint");
+        
+        final byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        final byte[] gz = gzip(data);
+        
+        for (int hint : new int[] { 0, 1000, data.length, 2 * data.length }) {
+            final RamDisk rd = RamDisk.readGzipped(
+                    new ByteArrayInputStream(gz), hint);
+            
+            assertEquals(data.length, rd.getSize());
+            
+            final ByteBuffer read = ByteBuffer.allocate(data.length);
+            rd.read(0, read);
+            assertArrayEquals(data, read.array());
+        }
+    }
+    
+    @Test
+    public void testReadIndexedGzip() throws IOException {
+        System.out.println("readIndexedGzip");
+        
+        final byte[] data = new byte[5 * 65536 + 1024];
+        new Random(4).nextBytes(data);
+        
+        final File f = File.createTempFile("ramDiskTest", ".gz");
+        f.deleteOnExit();
+        
+        try {
+            final FileOutputStream fos = new FileOutputStream(f);
+            
+            for (int off=0; off < data.length; off += 65536) {
+                fos.write(GzipImage.member(Arrays.copyOfRange(data, off,
+                        Math.min(off + 65536, data.length))));
+            }
+            
+            fos.close();
+            
+            final RamDisk rd = RamDisk.readGzipped(f);
+            final ByteBuffer read = ByteBuffer.allocate(data.length);
+            rd.read(0, read);
+            assertArrayEquals(data, read.array());
+            
+            final SegmentedRamDisk sd = SegmentedRamDisk.readGzipped(f);
+            assertEquals(data.length, sd.getSize());
+            read.clear();
+            sd.read(0, read);
+            assertArrayEquals(data, read.array());
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test(expected=IOException.class)
+    public void testReadCorruptIndexedGzip() throws IOException {
+        System.out.println("readCorruptIndexedGzip");
+        
+        final byte[] data = new byte[4096];
+        final byte[] member = GzipImage.member(data);
+        member[member.length - 8] ^= 1;
+        
+        final File f = File.createTempFile("ramDiskTest", ".gz");
+        f.deleteOnExit();
+        
+        try {
+            final FileOutputStream fos = new FileOutputStream(f);
+            fos.write(member);
+            fos.close();
+            
+            RamDisk.readGzipped(f);
+        } finally {
+            f.delete();
+        }
+    }
+    
+    private static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+    
 }
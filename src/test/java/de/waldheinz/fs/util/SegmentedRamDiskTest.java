@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2009-2013 Matthias Treydte <mt@waldheinz.de>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package de.waldheinz.fs.util;
+
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.FatType;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
+ */
+public class SegmentedRamDiskTest {
+    
+    @Test
+    public void testSegments() throws IOException {
+        System.out.println("segments");
+        
+        final SegmentedRamDisk d = new SegmentedRamDisk(
+                1024 * 1024, 512, 64 * 1024, false);
+        assertEquals(16, d.getAllocatedSegmentCount());
+        
+        final byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        d.write(1000, ByteBuffer.wrap(data));
+        
+        final ByteBuffer read = ByteBuffer.allocate(data.length);
+        d.read(1000, read);
+        assertArrayEquals(data, read.array());
+    }
+    
+    @Test
+    public void testLazy() throws IOException {
+        System.out.println("lazy");
+        
+        final long size = 3L * 1024 * 1024 * 1024;
+        final SegmentedRamDisk d = new SegmentedRamDisk(
+                size, 512, 1024 * 1024, true);
+        
+        assertEquals(size, d.getSize());
+        assertEquals(0, d.getAllocatedSegmentCount());
+        
+        d.write(0, ByteBuffer.allocate(4096));
+        assertEquals(0, d.getAllocatedSegmentCount());
+        
+        final ByteBuffer data = ByteBuffer.allocate(512);
+        data.put(0, (byte) 0x55);
+        d.write(size - 512, data);
+        assertEquals(1, d.getAllocatedSegmentCount());
+        
+        final ByteBuffer read = ByteBuffer.allocate(1024);
+        read.put(1, (byte) 1);
+        d.read(size - 1024, read);
+        assertEquals(0, read.get(1));
+        assertEquals(0x55, read.get(512));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testReadPastEnd() throws IOException {
+        System.out.println("readPastEnd");
+        
+        new SegmentedRamDisk(4096).read(4000, ByteBuffer.allocate(512));
+    }
+    
+    @Test
+    public void testReadPlainGzipFile() throws IOException {
+        System.out.println("readPlainGzipFile");
+        
+        final byte[] data = new byte[3 * 65536 + 512];
+        new Random(7).nextBytes(data);
+        
+        final File f = File.createTempFile("segmentedRamDiskTest", ".gz");
+        f.deleteOnExit();
+        
+        try {
+            final FileOutputStream fos = new FileOutputStream(f);
+            
+            /* two plain members, so the trailer holds only the last size */
+            for (int off=0; off < data.length; off += 2 * 65536) {
+                final GZIPOutputStream zos = new GZIPOutputStream(fos) {
+                    
+                    @Override
+                    public void close() throws IOException {
+                        finish();
+                    }
+                };
+                
+                zos.write(data, off, Math.min(2 * 65536, data.length - off));
+                zos.close();
+            }
+            
+            fos.close();
+            
+            final SegmentedRamDisk d = SegmentedRamDisk.readGzipped(f);
+            assertEquals(data.length, d.getSize());
+            
+            final ByteBuffer read = ByteBuffer.allocate(data.length);
+            d.read(0, read);
+            assertArrayEquals(data, read.array());
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test
+    public void testFileSystem() throws IOException {
+        System.out.println("fileSystem");
+        
+        final SegmentedRamDisk d = new SegmentedRamDisk(
+                3L * 1024 * 1024 * 1024, 512, 1024 * 1024, true);
+        final FatFileSystem fs = SuperFloppyFormatter.get(d)
+                .setFatType(FatType.FAT32).format();
+        fs.getRoot().addDirectory("dir").getDirectory().addFile("file");
+        fs.close();
+        
+        assertTrue(d.getAllocatedSegmentCount() < 32);
+        
+        final FatFileSystem fs2 = FatFileSystem.read(d, true);
+        assertNotNull(fs2.getRoot().getEntry("dir")
+                .getDirectory().getEntry("file"));
+    }
+    
+}